@@ -0,0 +1,74 @@
+package org.gluu.idp.externalauth;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gluu.oxauth.client.auth.user.UserProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+
+/**
+ * {@link AuthenticatedNameTranslator#doTranslation} with small and very large user profiles, with and without
+ * attribute mapping allowlist
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticatedNameTranslatorBenchmark {
+
+    /**
+     * Number of single-valued attributes and number of memberOf values
+     */
+    @Param({ "10:5", "300:5000" })
+    private String profileSize;
+
+    @Param({ "all", "allowlist" })
+    private String attributeMapping;
+
+    private AuthenticatedNameTranslator translator;
+    private UserProfile userProfile;
+
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+
+    @Setup
+    public void setUp() {
+        final String[] size = profileSize.split(":");
+        this.userProfile = BenchmarkFixtures.newUserProfile(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+
+        this.translator = new AuthenticatedNameTranslator();
+        if ("allowlist".equals(attributeMapping)) {
+            final MockEnvironment environment = new MockEnvironment();
+            environment.setProperty("shib.oxauth.attributeMapping", "claim0:uid, claim1:mail, claim2, memberOf:groups");
+            environment.setProperty("shib.oxauth.attributeMapping.groups.maxValues", "1000");
+            translator.setEnvironment(environment);
+        }
+
+        this.request = BenchmarkFixtures.newRequest(BenchmarkFixtures.newSession(BenchmarkFixtures.newAcrValues(0)));
+        this.response = BenchmarkFixtures.newResponse();
+    }
+
+    @Benchmark
+    public Object doTranslation() throws Exception {
+        translator.doTranslation(request, response, userProfile, BenchmarkFixtures.CONVERSATION_KEY);
+
+        return request.getAttribute(ExternalAuthentication.SUBJECT_KEY);
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.gluu.idp.externalauth;
+
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.ServletException;
+
+import org.gluu.idp.externalauth.openid.conf.IdpAppConfiguration;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.gluu.oxauth.client.auth.user.UserProfile;
+import org.gluu.util.properties.FileConfiguration;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.RequestedAuthnContext;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.mock.web.MockServletConfig;
+import org.springframework.mock.web.MockServletContext;
+import org.springframework.web.context.WebApplicationContext;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+
+/**
+ * Shared fixtures of the benchmarks. Nothing here touches LDAP or Spring Web Flow, OpenID Provider is a local
+ * {@link StubOpenIdProvider}
+ */
+final class BenchmarkFixtures {
+
+    static final String CONVERSATION_KEY = "e1s1";
+    static final String RELYING_PARTY_ID = "https://sp.example.org/shibboleth";
+    static final String REQUEST_URI = "/idp/Authn/oxAuth";
+    static final String REDIRECT_URL = "https://idp.example.org/idp/Authn/oxAuth";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Servlet initialized by the container with the given configuration and the built-in translator only. Call
+     * {@link ShibOxAuthAuthServlet#destroy()} when done
+     */
+    static ShibOxAuthAuthServlet newServlet(final IdpConfiguration configuration) throws ServletException {
+        final GenericApplicationContext applicationContext = new GenericApplicationContext();
+        applicationContext.refresh();
+
+        final MockServletContext servletContext = new MockServletContext();
+        servletContext.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, applicationContext);
+
+        final ShibOxAuthAuthServlet servlet = new BenchmarkServlet(configuration);
+        servlet.init(new MockServletConfig(servletContext));
+
+        return servlet;
+    }
+
+    /**
+     * Configuration of the client of the given OpenID Provider with the given oxidp_* properties instead of
+     * oxidp.properties and LDAP. Warm-up and asynchronous callbacks are disabled unless the properties enable them
+     */
+    static IdpConfiguration newConfiguration(final StubOpenIdProvider openIdProvider, final Properties properties) throws IOException {
+        final IdpAppConfiguration appConfiguration = new IdpAppConfiguration();
+        appConfiguration.setOpenIdProviderUrl(openIdProvider.getIssuer());
+        appConfiguration.setOpenIdClientId(StubOpenIdProvider.CLIENT_ID);
+        appConfiguration.setOpenIdClientPassword(StubOpenIdProvider.CLIENT_SECRET);
+        appConfiguration.setOpenIdScopes(Arrays.asList("openid", "profile", "email"));
+        appConfiguration.setOpenIdRedirectUrl(REDIRECT_URL);
+
+        final Properties fileProperties = new Properties();
+        fileProperties.setProperty("oxidp_WarmUp", "false");
+        fileProperties.setProperty("oxidp_AsyncCallback", "false");
+        fileProperties.putAll(properties);
+
+        final File file = File.createTempFile("oxidp-benchmark", ".properties");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            fileProperties.store(out, null);
+        }
+
+        // Mock doesn't run the constructor, so it doesn't try to load files and LDAP. Typed properties are read by
+        // the real methods
+        final IdpConfiguration configuration = mock(IdpConfiguration.class, CALLS_REAL_METHODS);
+        doReturn(new FileConfiguration(file.getAbsolutePath())).when(configuration).getLdapConfiguration();
+        doReturn(appConfiguration).when(configuration).getAppConfiguration();
+        doAnswer(returnsFirstArg()).when(configuration).decrypt(anyString());
+
+        return configuration;
+    }
+
+    /**
+     * Session with external authentication conversation started by IdP
+     */
+    static MockHttpSession newSession(final List<String> acrValues) {
+        final MockHttpSession session = new MockHttpSession();
+        session.setAttribute(ExternalAuthentication.CONVERSATION_KEY + CONVERSATION_KEY,
+                new StubExternalAuthentication(RELYING_PARTY_ID, newProfileRequestContext(acrValues)));
+
+        return session;
+    }
+
+    static MockHttpServletRequest newRequest(final MockHttpSession session) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", REQUEST_URI);
+        request.setSession(session);
+
+        return request;
+    }
+
+    static MockHttpServletResponse newResponse() {
+        return new MockHttpServletResponse();
+    }
+
+    static List<String> newAcrValues(final int count) {
+        final List<String> acrValues = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            acrValues.add("urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport" + (i == 0 ? "" : ":" + i));
+        }
+
+        return acrValues;
+    }
+
+    /**
+     * User profile with the given number of single-valued attributes and one multi-valued <code>memberOf</code> attribute
+     */
+    static UserProfile newUserProfile(final int attributes, final int groups) {
+        final UserProfile userProfile = new UserProfile();
+        userProfile.setId("jdoe");
+        for (int i = 0; i < attributes; i++) {
+            userProfile.addAttribute("claim" + i, Collections.singletonList("value " + i));
+        }
+
+        final List<String> memberOf = new ArrayList<String>(groups);
+        for (int i = 0; i < groups; i++) {
+            memberOf.add("cn=group" + i + ",ou=groups,o=gluu");
+        }
+        userProfile.addAttribute("memberOf", memberOf);
+
+        return userProfile;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static ProfileRequestContext<?, ?> newProfileRequestContext(final List<String> acrValues) {
+        final RequestedAuthnContext authnContext;
+        if (acrValues.isEmpty()) {
+            authnContext = null;
+        } else {
+            final List<AuthnContextClassRef> classRefs = new ArrayList<AuthnContextClassRef>();
+            for (final String acrValue : acrValues) {
+                classRefs.add(samlObject(AuthnContextClassRef.class, "getAuthnContextClassRef", acrValue));
+            }
+            authnContext = samlObject(RequestedAuthnContext.class, "getAuthnContextClassRefs", Collections.unmodifiableList(classRefs));
+        }
+
+        final MessageContext<SAMLObject> inboundMessageContext = new MessageContext<SAMLObject>();
+        inboundMessageContext.setMessage(samlObject(AuthnRequest.class, "getRequestedAuthnContext", authnContext));
+
+        final ProfileRequestContext profileRequestContext = new ProfileRequestContext();
+        profileRequestContext.setInboundMessageContext(inboundMessageContext);
+
+        return profileRequestContext;
+    }
+
+    /**
+     * SAML object which supports single getter. Proxy is used instead of mock to keep allocations of fixture out of results
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T samlObject(final Class<T> type, final String getter, final Object value) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return type.getSimpleName();
+            default:
+                if (method.getName().equals(getter)) {
+                    return value;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+}
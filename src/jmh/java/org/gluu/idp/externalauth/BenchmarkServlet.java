@@ -0,0 +1,23 @@
+package org.gluu.idp.externalauth;
+
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+
+/**
+ * oxAuth servlet which uses the benchmark configuration
+ */
+final class BenchmarkServlet extends ShibOxAuthAuthServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient IdpConfiguration configuration;
+
+    BenchmarkServlet(final IdpConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    @Override
+    protected IdpConfiguration getConfiguration() {
+        return configuration;
+    }
+
+}
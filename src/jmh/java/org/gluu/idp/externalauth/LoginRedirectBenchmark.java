@@ -0,0 +1,81 @@
+package org.gluu.idp.externalauth;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+
+/**
+ * {@link ShibOxAuthAuthServlet#startLoginRequest} building the authorization URL with <code>acr_values</code>
+ * taken from the SAML <code>RequestedAuthnContext</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginRedirectBenchmark {
+
+    /**
+     * Number of requested authentication context classes, 0 - no RequestedAuthnContext
+     */
+    @Param({ "0", "1", "4" })
+    private int acrValues;
+
+    @Param({ "session", "stateless" })
+    private String stateMode;
+
+    private StubOpenIdProvider openIdProvider;
+    private ShibOxAuthAuthServlet servlet;
+    private MockHttpSession session;
+
+    @Setup
+    public void setUp() throws Exception {
+        final Properties properties = new Properties();
+        if ("stateless".equals(stateMode)) {
+            properties.setProperty("oxidp_StatelessState", "true");
+            properties.setProperty("oxidp_StateSecret", "benchmark-state-secret");
+            properties.setProperty("oxidp_StateLifetime", "3600");
+        }
+        this.openIdProvider = new StubOpenIdProvider(0, 0);
+        openIdProvider.start();
+        this.servlet = BenchmarkFixtures.newServlet(BenchmarkFixtures.newConfiguration(openIdProvider, properties));
+        this.session = BenchmarkFixtures.newSession(BenchmarkFixtures.newAcrValues(acrValues));
+    }
+
+    @TearDown
+    public void tearDown() {
+        servlet.destroy();
+        openIdProvider.stop();
+    }
+
+    @Benchmark
+    public String startLoginRequest() {
+        final MockHttpServletRequest request = BenchmarkFixtures.newRequest(session);
+        request.setParameter(ExternalAuthentication.CONVERSATION_KEY, BenchmarkFixtures.CONVERSATION_KEY);
+        request.setAttribute(ExternalAuthentication.RELYING_PARTY_PARAM, BenchmarkFixtures.RELYING_PARTY_ID);
+
+        final MockHttpServletResponse response = BenchmarkFixtures.newResponse();
+        servlet.startLoginRequest(request, response, Boolean.FALSE);
+
+        return response.getRedirectedUrl();
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.gluu.idp.externalauth;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gluu.idp.externalauth.openid.client.RequestStateCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+
+/**
+ * Encoding and decoding of the authorization request state in all supported modes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestStateBenchmark {
+
+    @Param({ "unsigned", "signed", "encrypted" })
+    private String mode;
+
+    private RequestStateCodec stateCodec;
+    private Map<String, String> claims;
+    private String state;
+
+    @Setup
+    public void setUp() {
+        if ("unsigned".equals(mode)) {
+            this.stateCodec = new RequestStateCodec();
+        } else {
+            this.stateCodec = new RequestStateCodec("benchmark-state-secret", "encrypted".equals(mode), TimeUnit.HOURS.toMillis(1));
+        }
+
+        this.claims = Collections.singletonMap(ExternalAuthentication.CONVERSATION_KEY, BenchmarkFixtures.CONVERSATION_KEY);
+        this.state = stateCodec.encode(claims);
+    }
+
+    @Benchmark
+    public String encode() {
+        return stateCodec.encode(claims);
+    }
+
+    @Benchmark
+    public Map<String, String> decode() {
+        return stateCodec.decode(state);
+    }
+
+}
@@ -0,0 +1,148 @@
+package org.gluu.idp.externalauth;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+
+/**
+ * {@link ShibOxAuthAuthServlet#doGet} for the login redirect and for the authorization response (callback)
+ * <p>
+ * Back-channel requests go to a local {@link StubOpenIdProvider}, so callback includes state check, code exchange and
+ * user info over loopback, translator chain and finish. State, nonce and code are single use, so every callback gets
+ * a login started by real redirect before it. The <code>fixture</code> benchmark measures creation of mock request and
+ * response, which is included in others.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShibOxAuthAuthServletBenchmark {
+
+    private StubOpenIdProvider openIdProvider;
+    private ShibOxAuthAuthServlet servlet;
+
+    private MockHttpSession redirectSession;
+    private MockHttpSession callbackSession;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.openIdProvider = new StubOpenIdProvider(10, 20);
+        openIdProvider.start();
+        this.servlet = BenchmarkFixtures.newServlet(BenchmarkFixtures.newConfiguration(openIdProvider, new Properties()));
+
+        this.redirectSession = BenchmarkFixtures.newSession(BenchmarkFixtures.newAcrValues(1));
+        this.callbackSession = BenchmarkFixtures.newSession(BenchmarkFixtures.newAcrValues(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        servlet.destroy();
+        openIdProvider.stop();
+    }
+
+    /**
+     * Authorization response of a login which is started before every callback
+     */
+    @State(Scope.Thread)
+    public static class Callback {
+
+        private MockHttpServletRequest request;
+
+        @Setup(Level.Invocation)
+        public void setUp(final ShibOxAuthAuthServletBenchmark benchmark) throws Exception {
+            this.request = benchmark.startLogin();
+        }
+    }
+
+    @Benchmark
+    public Object fixture() {
+        final MockHttpServletRequest request = newCallbackRequest("6a1f2ab6-4bb2-4a8e-9d1c-5d3f2a7c9e10", "state");
+        BenchmarkFixtures.newResponse();
+
+        return request;
+    }
+
+    @Benchmark
+    public String redirect() throws ServletException {
+        final MockHttpServletResponse response = BenchmarkFixtures.newResponse();
+        servlet.doGet(newRedirectRequest(redirectSession), response);
+
+        return response.getRedirectedUrl();
+    }
+
+    @Benchmark
+    public Object callback(final Callback callback) throws ServletException {
+        servlet.doGet(callback.request, BenchmarkFixtures.newResponse());
+
+        return callback.request.getAttribute(ExternalAuthentication.SUBJECT_KEY);
+    }
+
+    /**
+     * Redirect to OpenID Provider and issue the code it would return
+     *
+     * @return authorization response
+     */
+    private MockHttpServletRequest startLogin() throws ServletException, UnsupportedEncodingException {
+        final MockHttpServletResponse response = BenchmarkFixtures.newResponse();
+        servlet.doGet(newRedirectRequest(callbackSession), response);
+
+        final String url = response.getRedirectedUrl();
+        final String state = getQueryParameter(url, "state");
+        if (state == null) {
+            throw new IllegalStateException("Login redirect failed: " + url);
+        }
+
+        return newCallbackRequest(openIdProvider.issueCode(getQueryParameter(url, "nonce")), state);
+    }
+
+    private MockHttpServletRequest newRedirectRequest(final MockHttpSession session) {
+        final MockHttpServletRequest request = BenchmarkFixtures.newRequest(session);
+        request.setParameter(ExternalAuthentication.CONVERSATION_KEY, BenchmarkFixtures.CONVERSATION_KEY);
+
+        return request;
+    }
+
+    private MockHttpServletRequest newCallbackRequest(final String code, final String state) {
+        final MockHttpServletRequest request = BenchmarkFixtures.newRequest(callbackSession);
+        request.setParameter("code", code);
+        request.setParameter("state", state);
+        request.setParameter("session_state", "0b5c1e2f.7d3a");
+
+        return request;
+    }
+
+    private static String getQueryParameter(final String url, final String name) throws UnsupportedEncodingException {
+        for (final String pair : StringUtils.split(StringUtils.substringAfter(url, "?"), '&')) {
+            if (pair.startsWith(name + "=")) {
+                return URLDecoder.decode(pair.substring(name.length() + 1), "UTF-8");
+            }
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.gluu.idp.externalauth;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.gluu.idp.externalauth.openid.client.RequestStateCodec;
+import org.gluu.oxauth.model.exception.InvalidJwtException;
+import org.gluu.oxauth.model.jwt.Jwt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+
+/**
+ * Per-request state handling on callback, before and after the state claims were materialized once
+ * <p>
+ * <code>jwtClaimLookup</code> is the former handling: the anonymous wrapper asked the parsed {@link Jwt} on every
+ * lookup and the state validation parsed the state again. <code>stateRequestWrapper</code> is the current handling:
+ * the state is decoded once, the claims are cached in the request and exposed by {@link StateRequestWrapper}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateParameterBenchmark {
+
+    /**
+     * Number of getParameter calls per request
+     */
+    @Param({ "1", "8" })
+    private int lookups;
+
+    private static final String STATE_CLAIMS_ATTRIBUTE = StateParameterBenchmark.class.getName() + ".stateClaims";
+
+    private RequestStateCodec stateCodec;
+    private MockHttpServletRequest request;
+    private String state;
+
+    @Setup
+    public void setUp() {
+        this.stateCodec = new RequestStateCodec();
+        this.state = stateCodec.encode(Collections.singletonMap(ExternalAuthentication.CONVERSATION_KEY, BenchmarkFixtures.CONVERSATION_KEY));
+
+        this.request = new MockHttpServletRequest("GET", BenchmarkFixtures.REQUEST_URI);
+        request.setParameter("code", "6a1f2ab6-4bb2-4a8e-9d1c-5d3f2a7c9e10");
+        request.setParameter("state", state);
+    }
+
+    @Benchmark
+    public void jwtClaimLookup(final Blackhole blackhole) throws InvalidJwtException {
+        final Jwt jwt = Jwt.parse(state);
+        final HttpServletRequest externalRequest = new HttpServletRequestWrapper(request) {
+            @Override
+            public String getParameter(String name) {
+                if (jwt.getClaims().hasClaim(name)) {
+                    return jwt.getClaims().getClaimAsString(name);
+                }
+
+                return super.getParameter(name);
+            }
+        };
+
+        lookup(externalRequest, blackhole);
+
+        // State validation inspected the same state again
+        blackhole.consume(Jwt.parse(state).getClaims().getClaimAsString(ExternalAuthentication.CONVERSATION_KEY));
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public void stateRequestWrapper(final Blackhole blackhole) {
+        request.removeAttribute(STATE_CLAIMS_ATTRIBUTE);
+
+        final Map<String, String> claims = stateCodec.decode(state);
+        request.setAttribute(STATE_CLAIMS_ATTRIBUTE, claims);
+        lookup(new StateRequestWrapper(request, claims), blackhole);
+
+        // State validation reuses the claims cached in request
+        blackhole.consume(((Map<String, String>) request.getAttribute(STATE_CLAIMS_ATTRIBUTE)).get(ExternalAuthentication.CONVERSATION_KEY));
+    }
+
+    private void lookup(final HttpServletRequest externalRequest, final Blackhole blackhole) {
+        for (int i = 0; i < lookups; i++) {
+            blackhole.consume(externalRequest.getParameter(ExternalAuthentication.CONVERSATION_KEY));
+            blackhole.consume(externalRequest.getParameter("code"));
+        }
+    }
+
+}
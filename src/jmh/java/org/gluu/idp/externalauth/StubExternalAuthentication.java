@@ -0,0 +1,43 @@
+package org.gluu.idp.externalauth;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.profile.context.ProfileRequestContext;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+import net.shibboleth.idp.authn.ExternalAuthenticationException;
+
+/**
+ * External authentication conversation which is kept in session without Spring Web Flow behind it
+ */
+final class StubExternalAuthentication extends ExternalAuthentication {
+
+    private final String relyingPartyId;
+    private final ProfileRequestContext<?, ?> profileRequestContext;
+
+    StubExternalAuthentication(final String relyingPartyId, final ProfileRequestContext<?, ?> profileRequestContext) {
+        this.relyingPartyId = relyingPartyId;
+        this.profileRequestContext = profileRequestContext;
+    }
+
+    @Override
+    protected void doStart(final HttpServletRequest request) throws ExternalAuthenticationException {
+        request.setAttribute(ExternalAuthentication.FORCE_AUTHN_PARAM, Boolean.FALSE);
+        request.setAttribute(ExternalAuthentication.PASSIVE_AUTHN_PARAM, Boolean.FALSE);
+        request.setAttribute(ExternalAuthentication.RELYING_PARTY_PARAM, relyingPartyId);
+    }
+
+    @Override
+    protected void doFinish(final HttpServletRequest request, final HttpServletResponse response)
+            throws ExternalAuthenticationException, IOException {
+    }
+
+    @Override
+    protected ProfileRequestContext<?, ?> getProfileRequestContext(final HttpServletRequest request) throws ExternalAuthenticationException {
+        return profileRequestContext;
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.gluu.idp.externalauth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in of oxAuth which serves discovery, JWKS, token and userinfo endpoints over loopback
+ * <p>
+ * Authorization codes are issued by the benchmark itself, so browser redirect to authorization endpoint isn't
+ * needed. <code>id_token</code> is signed with the client secret (HS256), so no key pair is generated.
+ */
+final class StubOpenIdProvider {
+
+    static final String CLIENT_ID = "@!1111!0008!0001";
+    static final String CLIENT_SECRET = "benchmark-client-secret-which-is-long-enough-for-hs256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private final int attributes;
+    private final int groups;
+    private final Map<String, String> codes = new ConcurrentHashMap<String, String>();
+
+    private HttpServer server;
+    private String issuer;
+
+    /**
+     * @param attributes number of single-valued claims returned by userinfo endpoint
+     * @param groups number of <code>memberOf</code> values returned by userinfo endpoint
+     */
+    StubOpenIdProvider(final int attributes, final int groups) {
+        this.attributes = attributes;
+        this.groups = groups;
+    }
+
+    void start() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.issuer = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/oxauth";
+
+        server.createContext("/oxauth/.well-known/openid-configuration", exchange -> writeJson(exchange, 200, discovery()));
+        server.createContext("/oxauth/restv1/jwks", exchange -> writeJson(exchange, 200, new JSONObject().put("keys", new JSONArray())));
+        server.createContext("/oxauth/restv1/token", this::token);
+        server.createContext("/oxauth/restv1/userinfo", this::userInfo);
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    String getIssuer() {
+        return issuer;
+    }
+
+    /**
+     * Issue authorization code for the login with the given nonce, like authorization endpoint does
+     */
+    String issueCode(final String nonce) {
+        final String code = UUID.randomUUID().toString();
+        codes.put(code, StringUtils.defaultString(nonce));
+
+        return code;
+    }
+
+    private JSONObject discovery() {
+        final JSONObject json = new JSONObject();
+        json.put("issuer", issuer);
+        json.put("authorization_endpoint", issuer + "/restv1/authorize");
+        json.put("token_endpoint", issuer + "/restv1/token");
+        json.put("userinfo_endpoint", issuer + "/restv1/userinfo");
+        json.put("end_session_endpoint", issuer + "/restv1/end_session");
+        json.put("jwks_uri", issuer + "/restv1/jwks");
+        json.put("response_types_supported", new JSONArray().put("code"));
+        json.put("id_token_signing_alg_values_supported", new JSONArray().put("HS256"));
+
+        return json;
+    }
+
+    private void token(final HttpExchange exchange) throws IOException {
+        final String nonce = codes.remove(StringUtils.defaultString(getFormParameter(exchange, "code")));
+        if (nonce == null) {
+            writeJson(exchange, 400, new JSONObject().put("error", "invalid_grant"));
+            return;
+        }
+
+        final long now = System.currentTimeMillis() / 1000;
+        final JSONObject claims = new JSONObject();
+        claims.put("iss", issuer);
+        claims.put("sub", "jdoe");
+        claims.put("aud", CLIENT_ID);
+        claims.put("iat", now);
+        claims.put("exp", now + 3600);
+        claims.put("nonce", nonce);
+
+        final JSONObject json = new JSONObject();
+        json.put("access_token", "at." + UUID.randomUUID());
+        json.put("token_type", "bearer");
+        json.put("expires_in", 300);
+        try {
+            json.put("id_token", sign(claims));
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        writeJson(exchange, 200, json);
+    }
+
+    private void userInfo(final HttpExchange exchange) throws IOException {
+        final JSONObject json = new JSONObject();
+        json.put("sub", "jdoe");
+        for (int i = 0; i < attributes; i++) {
+            json.put("claim" + i, "value " + i);
+        }
+
+        final List<String> memberOf = new ArrayList<String>(groups);
+        for (int i = 0; i < groups; i++) {
+            memberOf.add("cn=group" + i + ",ou=groups,o=gluu");
+        }
+        json.put("memberOf", new JSONArray(memberOf));
+
+        writeJson(exchange, 200, json);
+    }
+
+    private String sign(final JSONObject claims) throws GeneralSecurityException {
+        final String signingInput = toBase64(new JSONObject().put("alg", "HS256").put("typ", "JWT").toString()) + "."
+                + toBase64(claims.toString());
+
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(CLIENT_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+
+        return signingInput + "." + ENCODER.encodeToString(mac.doFinal(signingInput.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String getFormParameter(final HttpExchange exchange, final String name) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            final byte[] buffer = new byte[1024];
+            for (int read; (read = in.read(buffer)) != -1;) {
+                body.write(buffer, 0, read);
+            }
+        }
+
+        for (final String pair : StringUtils.split(new String(body.toByteArray(), StandardCharsets.UTF_8), '&')) {
+            if (pair.startsWith(name + "=")) {
+                return URLDecoder.decode(pair.substring(name.length() + 1), "UTF-8");
+            }
+        }
+
+        return null;
+    }
+
+    private static void writeJson(final HttpExchange exchange, final int status, final JSONObject json) throws IOException {
+        final byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String toBase64(final String value) {
+        return ENCODER.encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
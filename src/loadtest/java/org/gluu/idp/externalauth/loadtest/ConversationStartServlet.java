@@ -0,0 +1,29 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+
+/**
+ * Starts external authentication conversation like the IdP login flow does and hands over to the oxAuth servlet
+ */
+final class ConversationStartServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AtomicLong conversations = new AtomicLong();
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String key = "e" + conversations.incrementAndGet() + "s1";
+        request.getSession().setAttribute(ExternalAuthentication.CONVERSATION_KEY + key, new LoadTestExternalAuthentication());
+
+        response.sendRedirect(request.getContextPath() + "/Authn/oxAuth?" + ExternalAuthentication.CONVERSATION_KEY + "=" + key);
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exact latency samples of one virtual user. Recorders are merged after the run, so recording is not synchronized
+ */
+final class LatencyRecorder {
+
+    private long[] samples = new long[1024];
+    private int count;
+
+    void record(final long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    static LatencyRecorder merge(final Iterable<LatencyRecorder> recorders) {
+        final LatencyRecorder result = new LatencyRecorder();
+        for (final LatencyRecorder recorder : recorders) {
+            for (int i = 0; i < recorder.count; i++) {
+                result.record(recorder.samples[i]);
+            }
+        }
+        Arrays.sort(result.samples, 0, result.count);
+
+        return result;
+    }
+
+    /**
+     * Percentile of merged (sorted) samples in milliseconds, by nearest rank
+     */
+    double getPercentileMillis(final double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        final int rank = (int) Math.ceil(percentile * count);
+        return toMillis(samples[Math.max(0, Math.min(count, rank) - 1)]);
+    }
+
+    double getMaxMillis() {
+        return count == 0 ? 0 : toMillis(samples[count - 1]);
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
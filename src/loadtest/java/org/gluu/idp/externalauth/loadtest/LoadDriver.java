@@ -0,0 +1,195 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Virtual users which repeat the whole login: IdP conversation start, redirect to OpenID Provider,
+ * authorization and callback with translation. Every login uses new IdP session.
+ */
+final class LoadDriver {
+
+    static final String FLOW = "flow";
+    static final String REDIRECT = "redirect";
+    static final String CALLBACK = "callback";
+
+    private final URI startUrl;
+    private final int users;
+
+    private final List<VirtualUser> virtualUsers = new ArrayList<VirtualUser>();
+    private final Map<String, LongAdder> errors = new TreeMap<String, LongAdder>();
+
+    private volatile boolean running;
+    private volatile boolean recording;
+
+    LoadDriver(final URI startUrl, final int users) {
+        this.startUrl = startUrl;
+        this.users = users;
+    }
+
+    /**
+     * Run virtual users. Samples are recorded only after warm-up
+     *
+     * @return measurement time in nanoseconds
+     */
+    long run(final long warmupMillis, final long durationMillis) throws InterruptedException {
+        final List<Thread> threads = new ArrayList<Thread>(users);
+        this.running = true;
+        for (int i = 0; i < users; i++) {
+            final VirtualUser virtualUser = new VirtualUser();
+            virtualUsers.add(virtualUser);
+
+            final Thread thread = new Thread(virtualUser, "loadtest-user-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        TimeUnit.MILLISECONDS.sleep(warmupMillis);
+        this.recording = true;
+        final long start = System.nanoTime();
+
+        TimeUnit.MILLISECONDS.sleep(durationMillis);
+        this.recording = false;
+        final long duration = System.nanoTime() - start;
+
+        this.running = false;
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        return duration;
+    }
+
+    LatencyRecorder getLatencies(final String step) {
+        final List<LatencyRecorder> recorders = new ArrayList<LatencyRecorder>(virtualUsers.size());
+        for (final VirtualUser virtualUser : virtualUsers) {
+            switch (step) {
+            case REDIRECT:
+                recorders.add(virtualUser.redirectLatencies);
+                break;
+            case CALLBACK:
+                recorders.add(virtualUser.callbackLatencies);
+                break;
+            default:
+                recorders.add(virtualUser.flowLatencies);
+            }
+        }
+
+        return LatencyRecorder.merge(recorders);
+    }
+
+    Map<String, Long> getErrors() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        synchronized (errors) {
+            for (final Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().sum());
+            }
+        }
+
+        return result;
+    }
+
+    private void countError(final String error) {
+        if (!recording) {
+            return;
+        }
+
+        synchronized (errors) {
+            errors.computeIfAbsent(error, key -> new LongAdder()).increment();
+        }
+    }
+
+    private final class VirtualUser implements Runnable {
+
+        private final LatencyRecorder flowLatencies = new LatencyRecorder();
+        private final LatencyRecorder redirectLatencies = new LatencyRecorder();
+        private final LatencyRecorder callbackLatencies = new LatencyRecorder();
+
+        @Override
+        public void run() {
+            final RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(5000).setSocketTimeout(60000).build();
+            final BasicCookieStore cookieStore = new BasicCookieStore();
+            try (CloseableHttpClient httpClient = HttpClients.custom().disableRedirectHandling().setDefaultCookieStore(cookieStore)
+                    .setDefaultRequestConfig(requestConfig).setMaxConnPerRoute(4).build()) {
+                while (running) {
+                    cookieStore.clear();
+                    login(httpClient);
+                }
+            } catch (IOException ex) {
+                countError("client: " + ex.getClass().getSimpleName());
+            }
+        }
+
+        private void login(final CloseableHttpClient httpClient) {
+            try {
+                final long start = System.nanoTime();
+                final URI conversationUrl = redirect(httpClient, startUrl, "start");
+
+                final long redirectStart = System.nanoTime();
+                final URI authorizationUrl = redirect(httpClient, conversationUrl, REDIRECT);
+                final long redirectTime = System.nanoTime() - redirectStart;
+
+                final URI callbackUrl = redirect(httpClient, authorizationUrl, "authorize");
+
+                final long callbackStart = System.nanoTime();
+                final HttpResponse response = httpClient.execute(new HttpGet(callbackUrl));
+                final int status = response.getStatusLine().getStatusCode();
+                EntityUtils.consume(response.getEntity());
+                final long end = System.nanoTime();
+
+                if (status != 200) {
+                    countError(CALLBACK + ": HTTP " + status);
+                    return;
+                }
+
+                if (recording) {
+                    redirectLatencies.record(redirectTime);
+                    callbackLatencies.record(end - callbackStart);
+                    flowLatencies.record(end - start);
+                }
+            } catch (StepException ex) {
+                countError(ex.getMessage());
+            } catch (IOException ex) {
+                countError("io: " + ex.getClass().getSimpleName());
+            }
+        }
+
+        private URI redirect(final CloseableHttpClient httpClient, final URI url, final String step) throws IOException {
+            final HttpResponse response = httpClient.execute(new HttpGet(url));
+            EntityUtils.consume(response.getEntity());
+
+            final Header location = response.getFirstHeader("Location");
+            if ((response.getStatusLine().getStatusCode() != 302) || (location == null)) {
+                throw new StepException(step + ": HTTP " + response.getStatusLine().getStatusCode());
+            }
+
+            return url.resolve(location.getValue());
+        }
+    }
+
+    private static final class StepException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        StepException(final String message) {
+            super(message);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+
+import org.gluu.idp.externalauth.openid.conf.IdpAppConfiguration;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.gluu.util.properties.FileConfiguration;
+
+/**
+ * Builds {@link IdpConfiguration} from local values instead of oxidp.properties and LDAP
+ * <p>
+ * Only the accessors of the loaded sources are stubbed, typed properties are read by the real methods.
+ */
+final class LoadTestConfiguration {
+
+    static final String CLIENT_ID = "@!1111!0008!LOAD.TEST";
+
+    private LoadTestConfiguration() {
+    }
+
+    /**
+     * @param providerUrl URL of the stand-in OpenID Provider
+     * @param redirectUrl callback URL of the oxAuth servlet
+     * @param propertiesFile optional file with oxidp_* tuning properties
+     */
+    static IdpConfiguration create(final String providerUrl, final String redirectUrl, final String propertiesFile) {
+        final IdpAppConfiguration appConfiguration = new IdpAppConfiguration();
+        appConfiguration.setOpenIdProviderUrl(providerUrl);
+        appConfiguration.setOpenIdClientId(CLIENT_ID);
+        appConfiguration.setOpenIdRedirectUrl(redirectUrl);
+        appConfiguration.setOpenIdPostLogoutRedirectUri(redirectUrl);
+        appConfiguration.setOpenIdScopes(Arrays.asList("openid", "profile", "email", "user_name"));
+
+        // Mock doesn't run the constructor, so it doesn't try to load files and LDAP
+        final IdpConfiguration configuration = mock(IdpConfiguration.class, CALLS_REAL_METHODS);
+        doReturn((propertiesFile == null) ? null : new FileConfiguration(propertiesFile)).when(configuration).getLdapConfiguration();
+        doReturn(appConfiguration).when(configuration).getAppConfiguration();
+        doAnswer(returnsFirstArg()).when(configuration).decrypt(anyString());
+
+        return configuration;
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.opensaml.saml.common.SAMLObject;
+
+import net.shibboleth.idp.authn.ExternalAuthentication;
+import net.shibboleth.idp.authn.ExternalAuthenticationException;
+
+/**
+ * External authentication conversation which stands in for the IdP login flow
+ * <p>
+ * On finish it answers with <code>200 OK</code> if the translators produced a principal, otherwise with
+ * <code>401</code> and the authentication error, so the load driver can count failed logins.
+ */
+final class LoadTestExternalAuthentication extends ExternalAuthentication {
+
+    static final String RELYING_PARTY_ID = "https://sp.example.org/shibboleth";
+
+    private final ProfileRequestContext<?, ?> profileRequestContext;
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    LoadTestExternalAuthentication() {
+        final ProfileRequestContext context = new ProfileRequestContext();
+        context.setInboundMessageContext(new MessageContext<SAMLObject>());
+        this.profileRequestContext = context;
+    }
+
+    @Override
+    protected void doStart(final HttpServletRequest request) throws ExternalAuthenticationException {
+        request.setAttribute(ExternalAuthentication.FORCE_AUTHN_PARAM, Boolean.FALSE);
+        request.setAttribute(ExternalAuthentication.PASSIVE_AUTHN_PARAM, Boolean.FALSE);
+        request.setAttribute(ExternalAuthentication.RELYING_PARTY_PARAM, RELYING_PARTY_ID);
+    }
+
+    @Override
+    protected void doFinish(final HttpServletRequest request, final HttpServletResponse response)
+            throws ExternalAuthenticationException, IOException {
+        final Object error = request.getAttribute(ExternalAuthentication.AUTHENTICATION_ERROR_KEY);
+        if (error != null) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, error.toString());
+            return;
+        }
+
+        if ((request.getAttribute(ExternalAuthentication.SUBJECT_KEY) == null)
+                && (request.getAttribute(ExternalAuthentication.PRINCIPAL_NAME_KEY) == null)) {
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED, "NoPrincipal");
+            return;
+        }
+
+        response.setContentType("text/plain");
+        response.getWriter().write("OK");
+    }
+
+    @Override
+    protected ProfileRequestContext<?, ?> getProfileRequestContext(final HttpServletRequest request) throws ExternalAuthenticationException {
+        return profileRequestContext;
+    }
+
+}
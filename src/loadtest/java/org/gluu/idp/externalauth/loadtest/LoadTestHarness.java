@@ -0,0 +1,122 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.idp.externalauth.metrics.IdpMetricsExporter;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.web.context.WebApplicationContext;
+
+/**
+ * End-to-end load test of the module without oxAuth and LDAP
+ * <p>
+ * Starts a stand-in OpenID Provider and {@link org.gluu.idp.externalauth.ShibOxAuthAuthServlet} in embedded Jetty,
+ * drives redirect, callback and translation with concurrent virtual users and reports throughput and latency
+ * percentiles. Translator properties (<code>shib.oxauth.*</code>) are taken from system properties.
+ */
+public final class LoadTestHarness {
+
+    private LoadTestHarness() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final LoadTestOptions options;
+        try {
+            options = new LoadTestOptions(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(LoadTestOptions.usage());
+            System.exit(1);
+            return;
+        }
+        if (options.has("help")) {
+            System.out.println(LoadTestOptions.usage());
+            return;
+        }
+
+        final MockOpenIdProvider openIdProvider = new MockOpenIdProvider(LoadTestConfiguration.CLIENT_ID, options.getInt("op-latency", 0),
+                options.getInt("op-jitter", 0), options.getDouble("op-error-rate", 0), options.getInt("op-groups", 10));
+        openIdProvider.start();
+
+        final Server server = new Server(new QueuedThreadPool(options.getInt("server-threads", 200)));
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+        // Bind before start, the callback URL has to be known when the servlet is initialized
+        connector.open();
+
+        final String idpUrl = "http://127.0.0.1:" + connector.getLocalPort() + "/idp";
+        final IdpConfiguration configuration = LoadTestConfiguration.create(openIdProvider.getIssuer(), idpUrl + "/Authn/oxAuth",
+                options.getString("config", null));
+        startIdp(server, configuration);
+
+        final int users = options.getInt("users", 16);
+        final LoadDriver driver = new LoadDriver(URI.create(idpUrl + "/profile/start"), users);
+        System.out.printf("Running %d users: warm-up %ds, measurement %ds, OP latency %dms (+%dms jitter), OP error rate %.3f%n", users,
+                options.getInt("warmup", 10), options.getInt("duration", 30), options.getInt("op-latency", 0), options.getInt("op-jitter", 0),
+                options.getDouble("op-error-rate", 0));
+
+        final long duration = driver.run(TimeUnit.SECONDS.toMillis(options.getInt("warmup", 10)),
+                TimeUnit.SECONDS.toMillis(options.getInt("duration", 30)));
+
+        report(driver, duration, openIdProvider);
+        if (options.has("metrics")) {
+            final Writer writer = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            new IdpMetricsExporter(IdpMetrics.instance()).writePrometheus(writer);
+            writer.flush();
+        }
+
+        server.stop();
+        openIdProvider.stop();
+    }
+
+    private static void startIdp(final Server server, final IdpConfiguration configuration) throws Exception {
+        final GenericApplicationContext applicationContext = new GenericApplicationContext();
+        applicationContext.refresh();
+
+        final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/idp");
+        context.setAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE, applicationContext);
+        context.getSessionHandler().setMaxInactiveInterval(60);
+        context.addServlet(new ServletHolder(new ConversationStartServlet()), "/profile/start");
+
+        final ServletHolder servletHolder = new ServletHolder(new LoadTestServlet(configuration));
+        servletHolder.setAsyncSupported(true);
+        servletHolder.setInitOrder(0);
+        context.addServlet(servletHolder, "/Authn/oxAuth/*");
+
+        server.setHandler(context);
+        server.start();
+    }
+
+    private static void report(final LoadDriver driver, final long durationNanos, final MockOpenIdProvider openIdProvider) {
+        final double seconds = durationNanos / (double) TimeUnit.SECONDS.toNanos(1);
+
+        System.out.printf("%n%-10s %10s %10s %10s %10s %10s %10s%n", "step", "count", "per sec", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (final String step : new String[] { LoadDriver.REDIRECT, LoadDriver.CALLBACK, LoadDriver.FLOW }) {
+            final LatencyRecorder latencies = driver.getLatencies(step);
+            System.out.printf("%-10s %10d %10.1f %10.2f %10.2f %10.2f %10.2f%n", step, latencies.getCount(), latencies.getCount() / seconds,
+                    latencies.getPercentileMillis(0.5), latencies.getPercentileMillis(0.99), latencies.getPercentileMillis(0.999),
+                    latencies.getMaxMillis());
+        }
+
+        final Map<String, Long> errors = driver.getErrors();
+        System.out.printf("%nFailed logins: %d (OP injected errors: %d)%n", errors.values().stream().mapToLong(Long::longValue).sum(),
+                openIdProvider.getInjectedErrors());
+        for (final Map.Entry<String, Long> entry : errors.entrySet()) {
+            System.out.printf("  %-30s %d%n", entry.getKey(), entry.getValue());
+        }
+    }
+
+}
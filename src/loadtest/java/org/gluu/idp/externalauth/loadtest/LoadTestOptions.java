@@ -0,0 +1,59 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Command line options in <code>--name=value</code> form
+ */
+final class LoadTestOptions {
+
+    private final Map<String, String> options = new HashMap<String, String>();
+
+    LoadTestOptions(final String[] args) {
+        for (final String arg : args) {
+            if (StringUtils.isBlank(arg)) {
+                continue;
+            }
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+
+            final String option = arg.substring(2);
+            options.put(StringUtils.substringBefore(option, "="), option.contains("=") ? StringUtils.substringAfter(option, "=") : "true");
+        }
+    }
+
+    boolean has(final String name) {
+        return options.containsKey(name);
+    }
+
+    String getString(final String name, final String defaultValue) {
+        return StringUtils.defaultIfEmpty(options.get(name), defaultValue);
+    }
+
+    int getInt(final String name, final int defaultValue) {
+        return has(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    double getDouble(final String name, final double defaultValue) {
+        return has(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    static String usage() {
+        return "Options:\n"
+                + "  --users=16              concurrent virtual users\n"
+                + "  --duration=30           measurement time, in seconds\n"
+                + "  --warmup=10             warm-up time, in seconds\n"
+                + "  --server-threads=200    maximum threads of IdP container\n"
+                + "  --op-latency=0          token and userinfo endpoint latency, in milliseconds\n"
+                + "  --op-jitter=0           random extra latency, in milliseconds\n"
+                + "  --op-error-rate=0       share of token and userinfo requests failed with HTTP 500, 0..1\n"
+                + "  --op-groups=10          number of memberOf values in userinfo\n"
+                + "  --config=<file>         oxidp.properties with tuning properties (oxidp_*)\n"
+                + "  --metrics               print module metrics at the end\n";
+    }
+
+}
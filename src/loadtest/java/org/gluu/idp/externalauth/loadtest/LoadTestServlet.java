@@ -0,0 +1,24 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import org.gluu.idp.externalauth.ShibOxAuthAuthServlet;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+
+/**
+ * oxAuth servlet which uses the load test configuration
+ */
+final class LoadTestServlet extends ShibOxAuthAuthServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient IdpConfiguration configuration;
+
+    LoadTestServlet(final IdpConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    @Override
+    protected IdpConfiguration getConfiguration() {
+        return configuration;
+    }
+
+}
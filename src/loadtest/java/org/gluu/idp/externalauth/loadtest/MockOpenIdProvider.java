@@ -0,0 +1,290 @@
+package org.gluu.idp.externalauth.loadtest;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Local stand-in of oxAuth which serves discovery, JWKS, authorization, token and userinfo endpoints
+ * <p>
+ * Authorization endpoint redirects back immediately with a new code. Token and userinfo endpoints can be
+ * slowed down and can fail with HTTP 500 to check behavior of the module when OpenID Provider degrades.
+ */
+final class MockOpenIdProvider {
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final String KEY_ID = "loadtest-rs256";
+
+    private final String clientId;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+    private final int groups;
+
+    private final KeyPair keyPair;
+    private final Map<String, String> codes = new ConcurrentHashMap<String, String>();
+    private final AtomicLong users = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    private Server server;
+    private String issuer;
+
+    MockOpenIdProvider(final String clientId, final long latencyMillis, final long jitterMillis, final double errorRate, final int groups)
+            throws GeneralSecurityException {
+        this.clientId = clientId;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.groups = groups;
+
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        this.keyPair = generator.generateKeyPair();
+    }
+
+    void start() throws Exception {
+        this.server = new Server();
+        final ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+
+        final ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/oxauth");
+        context.addServlet(new ServletHolder(new EndpointServlet()), "/*");
+        server.setHandler(context);
+        server.start();
+
+        this.issuer = "http://127.0.0.1:" + connector.getLocalPort() + "/oxauth";
+    }
+
+    void stop() throws Exception {
+        server.stop();
+    }
+
+    String getIssuer() {
+        return issuer;
+    }
+
+    long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    private final class EndpointServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void service(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+            final String path = StringUtils.defaultString(request.getPathInfo());
+            try {
+                switch (path) {
+                case "/.well-known/openid-configuration":
+                    writeJson(response, discovery());
+                    break;
+                case "/restv1/jwks":
+                    writeJson(response, jwks());
+                    break;
+                case "/restv1/authorize":
+                    authorize(request, response);
+                    break;
+                case "/restv1/token":
+                    if (degrade(response)) {
+                        token(request, response);
+                    }
+                    break;
+                case "/restv1/userinfo":
+                    if (degrade(response)) {
+                        userInfo(request, response);
+                    }
+                    break;
+                default:
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                }
+            } catch (GeneralSecurityException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+
+    private JSONObject discovery() {
+        final JSONObject json = new JSONObject();
+        json.put("issuer", issuer);
+        json.put("authorization_endpoint", issuer + "/restv1/authorize");
+        json.put("token_endpoint", issuer + "/restv1/token");
+        json.put("userinfo_endpoint", issuer + "/restv1/userinfo");
+        json.put("end_session_endpoint", issuer + "/restv1/end_session");
+        json.put("jwks_uri", issuer + "/restv1/jwks");
+        json.put("response_types_supported", new JSONArray().put("code"));
+        json.put("id_token_signing_alg_values_supported", new JSONArray().put("RS256"));
+
+        return json;
+    }
+
+    private JSONObject jwks() {
+        final RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+
+        final JSONObject key = new JSONObject();
+        key.put("kid", KEY_ID);
+        key.put("kty", "RSA");
+        key.put("use", "sig");
+        key.put("alg", "RS256");
+        key.put("n", toBase64(publicKey.getModulus()));
+        key.put("e", toBase64(publicKey.getPublicExponent()));
+
+        return new JSONObject().put("keys", new JSONArray().put(key));
+    }
+
+    private void authorize(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String code = UUID.randomUUID().toString();
+        codes.put(code, StringUtils.defaultString(request.getParameter("nonce")));
+
+        response.sendRedirect(request.getParameter("redirect_uri") + "?code=" + code + "&state="
+                + URLEncoder.encode(request.getParameter("state"), "UTF-8"));
+    }
+
+    private void token(final HttpServletRequest request, final HttpServletResponse response) throws IOException, GeneralSecurityException {
+        final String nonce = codes.remove(StringUtils.defaultString(request.getParameter("code")));
+        if (nonce == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            writeJson(response, new JSONObject().put("error", "invalid_grant"));
+            return;
+        }
+
+        final String subject = "user" + users.incrementAndGet();
+        final long now = System.currentTimeMillis() / 1000;
+
+        final JSONObject claims = new JSONObject();
+        claims.put("iss", issuer);
+        claims.put("sub", subject);
+        claims.put("aud", clientId);
+        claims.put("iat", now);
+        claims.put("exp", now + 3600);
+        claims.put("nonce", nonce);
+        claims.put("sid", UUID.randomUUID().toString());
+        claims.put("uid", subject);
+        claims.put("email", subject + "@example.org");
+
+        final JSONObject json = new JSONObject();
+        json.put("access_token", "at." + subject);
+        json.put("token_type", "bearer");
+        json.put("expires_in", 300);
+        json.put("id_token", sign(claims));
+        writeJson(response, json);
+    }
+
+    private void userInfo(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        String accessToken = StringUtils.removeStart(request.getHeader("Authorization"), "Bearer ");
+        if (StringUtils.isEmpty(accessToken)) {
+            accessToken = request.getParameter("access_token");
+        }
+        if (!StringUtils.startsWith(accessToken, "at.")) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            writeJson(response, new JSONObject().put("error", "invalid_token"));
+            return;
+        }
+
+        final String subject = accessToken.substring(3);
+        final List<String> memberOf = new ArrayList<String>(groups);
+        for (int i = 0; i < groups; i++) {
+            memberOf.add("cn=group" + i + ",ou=groups,o=gluu");
+        }
+
+        final JSONObject json = new JSONObject();
+        json.put("sub", subject);
+        json.put("uid", subject);
+        json.put("email", subject + "@example.org");
+        json.put("name", "Load Test " + subject);
+        json.put("memberOf", new JSONArray(memberOf));
+        writeJson(response, json);
+    }
+
+    /**
+     * Apply configured latency and error injection
+     *
+     * @return <code>false</code> if request was failed
+     */
+    private boolean degrade(final HttpServletResponse response) throws IOException {
+        final long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if ((errorRate > 0) && (ThreadLocalRandom.current().nextDouble() < errorRate)) {
+            injectedErrors.incrementAndGet();
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Injected error");
+            return false;
+        }
+
+        return true;
+    }
+
+    private String sign(final JSONObject claims) throws GeneralSecurityException {
+        final JSONObject header = new JSONObject();
+        header.put("alg", "RS256");
+        header.put("typ", "JWT");
+        header.put("kid", KEY_ID);
+
+        final String signingInput = toBase64(header.toString()) + "." + toBase64(claims.toString());
+
+        final Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+
+        return signingInput + "." + ENCODER.encodeToString(signature.sign());
+    }
+
+    private static void writeJson(final HttpServletResponse response, final JSONObject json) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.getWriter().write(json.toString());
+    }
+
+    private static String toBase64(final String value) {
+        return ENCODER.encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String toBase64(final BigInteger value) {
+        final byte[] bytes = value.toByteArray();
+        if ((bytes.length > 1) && (bytes[0] == 0)) {
+            // Unsigned big-endian representation
+            final byte[] unsigned = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+            return ENCODER.encodeToString(unsigned);
+        }
+
+        return ENCODER.encodeToString(bytes);
+    }
+
+}
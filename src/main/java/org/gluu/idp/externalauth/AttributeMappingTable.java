@@ -0,0 +1,213 @@
+package org.gluu.idp.externalauth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang.StringUtils;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.authn.principal.IdPAttributePrincipal;
+
+/**
+ * Claim to IdP attribute mapping compiled once from the configuration
+ * <p>
+ * When <code>shib.oxauth.attributeMapping</code> is set, only the listed claims are released (allowlist),
+ * optionally renamed with <code>claim:attributeId</code> syntax. Otherwise all claims are released under their own names.
+ * Values are de-duplicated and capped by count and by total UTF-8 size per attribute. Skipped and truncated attributes
+ * are ordinary user data, so they are counted in <code>attribute.*</code> metrics and logged at debug level only.
+ */
+public final class AttributeMappingTable {
+
+    private static final String PROPERTY_PREFIX = "shib.oxauth.attributeMapping";
+
+    private final Logger logger = LoggerFactory.getLogger(AttributeMappingTable.class);
+
+    private final Map<String, Mapping> mappings;
+    private final Mapping defaultMapping;
+
+    private final LongAdder emptyAttributes = IdpMetrics.instance().counter("attribute.empty");
+    private final LongAdder valueCountTruncations = IdpMetrics.instance().counter("attribute.truncated.values");
+    private final LongAdder sizeTruncations = IdpMetrics.instance().counter("attribute.truncated.bytes");
+
+    /**
+     * Pass-through mapping without limits
+     */
+    public AttributeMappingTable() {
+        this.mappings = null;
+        this.defaultMapping = new Mapping(null, 0, 0);
+    }
+
+    public AttributeMappingTable(final Environment environment) {
+        final int maxValues = environment.getProperty(PROPERTY_PREFIX + ".maxValues", Integer.class, 0);
+        final int maxBytes = environment.getProperty(PROPERTY_PREFIX + ".maxBytes", Integer.class, 0);
+        this.defaultMapping = new Mapping(null, maxValues, maxBytes);
+
+        final String mappingList = environment.getProperty(PROPERTY_PREFIX);
+        if (StringUtils.isBlank(mappingList)) {
+            this.mappings = null;
+            logger.debug("Attribute mapping is not defined. All claims will be released");
+            return;
+        }
+
+        final Map<String, Mapping> result = new HashMap<String, Mapping>();
+        for (final String item : StringUtils.split(mappingList, ", ")) {
+            final String claim = StringUtils.substringBefore(item, ":");
+            final String attributeId = StringUtils.defaultIfEmpty(StringUtils.substringAfter(item, ":"), claim);
+
+            result.put(claim, new Mapping(attributeId,
+                    environment.getProperty(PROPERTY_PREFIX + "." + attributeId + ".maxValues", Integer.class, maxValues),
+                    environment.getProperty(PROPERTY_PREFIX + "." + attributeId + ".maxBytes", Integer.class, maxBytes)));
+        }
+        this.mappings = Collections.unmodifiableMap(result);
+        logger.debug("Compiled attribute mapping for claims {}", mappings.keySet());
+    }
+
+    /**
+     * Convert user profile attributes to IdP attribute principals
+     */
+    public List<IdPAttributePrincipal> produceIdpAttributePrincipals(final Map<String, Object> attributes) {
+        return toIdpAttributePrincipals(produceAttributeValues(attributes));
+    }
+
+    /**
+     * Map and limit user profile attributes
+     *
+     * @return unmodifiable map of attribute id to its values, which can be shared between logins
+     */
+    public Map<String, List<String>> produceAttributeValues(final Map<String, Object> attributes) {
+        final Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+        for (final Map.Entry<String, Object> entry : attributes.entrySet()) {
+            final Mapping mapping = (mappings == null) ? defaultMapping : mappings.get(entry.getKey());
+            if ((mapping == null) || (entry.getValue() == null)) {
+                continue;
+            }
+
+            final String attributeId = (mapping.attributeId == null) ? entry.getKey() : mapping.attributeId;
+            final List<String> attributeValues = mapping.toAttributeValues(attributeId, entry.getValue());
+            if (attributeValues.isEmpty()) {
+                emptyAttributes.increment();
+                logger.debug("Skipped attribute {} since it contains no values", attributeId);
+                continue;
+            }
+
+            final List<String> previousValues = result.get(attributeId);
+            if (previousValues == null) {
+                result.put(attributeId, Collections.unmodifiableList(attributeValues));
+            } else {
+                // Several claims are mapped to the same attribute
+                final List<String> values = new ArrayList<String>(previousValues);
+                values.addAll(attributeValues);
+                result.put(attributeId, Collections.unmodifiableList(values));
+            }
+            logger.trace("Added attribute {} with {} values", attributeId, attributeValues.size());
+        }
+
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Build IdP attribute principals. They are mutable, so new ones are built for every login
+     */
+    public List<IdPAttributePrincipal> toIdpAttributePrincipals(final Map<String, List<String>> attributeValues) {
+        final List<IdPAttributePrincipal> principals = new ArrayList<IdPAttributePrincipal>(attributeValues.size());
+        for (final Map.Entry<String, List<String>> entry : attributeValues.entrySet()) {
+            final List<StringAttributeValue> values = new ArrayList<StringAttributeValue>(entry.getValue().size());
+            for (final String value : entry.getValue()) {
+                values.add(new StringAttributeValue(value));
+            }
+
+            final IdPAttribute attr = new IdPAttribute(entry.getKey());
+            attr.setValues(values);
+            principals.add(new IdPAttributePrincipal(attr));
+        }
+
+        return principals;
+    }
+
+    private final class Mapping {
+
+        private final String attributeId;
+        private final int maxValues;
+        private final int maxBytes;
+
+        Mapping(final String attributeId, final int maxValues, final int maxBytes) {
+            this.attributeId = attributeId;
+            this.maxValues = maxValues;
+            this.maxBytes = maxBytes;
+        }
+
+        List<String> toAttributeValues(final String attributeId, final Object value) {
+            if (!(value instanceof Collection)) {
+                final String stringValue = value.toString();
+                if (StringUtils.isEmpty(stringValue) || ((maxBytes > 0) && (utf8Length(stringValue) > maxBytes))) {
+                    return Collections.emptyList();
+                }
+
+                return Collections.singletonList(stringValue);
+            }
+
+            final Collection<?> values = (Collection<?>) value;
+            final Set<String> uniqueValues = new LinkedHashSet<String>(Math.max(16, values.size() * 4 / 3));
+            int bytes = 0;
+            for (final Object item : values) {
+                if ((maxValues > 0) && (uniqueValues.size() >= maxValues)) {
+                    valueCountTruncations.increment();
+                    logger.debug("Attribute {} has more than {} values. Remaining values are dropped", attributeId, maxValues);
+                    break;
+                }
+
+                final String stringValue = (item == null) ? null : item.toString();
+                if (StringUtils.isEmpty(stringValue) || uniqueValues.contains(stringValue)) {
+                    continue;
+                }
+
+                if (maxBytes > 0) {
+                    final int length = utf8Length(stringValue);
+                    if (bytes + length > maxBytes) {
+                        sizeTruncations.increment();
+                        logger.debug("Attribute {} is larger than {} bytes. Remaining values are dropped", attributeId, maxBytes);
+                        break;
+                    }
+                    bytes += length;
+                }
+
+                uniqueValues.add(stringValue);
+            }
+
+            return new ArrayList<String>(uniqueValues);
+        }
+    }
+
+    private static int utf8Length(final String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char ch = value.charAt(i);
+            if (ch < 0x80) {
+                length++;
+            } else if (ch < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(ch)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+}
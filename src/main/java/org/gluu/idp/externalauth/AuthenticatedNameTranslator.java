@@ -1,7 +1,6 @@
 package org.gluu.idp.externalauth;
 
 import java.security.Principal;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -13,14 +12,13 @@ import javax.security.auth.Subject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.lang.builder.EqualsBuilder;
-import org.apache.commons.lang.builder.HashCodeBuilder;
+import org.gluu.idp.externalauth.openid.client.CachedUserProfile;
 import org.gluu.oxauth.client.auth.user.UserProfile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
 
-import net.shibboleth.idp.attribute.IdPAttribute;
-import net.shibboleth.idp.attribute.StringAttributeValue;
 import net.shibboleth.idp.authn.ExternalAuthentication;
 import net.shibboleth.idp.authn.principal.IdPAttributePrincipal;
 import net.shibboleth.idp.authn.principal.UsernamePrincipal;
@@ -31,9 +29,16 @@ import net.shibboleth.idp.authn.principal.UsernamePrincipal;
  * @author Yuriy Movchan
  * @version 0.1, 09/13/2018
  */
-public class AuthenticatedNameTranslator implements OxAuthToShibTranslator {
+public class AuthenticatedNameTranslator implements OxAuthToShibTranslator, EnvironmentAware {
     private final Logger logger = LoggerFactory.getLogger(AuthenticatedNameTranslator.class);
 
+    private AttributeMappingTable attributeMappingTable = new AttributeMappingTable();
+
+    @Override
+    public void setEnvironment(final Environment environment) {
+        this.attributeMappingTable = new AttributeMappingTable(environment);
+    }
+
     @Override
     public void doTranslation(HttpServletRequest request, HttpServletResponse response, UserProfile userProfile, String authenticationKey)
             throws Exception {
@@ -45,7 +50,7 @@ public class AuthenticatedNameTranslator implements OxAuthToShibTranslator {
         logger.debug("User profile found: '{}'", userProfile);
 
         // Pass authenticated principal back to IdP to finish its part of authentication request processing
-        final Collection<IdPAttributePrincipal> profileAttributes = produceIdpAttributePrincipal(userProfile.getAttributes());
+        final Collection<IdPAttributePrincipal> profileAttributes = getIdpAttributePrincipals(userProfile);
 
         if (!profileAttributes.isEmpty()) {
             logger.debug("Found attributes from oxAuth. Processing...");
@@ -56,7 +61,7 @@ public class AuthenticatedNameTranslator implements OxAuthToShibTranslator {
 
             request.setAttribute(ExternalAuthentication.SUBJECT_KEY, new Subject(false, principals,
                 Collections.emptySet(), Collections.emptySet()));
-            logger.info("Created an IdP subject instance with principals containing attributes for {} ", userProfile.getId());
+            logger.debug("Created an IdP subject instance with principals containing attributes for {} ", userProfile.getId());
 
         } else {
             logger.debug("No attributes released from oxAuth. Creating an IdP principal for {}", userProfile.getId());
@@ -64,39 +69,19 @@ public class AuthenticatedNameTranslator implements OxAuthToShibTranslator {
         }
     }
 
-    @Override
-    public int hashCode() {
-        return HashCodeBuilder.reflectionHashCode(this);
-    }
-
-    @Override
-    public boolean equals(final Object that) {
-        return EqualsBuilder.reflectionEquals(this, that);
-    }
+    /**
+     * Attribute values of a cached profile are mapped once and shared by logins which get the same profile. IdP
+     * attributes are mutable, so every login gets its own principals
+     */
+    private Collection<IdPAttributePrincipal> getIdpAttributePrincipals(final UserProfile userProfile) {
+        if (userProfile instanceof CachedUserProfile) {
+            final Map<String, List<String>> attributeValues = ((CachedUserProfile) userProfile).getDerivedValue(this,
+                    profile -> attributeMappingTable.produceAttributeValues(profile.getAttributes()));
 
-    private Collection<IdPAttributePrincipal> produceIdpAttributePrincipal(final Map<String, Object> casAttributes) {
-        final Set<IdPAttributePrincipal> principals = new HashSet<>();
-        for (final Map.Entry<String, Object> entry : casAttributes.entrySet()) {
-            final IdPAttribute attr = new IdPAttribute(entry.getKey());
-
-            final List<StringAttributeValue> attributeValues = new ArrayList<>();
-            if (entry.getValue() instanceof Collection) {
-                for (final Object value : (Collection) entry.getValue()) {
-                    attributeValues.add(new StringAttributeValue(value.toString()));
-                }
-            } else {
-                attributeValues.add(new StringAttributeValue(entry.getValue().toString()));
-            }
-            if (!attributeValues.isEmpty()) {
-                attr.setValues(attributeValues);
-                logger.debug("Added attribute {} with values {}", entry.getKey(), entry.getValue());
-                principals.add(new IdPAttributePrincipal(attr));
-            } else {
-                logger.warn("Skipped attribute {} since it contains no values", entry.getKey());
-            }
+            return attributeMappingTable.toIdpAttributePrincipals(attributeValues);
         }
 
-        return principals;
+        return attributeMappingTable.produceIdpAttributePrincipals(userProfile.getAttributes());
     }
 
 }
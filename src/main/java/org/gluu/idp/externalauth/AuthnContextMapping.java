@@ -0,0 +1,125 @@
+package org.gluu.idp.externalauth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+
+/**
+ * SAML <code>AuthnContextClassRef</code> to OpenID <code>acr_values</code> mapping compiled once from the configuration
+ * <p>
+ * <code>shib.oxauth.authnContextMapping</code> lists <code>classRef=acr</code> pairs. Class references without
+ * mapping are passed as they are, unless <code>shib.oxauth.authnContextMapping.passThrough</code> is false.
+ * Result is cached per requested list of class references, so a repeated login only does a map lookup.
+ */
+public final class AuthnContextMapping {
+
+    private static final String PROPERTY_PREFIX = "shib.oxauth.authnContextMapping";
+
+    private static final int MAX_CACHED = 256;
+    private static final String NO_ACR_VALUES = "";
+
+    private final Logger logger = LoggerFactory.getLogger(AuthnContextMapping.class);
+
+    private final Map<String, String> mappings;
+    private final boolean passThrough;
+    private final int maxCached;
+
+    // Single class reference is keyed by itself, several by list of them
+    private final ConcurrentHashMap<Object, String> acrValuesCache = new ConcurrentHashMap<Object, String>();
+
+    /**
+     * Class references are passed as <code>acr_values</code> without changes
+     */
+    public AuthnContextMapping() {
+        this.mappings = Collections.emptyMap();
+        this.passThrough = true;
+        this.maxCached = MAX_CACHED;
+    }
+
+    public AuthnContextMapping(final Environment environment) {
+        this.passThrough = environment.getProperty(PROPERTY_PREFIX + ".passThrough", Boolean.class, Boolean.TRUE);
+        this.maxCached = environment.getProperty(PROPERTY_PREFIX + ".cacheSize", Integer.class, MAX_CACHED);
+
+        final String mappingList = environment.getProperty(PROPERTY_PREFIX);
+        if (StringUtils.isBlank(mappingList)) {
+            this.mappings = Collections.emptyMap();
+            logger.debug("AuthnContextClassRef mapping is not defined");
+            return;
+        }
+
+        final Map<String, String> result = new HashMap<String, String>();
+        for (final String item : StringUtils.split(mappingList, ", ")) {
+            final String classRef = StringUtils.substringBefore(item, "=");
+            final String acr = StringUtils.substringAfter(item, "=");
+            if (StringUtils.isEmpty(classRef) || StringUtils.isEmpty(acr)) {
+                logger.warn("Ignoring invalid AuthnContextClassRef mapping '{}'", item);
+                continue;
+            }
+            result.put(classRef, acr);
+        }
+        this.mappings = Collections.unmodifiableMap(result);
+        logger.debug("Compiled AuthnContextClassRef mapping {}", mappings);
+    }
+
+    /**
+     * Space separated <code>acr_values</code> for the requested class references
+     *
+     * @return <code>null</code> if nothing should be requested
+     */
+    public String getAcrValues(final List<AuthnContextClassRef> classRefs) {
+        if ((classRefs == null) || classRefs.isEmpty()) {
+            return null;
+        }
+
+        final Object key;
+        if (classRefs.size() == 1) {
+            key = StringUtils.defaultString(classRefs.get(0).getAuthnContextClassRef());
+        } else {
+            final List<String> values = new ArrayList<String>(classRefs.size());
+            for (final AuthnContextClassRef classRef : classRefs) {
+                values.add(StringUtils.defaultString(classRef.getAuthnContextClassRef()));
+            }
+            key = values;
+        }
+
+        String acrValues = acrValuesCache.get(key);
+        if (acrValues == null) {
+            acrValues = compile(key);
+            // SP requested contexts are a small set, the limit only protects from arbitrary values in requests
+            if (acrValuesCache.size() < maxCached) {
+                acrValuesCache.putIfAbsent(key, acrValues);
+            }
+        }
+
+        return (acrValues == NO_ACR_VALUES) ? null : acrValues;
+    }
+
+    @SuppressWarnings("unchecked")
+    private String compile(final Object key) {
+        final List<String> classRefs = (key instanceof String) ? Collections.singletonList((String) key) : (List<String>) key;
+
+        final Set<String> acrs = new LinkedHashSet<String>();
+        for (final String classRef : classRefs) {
+            final String acr = mappings.get(classRef);
+            if (acr != null) {
+                acrs.add(acr);
+            } else if (passThrough && StringUtils.isNotEmpty(classRef)) {
+                acrs.add(classRef);
+            }
+        }
+
+        return acrs.isEmpty() ? NO_ACR_VALUES : StringUtils.join(acrs, ' ');
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.gluu.idp.externalauth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpSession;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.idp.externalauth.openid.client.LogoutSessionIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.idp.session.SessionException;
+import net.shibboleth.idp.session.SessionManager;
+
+/**
+ * Ends sessions of validated back-channel logout requests on a single background thread
+ * <p>
+ * Requests are queued in a bounded queue and taken in batches, so a burst of logouts (e.g. all sessions of a disabled
+ * account) costs one pass over the sessions found in {@link LogoutSessionIndex}. For every session the Shibboleth IdP
+ * session recorded at login is destroyed through {@link SessionManager} and the HttpSession is invalidated.
+ */
+public class BackChannelLogoutProcessor implements Runnable {
+
+    private final Logger logger = LoggerFactory.getLogger(BackChannelLogoutProcessor.class);
+
+    private final LogoutSessionIndex logoutSessionIndex;
+    private final SessionManager sessionManager;
+    private final BlockingQueue<LogoutRequest> queue;
+    private final int batchSize;
+    private final Thread worker;
+
+    private final LongAdder batches;
+    private final LongAdder invalidatedSessions;
+    private final LongAdder destroyedIdpSessions;
+
+    /**
+     * @param sessionManager IdP session manager or <code>null</code> if it's not available, then only HttpSessions are
+     *            invalidated
+     */
+    public BackChannelLogoutProcessor(final LogoutSessionIndex logoutSessionIndex, final SessionManager sessionManager, final int queueSize,
+            final int batchSize) {
+        this.logoutSessionIndex = logoutSessionIndex;
+        this.sessionManager = sessionManager;
+        this.queue = new ArrayBlockingQueue<LogoutRequest>(queueSize);
+        this.batchSize = batchSize;
+
+        this.worker = new Thread(this, "oxauth-backchannel-logout");
+        this.worker.setDaemon(true);
+
+        final IdpMetrics metrics = IdpMetrics.instance();
+        this.batches = metrics.counter("logout.backchannel.batches");
+        this.invalidatedSessions = metrics.counter("logout.backchannel.sessions");
+        this.destroyedIdpSessions = metrics.counter("logout.backchannel.idpSessions");
+        metrics.gauge("logout.backchannel.queued", () -> queue.size());
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    public void destroy() {
+        worker.interrupt();
+    }
+
+    /**
+     * @return <code>false</code> if IdP session manager isn't available, so only HttpSessions can be invalidated
+     */
+    public boolean canDestroyIdpSessions() {
+        return sessionManager != null;
+    }
+
+    /**
+     * Queue logout of the sessions with the <code>sid</code>, or of all sessions of the user if <code>sid</code> is empty
+     *
+     * @param clientName client which received logout request or <code>null</code> for default client
+     * @return <code>false</code> if queue is full
+     */
+    public boolean submit(final String clientName, final String sid, final String subject) {
+        return queue.offer(new LogoutRequest(clientName, sid, subject));
+    }
+
+    @Override
+    public void run() {
+        final List<LogoutRequest> batch = new ArrayList<LogoutRequest>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                process(batch);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (final RuntimeException ex) {
+                logger.error("Failed to process back-channel logout requests", ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(final List<LogoutRequest> batch) {
+        // Sessions found by both sid and sub of different requests are ended once
+        final Set<LogoutSessionIndex.Binding> bindings = Collections
+                .newSetFromMap(new IdentityHashMap<LogoutSessionIndex.Binding, Boolean>());
+        for (final LogoutRequest request : batch) {
+            bindings.addAll(logoutSessionIndex.getBindings(request.clientName, request.sid, request.subject));
+        }
+
+        for (final LogoutSessionIndex.Binding binding : bindings) {
+            destroyIdpSession(binding.getIdpSessionId());
+
+            final HttpSession session = binding.getSession();
+            if (session == null) {
+                continue;
+            }
+            try {
+                // Binding listener removes session from index
+                session.invalidate();
+                invalidatedSessions.increment();
+            } catch (final IllegalStateException ex) {
+                // Already invalidated
+            }
+        }
+
+        batches.increment();
+        logger.debug("Processed {} back-channel logout requests, ended {} sessions", batch.size(), bindings.size());
+    }
+
+    private void destroyIdpSession(final String idpSessionId) {
+        if ((sessionManager == null) || (idpSessionId == null)) {
+            // Without IdP session id the login didn't complete in IdP on this node
+            return;
+        }
+
+        try {
+            // Unbind also removes secondary indexes of the session, e.g. by SP session
+            sessionManager.destroySession(idpSessionId, true);
+            destroyedIdpSessions.increment();
+        } catch (final SessionException ex) {
+            logger.error("Failed to destroy IdP session", ex);
+        }
+    }
+
+    private static final class LogoutRequest {
+
+        private final String clientName;
+        private final String sid;
+        private final String subject;
+
+        LogoutRequest(final String clientName, final String sid, final String subject) {
+            this.clientName = clientName;
+            this.sid = sid;
+            this.subject = subject;
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+package org.gluu.idp.externalauth;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.gluu.idp.externalauth.openid.client.LogoutSessionIndex;
+
+/**
+ * Records the Shibboleth IdP session created after oxAuth login in the back-channel logout index
+ * <p>
+ * IdP creates its session and sets the session cookie in the flow which continues after this module finished external
+ * authentication, so the id isn't known at callback. The filter reads the cookie from responses of IdP profile
+ * requests in sessions with a pending logout binding; other requests cost one session attribute lookup.
+ */
+@WebFilter(filterName = "IdpSessionCaptureFilter", urlPatterns = { "/profile/*" }, asyncSupported = true)
+public class IdpSessionCaptureFilter implements Filter {
+
+    private static final String COOKIE_PREFIX = LogoutSessionIndex.IDP_SESSION_COOKIE + "=";
+
+    @Override
+    public void init(final FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+            throws IOException, ServletException {
+        final HttpSession session = (request instanceof HttpServletRequest) ? ((HttpServletRequest) request).getSession(false) : null;
+        final boolean pending = (session != null) && isPending(session);
+
+        chain.doFilter(request, response);
+
+        if (!pending || !(response instanceof HttpServletResponse)) {
+            return;
+        }
+
+        final String idpSessionId = getIdpSessionCookie((HttpServletResponse) response);
+        if (idpSessionId != null) {
+            try {
+                LogoutSessionIndex.recordIdpSession(session, idpSessionId);
+            } catch (final IllegalStateException ex) {
+                // Session was invalidated by the request
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private boolean isPending(final HttpSession session) {
+        try {
+            return session.getAttribute(LogoutSessionIndex.PENDING_BINDING_ATTRIBUTE) != null;
+        } catch (final IllegalStateException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return value of the IdP session cookie set on the response, or <code>null</code> if it isn't set
+     */
+    private String getIdpSessionCookie(final HttpServletResponse response) {
+        for (final String header : response.getHeaders("Set-Cookie")) {
+            if (!header.startsWith(COOKIE_PREFIX)) {
+                continue;
+            }
+
+            final int end = header.indexOf(';');
+            final String value = header.substring(COOKIE_PREFIX.length(), (end < 0) ? header.length() : end).trim();
+            // Empty value clears the cookie
+            if (!value.isEmpty()) {
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+}
@@ -0,0 +1,181 @@
+package org.gluu.idp.externalauth;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.gluu.idp.externalauth.openid.client.IdpAuthClient;
+import org.gluu.idp.externalauth.openid.client.IdpAuthClientRegistry;
+import org.gluu.oxauth.client.auth.user.UserProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Warm-up of the module after start, run on a background thread
+ * <p>
+ * Provider metadata and JWKS are preloaded, back-channel connections are opened, and authorization request building
+ * and the built-in translator are run with synthetic data, so the first users after a deploy don't pay for class
+ * loading, TLS handshakes and interpreted code. Custom translators aren't run, they may call external systems.
+ * The module reports ready when warm-up is done, or when metadata couldn't be loaded within the timeout.
+ */
+public class ModuleWarmUp implements Runnable {
+
+    private static final String WARM_UP_AUTHENTICATION_KEY = "warmup";
+    private static final long METADATA_RETRY_MILLIS = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(ModuleWarmUp.class);
+
+    private final IdpAuthClientRegistry clientRegistry;
+    private final Collection<TranslatorChain> translatorChains;
+    private final int connections;
+    private final int iterations;
+    private final long timeoutMillis;
+
+    private volatile boolean done;
+
+    public ModuleWarmUp(final IdpAuthClientRegistry clientRegistry, final Collection<TranslatorChain> translatorChains, final int connections,
+            final int iterations, final long timeoutMillis) {
+        this.clientRegistry = clientRegistry;
+        this.translatorChains = translatorChains;
+        this.connections = connections;
+        this.iterations = iterations;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void start() {
+        final Thread thread = new Thread(this, "oxauth-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public void run() {
+        final long start = System.currentTimeMillis();
+        try {
+            for (final IdpAuthClient client : clientRegistry.getClients()) {
+                if (!preloadMetadata(client, start + timeoutMillis)) {
+                    logger.warn("OpenID Provider metadata of client '{}' is not loaded after {} ms. Skipping its warm-up",
+                            client.getRelyingPartyClientName(), timeoutMillis);
+                    continue;
+                }
+
+                if (connections > 0) {
+                    client.openConnections(connections);
+                }
+                client.warmUpAuthorizationRequests(iterations);
+            }
+
+            warmUpTranslators();
+        } catch (final RuntimeException ex) {
+            logger.error("Warm-up failed", ex);
+        } finally {
+            done = true;
+        }
+        logger.info("Warm-up finished in {} ms", System.currentTimeMillis() - start);
+    }
+
+    private boolean preloadMetadata(final IdpAuthClient client, final long deadline) {
+        while (!client.preloadMetadata()) {
+            if (System.currentTimeMillis() + METADATA_RETRY_MILLIS > deadline) {
+                return false;
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(METADATA_RETRY_MILLIS);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void warmUpTranslators() {
+        final UserProfile userProfile = new UserProfile();
+        userProfile.setId(WARM_UP_AUTHENTICATION_KEY);
+        userProfile.addAttribute("uid", Collections.singletonList(WARM_UP_AUTHENTICATION_KEY));
+        userProfile.addAttribute("mail", Collections.singletonList("warmup@example.org"));
+        userProfile.addAttribute("memberOf", Arrays.asList("cn=group1,o=gluu", "cn=group2,o=gluu"));
+
+        final Map<OxAuthToShibTranslator, Boolean> translators = new IdentityHashMap<OxAuthToShibTranslator, Boolean>();
+        for (final TranslatorChain chain : translatorChains) {
+            for (final OxAuthToShibTranslator translator : chain.getTranslators()) {
+                if (translator instanceof AuthenticatedNameTranslator) {
+                    translators.put(translator, Boolean.TRUE);
+                }
+            }
+        }
+
+        final HttpServletResponse response = newResponse();
+        for (final OxAuthToShibTranslator translator : translators.keySet()) {
+            for (int i = 0; i < iterations; i++) {
+                try {
+                    translator.doTranslation(newRequest(), response, userProfile, WARM_UP_AUTHENTICATION_KEY);
+                } catch (final Exception ex) {
+                    logger.warn("Warm-up of translator {} failed: {}", translator.getClass().getName(), ex.getMessage());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Request which only keeps attributes
+     */
+    private static HttpServletRequest newRequest() {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        return (HttpServletRequest) Proxy.newProxyInstance(ModuleWarmUp.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getAttribute":
+                        return attributes.get(args[0]);
+                    case "setAttribute":
+                        attributes.put((String) args[0], args[1]);
+                        return null;
+                    case "removeAttribute":
+                        attributes.remove(args[0]);
+                        return null;
+                    case "getAttributeNames":
+                        return Collections.enumeration(attributes.keySet());
+                    case "toString":
+                        return "warm-up request";
+                    default:
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    private static HttpServletResponse newResponse() {
+        return (HttpServletResponse) Proxy.newProxyInstance(ModuleWarmUp.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+                (proxy, method, args) -> defaultValue(method.getReturnType()));
+    }
+
+    private static Object defaultValue(final Class<?> type) {
+        if (!type.isPrimitive() || (type == void.class)) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+
+        return 0;
+    }
+
+}
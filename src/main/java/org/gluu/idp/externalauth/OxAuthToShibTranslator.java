@@ -10,7 +10,8 @@ import org.gluu.oxauth.client.auth.user.UserProfile;
  * should only push details into the request and should NOT attempt to call
  * AuthenticationEngine.returnToAuthenticationEngine(request, response);
  * <p>
- * Instance of this type should implement hashcode and equals.
+ * One instance of each translator class is created at startup and shared by all translator chains and requests,
+ * so implementations must be thread safe.
  *
  * @author Yuriy Movchan
  * @version 0.1, 09/13/2018
@@ -1,35 +1,60 @@
 package org.gluu.idp.externalauth;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang.StringUtils;
 import org.gluu.context.J2EContext;
 import org.gluu.context.WebContext;
+import org.gluu.idp.externalauth.audit.AuthnAuditEvent;
+import org.gluu.idp.externalauth.audit.AuthnAuditLog;
+import org.gluu.idp.externalauth.audit.ThrottledErrorLogger;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.idp.externalauth.metrics.IdpMetricsExporter;
+import org.gluu.idp.externalauth.metrics.LatencyTimer;
+import org.gluu.idp.externalauth.metrics.SessionSizeMetrics;
 import org.gluu.idp.externalauth.openid.client.IdpAuthClient;
+import org.gluu.idp.externalauth.openid.client.IdpAuthClientRegistry;
+import org.gluu.idp.externalauth.openid.client.LogoutSessionIndex;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.gluu.idp.externalauth.openid.conf.IdpConfigurationListener;
 import org.gluu.oxauth.client.auth.principal.OpenIdCredentials;
 import org.gluu.oxauth.client.auth.user.UserProfile;
-import org.gluu.oxauth.model.exception.InvalidJwtException;
 import org.gluu.oxauth.model.jwt.Jwt;
+import org.gluu.oxauth.model.jwt.JwtClaimName;
 import org.opensaml.profile.context.ProfileRequestContext;
-import org.opensaml.saml.saml2.core.AuthnContextClassRef;
 import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.core.RequestedAuthnContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.ApplicationContext;
@@ -40,6 +65,7 @@ import org.springframework.web.context.WebApplicationContext;
 import net.shibboleth.idp.authn.AuthnEventIds;
 import net.shibboleth.idp.authn.ExternalAuthentication;
 import net.shibboleth.idp.authn.ExternalAuthenticationException;
+import net.shibboleth.idp.session.SessionManager;
 
 /**
  * A Servlet that validates the oxAuth code and then pushes the authenticated
@@ -48,32 +74,141 @@ import net.shibboleth.idp.authn.ExternalAuthenticationException;
  * @author Yuriy Movchan
  * @version 0.1, 09/13/2018
  */
-@WebServlet(name = "ShibOxAuthAuthServlet", urlPatterns = { "/Authn/oxAuth/*" })
+@WebServlet(name = "ShibOxAuthAuthServlet", urlPatterns = { "/Authn/oxAuth/*" }, asyncSupported = true)
 public class ShibOxAuthAuthServlet extends HttpServlet {
 
     private static final long serialVersionUID = -4864851392327422662L;
 
+    private static final String SESSION_MANAGER_BEAN = "shibboleth.SessionManager";
+
     private final Logger logger = LoggerFactory.getLogger(ShibOxAuthAuthServlet.class);
 
-    private final String OXAUTH_PARAM_ENTITY_ID = "entityId";
     private final String OXAUTH_ATTRIBIUTE_SEND_END_SESSION_REQUEST = "sendEndSession";
 
     @Autowired
     @Qualifier("idpOxAuthClient")
     private IdpAuthClient idpAuthClient;
+    private IdpAuthClientRegistry clientRegistry;
+
+    private TranslatorChain defaultTranslators;
+    private Map<String, TranslatorChain> relyingPartyTranslators;
+    private AuthnContextMapping authnContextMapping;
+
+    private ThreadPoolExecutor callbackExecutor;
+    private volatile long callbackTimeout;
+    private volatile long callbackAbortWait;
+
+    private BackChannelLogoutProcessor backChannelLogoutProcessor;
+
+    private ModuleWarmUp warmUp;
+
+    private AuthnAuditLog auditLog;
+    private final ThrottledErrorLogger errorLogger = new ThrottledErrorLogger(60000);
+
+    private IdpMetricsExporter metricsExporter;
+    private volatile boolean metricsEndpointEnabled;
+    private volatile Set<String> metricsAllowedAddresses;
 
-    private final Set<OxAuthToShibTranslator> translators = new HashSet<OxAuthToShibTranslator>();
+    private transient IdpConfigurationListener configurationListener;
+
+    private final LongAdder callbackRejections = IdpMetrics.instance().counter("callback.async.rejected");
+    private final LongAdder callbackTimeouts = IdpMetrics.instance().counter("callback.async.timeout");
+    private final LongAdder callbackAbandoned = IdpMetrics.instance().counter("callback.async.abandoned");
+    private final LongAdder invalidTokens = IdpMetrics.instance().counter("authn.invalidToken");
+    private final LongAdder stateMismatches = IdpMetrics.instance().counter("authn.stateMismatch");
+    private final LongAdder externalAuthenticationErrors = IdpMetrics.instance().counter("authn.externalAuthenticationException");
+    private final LongAdder unexpectedErrors = IdpMetrics.instance().counter("authn.unexpectedError");
+    private final LongAdder logouts = IdpMetrics.instance().counter("logout.rp");
+    private final LongAdder ssoLogouts = IdpMetrics.instance().counter("logout.sso");
+    private final LongAdder ignoredSsoLogouts = IdpMetrics.instance().counter("logout.sso.ignored");
+    private final LongAdder backChannelLogouts = IdpMetrics.instance().counter("logout.backchannel");
+    private final LongAdder invalidLogoutTokens = IdpMetrics.instance().counter("logout.backchannel.invalidToken");
+    private final LongAdder backChannelLogoutRejections = IdpMetrics.instance().counter("logout.backchannel.rejected");
+    private final LongAdder failedBackChannelLogouts = IdpMetrics.instance().counter("logout.backchannel.failed");
+
+    private final LatencyTimer redirectTimer = IdpMetrics.instance().timer("authn.redirect");
+    private final LatencyTimer translationTimer = IdpMetrics.instance().timer("authn.translation");
+    private final LatencyTimer finishTimer = IdpMetrics.instance().timer("authn.finish");
+    private final SessionSizeMetrics sessionSizeMetrics = new SessionSizeMetrics();
 
     @Override
     public void init(final ServletConfig config) throws ServletException {
         super.init(config);
 
-        this.idpAuthClient = new IdpAuthClient();
+        final IdpConfiguration configuration = getConfiguration();
+        this.clientRegistry = new IdpAuthClientRegistry(configuration);
+        this.idpAuthClient = clientRegistry.getDefaultClient();
 
         final ApplicationContext ac = (ApplicationContext) config.getServletContext()
                 .getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE);
 
+        buildCallbackExecutor(configuration);
+        buildBackChannelLogoutProcessor(configuration, ac);
+        buildAuditLog(configuration);
+        buildMetricsExporter(configuration);
+
+        this.configurationListener = this::configurationChanged;
+        IdpConfiguration.addListener(configurationListener);
+
         buildTranslators(ac.getEnvironment());
+        this.authnContextMapping = new AuthnContextMapping(ac.getEnvironment());
+
+        buildWarmUp(configuration);
+    }
+
+    /**
+     * Configuration of the oxAuth client. It's loaded from oxidp.properties and LDAP
+     */
+    protected IdpConfiguration getConfiguration() {
+        return IdpConfiguration.instance();
+    }
+
+    /**
+     * Apply reloaded configuration. Sizes of connection pool and callback queue need restart
+     */
+    private void configurationChanged(final IdpConfiguration configuration) {
+        clientRegistry.configurationChanged(configuration);
+        applyMetricsEndpointSettings(configuration);
+        errorLogger.setIntervalMillis(getStackTraceLogInterval(configuration));
+
+        this.callbackTimeout = configuration.getLong("oxidp_AsyncCallbackTimeout", 30000);
+        this.callbackAbortWait = configuration.getLong("oxidp_AsyncCallbackAbortWait", 5000);
+        if (callbackExecutor != null) {
+            final int threads = configuration.getInt("oxidp_AsyncCallbackThreads", 32);
+            if (threads > callbackExecutor.getMaximumPoolSize()) {
+                callbackExecutor.setMaximumPoolSize(threads);
+                callbackExecutor.setCorePoolSize(threads);
+            } else {
+                callbackExecutor.setCorePoolSize(threads);
+                callbackExecutor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        // init() may have failed part way, so only built parts are released
+        if (configurationListener != null) {
+            IdpConfiguration.removeListener(configurationListener);
+        }
+        if (callbackExecutor != null) {
+            callbackExecutor.shutdownNow();
+        }
+        if (backChannelLogoutProcessor != null) {
+            backChannelLogoutProcessor.destroy();
+        }
+        if (auditLog != null) {
+            auditLog.destroy();
+        }
+        if (metricsExporter != null) {
+            metricsExporter.unregisterMBean();
+        }
+        if (clientRegistry != null) {
+            clientRegistry.destroy();
+        }
+        IdpConfiguration.shutdown();
+
+        super.destroy();
     }
 
     @Override
@@ -94,27 +229,30 @@ public class ShibOxAuthAuthServlet extends HttpServlet {
                 return;
             }
 
+            boolean readinessEndpoint = requestUrl.endsWith("/ready");
+            if (readinessEndpoint) {
+                processReadinessRequest(request, response);
+                return;
+            }
+
+            boolean metricsEndpoint = requestUrl.endsWith("/metrics");
+            if (metricsEndpoint) {
+                processMetricsRequest(request, response);
+                return;
+            }
+
             // Web context
             final WebContext context = new J2EContext(request, response);
             final boolean authorizationResponse = idpAuthClient.isAuthorizationResponse(context);
 
             HttpServletRequest externalRequest = request;
             if (authorizationResponse) {
-                try {
-                    final Jwt jwt = Jwt.parse(idpAuthClient.getRequestState(context));
-
-                    externalRequest = new HttpServletRequestWrapper(request) {
-                        @Override
-                        public String getParameter(String name) {
-                            if (jwt.getClaims().hasClaim(name)) {
-                                return jwt.getClaims().getClaimAsString(name);
-                            }
-
-                            return super.getParameter(name);
-                        }
-                    };
-                } catch (InvalidJwtException ex) {
-                    logger.debug("State is not in JWT format", ex);
+                // Decoded once, later checks reuse claims cached in request
+                final Map<String, String> stateClaims = idpAuthClient.getRequestStateClaims(context);
+                if (stateClaims != null) {
+                    externalRequest = new StateRequestWrapper(request, stateClaims);
+                } else {
+                    logger.debug("State is not valid JWT");
                 }
             }
 
@@ -134,106 +272,178 @@ public class ShibOxAuthAuthServlet extends HttpServlet {
             logger.info("Procession authorization response");
 
             // Check if oxAuth request state is correct
-            if (!idpAuthClient.isValidRequestState(context)) {
+            if (!getClient(request).isValidRequestState(context)) {
                 logger.error("The state in session and in request are not equals");
+                stateMismatches.increment();
 
                 // Re-init login page
                 startLoginRequest(request, response, force);
                 return;
             }
 
-            processAuthorizationResponse(request, response, authenticationKey);
+            if ((callbackExecutor != null) && request.isAsyncSupported()) {
+                // Release container thread while back-channel requests are in progress
+                new AsyncAuthorizationResponse(request, response, authenticationKey).start();
+            } else {
+                processAuthorizationResponse(request, response, authenticationKey);
+            }
 
         } catch (final ExternalAuthenticationException ex) {
+            externalAuthenticationErrors.increment();
             logger.warn("Error processing oxAuth authentication request", ex);
             loadErrorPage(request, response);
 
         } catch (final Exception ex) {
-            logger.error("Something unexpected happened", ex);
+            unexpectedErrors.increment();
+            errorLogger.error(logger, "Something unexpected happened", ex);
             request.setAttribute(ExternalAuthentication.AUTHENTICATION_ERROR_KEY, AuthnEventIds.AUTHN_EXCEPTION);
+            audit(AuthnAuditEvent.Type.LOGIN_FAILURE, request, getClient(request), null, AuthnEventIds.AUTHN_EXCEPTION);
         }
     }
 
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final String requestUrl = request.getRequestURL().toString();
+        logger.trace("Post request to: '{}'", requestUrl);
+
+        boolean backChannelLogoutEndpoint = requestUrl.endsWith("/backchannel_logout");
+        if (backChannelLogoutEndpoint) {
+            processBackChannelLogoutRequest(request, response);
+            return;
+        }
+
+        super.doPost(request, response);
+    }
+
     private void processAuthorizationResponse(final HttpServletRequest request, final HttpServletResponse response, final String authenticationKey)
             throws ExternalAuthenticationException, IOException {
+        final UserProfile userProfile = retrieveUserProfile(request, response);
+        completeAuthorizationResponse(request, response, authenticationKey, userProfile);
+    }
+
+    private UserProfile retrieveUserProfile(final HttpServletRequest request, final HttpServletResponse response) {
         try {
             // Web context
             final WebContext context = new J2EContext(request, response);
 
-            final OpenIdCredentials openIdCredentials = idpAuthClient.getCredentials(context);
+            final IdpAuthClient client = getClient(request);
+            final OpenIdCredentials openIdCredentials = client.getCredentials(context);
             logger.debug("Client name : '{}'", openIdCredentials.getClientName());
 
-            final UserProfile userProfile = idpAuthClient.getUserProfile(openIdCredentials, context);
+            final Object relyingPartyId = request.getAttribute(ExternalAuthentication.RELYING_PARTY_PARAM);
+            final UserProfile userProfile = client.getUserProfile(openIdCredentials, context,
+                    relyingPartyId == null ? null : relyingPartyId.toString());
             logger.debug("User profile : {}", userProfile);
 
+            return userProfile;
+        } catch (final Exception ex) {
+            errorLogger.error(logger, "Token validation failed, returning InvalidToken", ex);
+            return null;
+        }
+    }
+
+    private void completeAuthorizationResponse(final HttpServletRequest request, final HttpServletResponse response,
+            final String authenticationKey, final UserProfile userProfile) throws ExternalAuthenticationException, IOException {
+        try {
             if (userProfile == null) {
                 logger.error("Token validation failed, returning InvalidToken");
+                invalidTokens.increment();
                 request.setAttribute(ExternalAuthentication.AUTHENTICATION_ERROR_KEY, "InvalidToken");
             } else {
-                for (final OxAuthToShibTranslator translator : translators) {
-                    translator.doTranslation(request, response, userProfile, authenticationKey);
+                final long translationStart = System.nanoTime();
+                try {
+                    getTranslators(request).doTranslation(request, response, userProfile, authenticationKey);
+                } finally {
+                    translationTimer.recordSince(translationStart);
                 }
             }
         } catch (final Exception ex) {
-            logger.error("Token validation failed, returning InvalidToken", ex);
+            errorLogger.error(logger, "Token validation failed, returning InvalidToken", ex);
+            invalidTokens.increment();
             request.setAttribute(ExternalAuthentication.AUTHENTICATION_ERROR_KEY, "InvalidToken");
         } finally {
+            finishExternalAuthentication(request, response, authenticationKey, userProfile == null ? null : userProfile.getId());
+        }
+    }
+
+    /**
+     * @param principal name of the authenticated user, if known
+     */
+    private void finishExternalAuthentication(final HttpServletRequest request, final HttpServletResponse response, final String authenticationKey,
+            final String principal) throws ExternalAuthenticationException, IOException {
+        auditAuthentication(request, principal);
+
+        final long start = System.nanoTime();
+        try {
+            // Shibboleth removes the conversation itself, single use state and nonce are removed here
+            getClient(request).clearRequestState(new J2EContext(request, response));
             ExternalAuthentication.finishExternalAuthentication(authenticationKey, request, response);
+        } finally {
+            finishTimer.recordSince(start);
         }
+        sessionSizeMetrics.record(request.getSession(false));
     }
 
     protected void startLoginRequest(final HttpServletRequest request, final HttpServletResponse response, final Boolean force) {
+        final long start = System.nanoTime();
         try {
             // Web context
             final WebContext context = new J2EContext(request, response);
 
-            final Map<String, String> customResponseHeaders = new HashMap<String, String>();
             final String convId = request.getParameter(ExternalAuthentication.CONVERSATION_KEY);
-            customResponseHeaders.put(ExternalAuthentication.CONVERSATION_KEY, convId);
-            
-            final Map<String, String> customParameters = new HashMap<String, String>();
             final String relayingPartyId = request.getAttribute(ExternalAuthentication.RELYING_PARTY_PARAM).toString();
-            customParameters.put(OXAUTH_PARAM_ENTITY_ID, relayingPartyId);
-            
-            try {
-                ProfileRequestContext prc = ExternalAuthentication.getProfileRequestContext(convId, request);
-                AuthnRequest authnRequest = (AuthnRequest) prc.getInboundMessageContext().getMessage();
-                if (null != authnRequest) {
-                    RequestedAuthnContext authnContext = authnRequest.getRequestedAuthnContext();
-                    if (null != authnContext) {
-                        String acrs = authnContext.getAuthnContextClassRefs().stream()
-                            .map(AuthnContextClassRef::getAuthnContextClassRef).collect(Collectors.joining(" "));
-                        customParameters.put("acr_values", acrs);
-                    }
-                }
-            } catch (Exception e) {
-                logger.error("Unable to process to AuthnContextClassRef", e);
-            }           
+            final String acrValues = getAcrValues(convId, request);
 
-            final String loginUrl = idpAuthClient.getRedirectionUrl(context, customResponseHeaders, customParameters, force);
+            final String loginUrl = getClient(request).getRedirectionUrl(context,
+                    Collections.singletonMap(ExternalAuthentication.CONVERSATION_KEY, convId), relayingPartyId, acrValues, force);
             logger.debug("Generated redirection Url", loginUrl);
 
             logger.debug("loginUrl: {}", loginUrl);
             response.sendRedirect(loginUrl);
         } catch (final IOException ex) {
             logger.error("Unable to redirect to oxAuth from ShibOxAuth", ex);
+        } finally {
+            redirectTimer.recordSince(start);
         }
     }
 
+    /**
+     * <code>acr_values</code> for the SAML <code>RequestedAuthnContext</code> of the conversation
+     */
+    private String getAcrValues(final String convId, final HttpServletRequest request) {
+        try {
+            final ProfileRequestContext prc = ExternalAuthentication.getProfileRequestContext(convId, request);
+            final Object message = prc.getInboundMessageContext().getMessage();
+            if (message instanceof AuthnRequest) {
+                final RequestedAuthnContext authnContext = ((AuthnRequest) message).getRequestedAuthnContext();
+                if (authnContext != null) {
+                    return authnContextMapping.getAcrValues(authnContext.getAuthnContextClassRefs());
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Unable to process to AuthnContextClassRef", e);
+        }
+
+        return null;
+    }
+
     protected void processLogoutRequest(final HttpServletRequest request, final HttpServletResponse response) {
         try {
             // Web context
             final WebContext context = new J2EContext(request, response);
 
-            final String logoutUrl = idpAuthClient.getLogoutRedirectionUrl(context);
+            final IdpAuthClient client = (clientRegistry == null) ? idpAuthClient : clientRegistry.getLoginClient(context);
+            final String logoutUrl = client.getLogoutRedirectionUrl(context);
             logger.debug("Generated logout redirection Url", logoutUrl);
             
 
             logger.debug("logoutUrl: {}", logoutUrl);
             response.sendRedirect(logoutUrl);
+            logouts.increment();
+            audit(AuthnAuditEvent.Type.LOGOUT, request, client, null, null);
 
-            idpAuthClient.clearAuthorized(context);
-            idpAuthClient.setAttribute(context, OXAUTH_ATTRIBIUTE_SEND_END_SESSION_REQUEST, Boolean.TRUE);
+            client.clearAuthorized(context);
+            IdpAuthClient.setSharedAttribute(context, OXAUTH_ATTRIBIUTE_SEND_END_SESSION_REQUEST, Boolean.TRUE);
             logger.debug("Client authorization is removed (set null id_token in session)");
         } catch (final IOException ex) {
             logger.error("Unable to redirect to oxAuth from ShibOxAuth", ex);
@@ -244,18 +454,21 @@ public class ShibOxAuthAuthServlet extends HttpServlet {
         try {
             // Web context
             final WebContext context = new J2EContext(request, response);
-            final Object sendEndSession = idpAuthClient.getAttribute(context, OXAUTH_ATTRIBIUTE_SEND_END_SESSION_REQUEST);
+            final Object sendEndSession = IdpAuthClient.getSharedAttribute(context, OXAUTH_ATTRIBIUTE_SEND_END_SESSION_REQUEST);
             if (Boolean.TRUE.equals(sendEndSession)) {
-                idpAuthClient.setAttribute(context, OXAUTH_ATTRIBIUTE_SEND_END_SESSION_REQUEST, null);
+                IdpAuthClient.setSharedAttribute(context, OXAUTH_ATTRIBIUTE_SEND_END_SESSION_REQUEST, null);
                 logger.debug("Client send end_session request. Ignoring OP initiated logout request");
+                ignoredSsoLogouts.increment();
                 return;
             }
 
             final String logoutUrl = "/idp/profile/Logout";
             logger.debug("logoutUrl: {}", logoutUrl);
             response.sendRedirect(logoutUrl);
+            ssoLogouts.increment();
 
-            idpAuthClient.clearAuthorized(context);
+            final IdpAuthClient client = (clientRegistry == null) ? idpAuthClient : clientRegistry.getLoginClient(context);
+            client.clearAuthorized(context);
             logger.debug("Client authorization is removed (set null id_token in session)");
         } catch (final IOException ex) {
             logger.error("Unable to redirect to oxAuth from ShibOxAuth", ex);
@@ -263,28 +476,320 @@ public class ShibOxAuthAuthServlet extends HttpServlet {
     }
 
     /**
-     * Attempt to build the set of translators from the fully qualified class names
+     * OpenID Connect back-channel logout. Token is validated on request thread with cached keys, sessions are
+     * ended in background. Logout fails before anything is queued if IdP sessions can't be destroyed
+     */
+    protected void processBackChannelLogoutRequest(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        response.setHeader("Cache-Control", "no-store");
+        if (backChannelLogoutProcessor == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        final String logoutToken = request.getParameter("logout_token");
+        IdpAuthClient client = null;
+        Jwt jwt = null;
+        if (StringUtils.isNotBlank(logoutToken)) {
+            try {
+                jwt = Jwt.parse(logoutToken);
+                client = clientRegistry.getClientByToken(jwt.getClaims().getClaimAsString(JwtClaimName.ISSUER),
+                        jwt.getClaims().getClaimAsStringList(JwtClaimName.AUDIENCE));
+            } catch (final Exception ex) {
+                logger.debug("Failed to parse logout_token", ex);
+            }
+        }
+
+        if ((client == null) || !client.isValidLogoutToken(logoutToken, jwt)) {
+            logger.error("Invalid back-channel logout request");
+            invalidLogoutTokens.increment();
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        final String sid = jwt.getClaims().getClaimAsString("sid");
+        final String subject = jwt.getClaims().getClaimAsString(JwtClaimName.SUBJECT_IDENTIFIER);
+        final Set<LogoutSessionIndex.Binding> bindings = clientRegistry.getLogoutSessionIndex()
+                .getBindings(client.getRelyingPartyClientName(), sid, subject);
+        if (bindings.isEmpty()) {
+            // No session of the user on this node
+            backChannelLogouts.increment();
+            audit(AuthnAuditEvent.Type.BACKCHANNEL_LOGOUT, request, client, subject, null);
+            response.setStatus(HttpServletResponse.SC_OK);
+            return;
+        }
+
+        if (!backChannelLogoutProcessor.canDestroyIdpSessions()) {
+            // Invalidating HttpSessions alone would leave IdP session (and SSO) of the user alive
+            logger.error("Back-channel logout can't destroy IdP sessions, IdP session manager isn't available");
+            failedBackChannelLogouts.increment();
+            audit(AuthnAuditEvent.Type.BACKCHANNEL_LOGOUT, request, client, subject, "IdP session manager isn't available");
+            response.setContentType("application/json; charset=UTF-8");
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().write("{\"error\":\"logout_failed\",\"error_description\":\"IdP sessions can't be terminated\"}");
+            return;
+        }
+
+        if (!backChannelLogoutProcessor.submit(client.getRelyingPartyClientName(), sid, subject)) {
+            logger.error("Too many back-channel logout requests in progress");
+            backChannelLogoutRejections.increment();
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        backChannelLogouts.increment();
+        audit(AuthnAuditEvent.Type.BACKCHANNEL_LOGOUT, request, client, subject, null);
+        response.setStatus(HttpServletResponse.SC_OK);
+    }
+
+    /**
+     * Attempt to build the translator chains from the fully qualified class names
      * set in the properties. If nothing has been set then default to the
      * AuthenticatedNameTranslator only.
+     * <p>
+     * Relying parties listed in <code>shib.oxauth.oxAuthToShibTranslator.&lt;n&gt;.entityIds</code> get their own chain
+     * built from <code>shib.oxauth.oxAuthToShibTranslator.&lt;n&gt;.classes</code>, with n starting from 1.
      */
     private void buildTranslators(final Environment environment) {
-        translators.add(new AuthenticatedNameTranslator());
+        final Map<String, OxAuthToShibTranslator> instances = new HashMap<String, OxAuthToShibTranslator>();
+        // Built-in translator heads every chain, so it's never loaded reflectively
+        final AuthenticatedNameTranslator authenticatedNameTranslator = new AuthenticatedNameTranslator();
+        authenticatedNameTranslator.setEnvironment(environment);
+        instances.put(AuthenticatedNameTranslator.class.getName(), authenticatedNameTranslator);
+
+        this.defaultTranslators = buildTranslatorChain(environment, environment.getProperty("shib.oxauth.oxAuthToShibTranslator"), instances);
+
+        final Map<String, TranslatorChain> chains = new HashMap<String, TranslatorChain>();
+        for (int i = 1;; i++) {
+            final String entityIds = environment.getProperty("shib.oxauth.oxAuthToShibTranslator." + i + ".entityIds");
+            if (StringUtils.isBlank(entityIds)) {
+                break;
+            }
 
-        final String oxAuthToShibTranslators = StringUtils.defaultString(environment.getProperty("shib.oxauth.oxAuthToShibTranslator", ""));
-        for (final String classname : StringUtils.split(oxAuthToShibTranslators, ';')) {
-            try {
-                logger.debug("Loading translator class {}", classname);
-                final Class<?> c = Class.forName(classname);
-                final OxAuthToShibTranslator e = (OxAuthToShibTranslator) c.newInstance();
-                if (e instanceof EnvironmentAware) {
-                    ((EnvironmentAware) e).setEnvironment(environment);
-                }
-                translators.add(e);
-                logger.debug("Added translator class {}", classname);
-            } catch (final Exception ex) {
-                logger.error("Error building oxAuth to Shib translator with name: " + classname, ex);
+            final TranslatorChain chain = buildTranslatorChain(environment,
+                    environment.getProperty("shib.oxauth.oxAuthToShibTranslator." + i + ".classes"), instances);
+            for (final String entityId : StringUtils.split(entityIds, "; ")) {
+                chains.put(entityId, chain);
+            }
+        }
+        this.relyingPartyTranslators = Collections.unmodifiableMap(chains);
+    }
+
+    private TranslatorChain buildTranslatorChain(final Environment environment, final String classnames,
+            final Map<String, OxAuthToShibTranslator> instances) {
+        final List<OxAuthToShibTranslator> translators = new ArrayList<OxAuthToShibTranslator>();
+        translators.add(instances.get(AuthenticatedNameTranslator.class.getName()));
+
+        for (final String classname : StringUtils.split(StringUtils.defaultString(classnames), ';')) {
+            final OxAuthToShibTranslator translator = getTranslator(environment, classname.trim(), instances);
+            if ((translator != null) && !translators.contains(translator)) {
+                translators.add(translator);
             }
         }
+        logger.debug("Built translator chain {}", translators);
+
+        return new TranslatorChain(translators);
+    }
+
+    /**
+     * @return translator shared by chains, or <code>null</code> if it can't be built
+     */
+    private OxAuthToShibTranslator getTranslator(final Environment environment, final String classname,
+            final Map<String, OxAuthToShibTranslator> instances) {
+        OxAuthToShibTranslator translator = instances.get(classname);
+        if (translator != null) {
+            return translator;
+        }
+
+        try {
+            logger.debug("Loading translator class {}", classname);
+            final Class<?> c = Class.forName(classname);
+            translator = (OxAuthToShibTranslator) c.newInstance();
+            if (translator instanceof EnvironmentAware) {
+                ((EnvironmentAware) translator).setEnvironment(environment);
+            }
+            instances.put(classname, translator);
+            logger.debug("Added translator class {}", classname);
+        } catch (final Exception ex) {
+            logger.error("Error building oxAuth to Shib translator with name: " + classname, ex);
+        }
+
+        return translator;
+    }
+
+    /**
+     * oxAuth client which serves relying party of the request
+     */
+    private IdpAuthClient getClient(final HttpServletRequest request) {
+        final Object relyingPartyId = request.getAttribute(ExternalAuthentication.RELYING_PARTY_PARAM);
+        if ((clientRegistry == null) || (relyingPartyId == null)) {
+            return idpAuthClient;
+        }
+
+        return clientRegistry.getClient(relyingPartyId.toString());
+    }
+
+    private TranslatorChain getTranslators(final HttpServletRequest request) {
+        final Object relyingPartyId = request.getAttribute(ExternalAuthentication.RELYING_PARTY_PARAM);
+        if (relyingPartyId != null) {
+            final TranslatorChain chain = relyingPartyTranslators.get(relyingPartyId.toString());
+            if (chain != null) {
+                return chain;
+            }
+        }
+
+        return defaultTranslators;
+    }
+
+    /**
+     * Load balancer health check. Node is ready once warm-up is finished
+     */
+    protected void processReadinessRequest(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final boolean ready = (warmUp == null) || warmUp.isDone();
+
+        response.setContentType("text/plain; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.getWriter().write(ready ? "READY" : "WARMING_UP");
+    }
+
+    protected void processMetricsRequest(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        if (!metricsEndpointEnabled) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        if (!metricsAllowedAddresses.contains(request.getRemoteAddr())) {
+            logger.debug("Metrics request from not allowed address {}", request.getRemoteAddr());
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        response.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        response.setHeader("Cache-Control", "no-store");
+        metricsExporter.writePrometheus(response.getWriter());
+    }
+
+    private void buildMetricsExporter(final IdpConfiguration configuration) {
+        this.metricsExporter = new IdpMetricsExporter(IdpMetrics.instance());
+        this.metricsExporter.registerMBean();
+
+        applyMetricsEndpointSettings(configuration);
+    }
+
+    private void applyMetricsEndpointSettings(final IdpConfiguration configuration) {
+        this.metricsEndpointEnabled = configuration.getBoolean("oxidp_MetricsEndpoint", false);
+        this.metricsAllowedAddresses = new HashSet<String>(Arrays.asList(StringUtils.split(
+                configuration.getString("oxidp_MetricsAllowedAddresses", "127.0.0.1, 0:0:0:0:0:0:0:1, ::1"), ", ")));
+        sessionSizeMetrics.setEnabled(configuration.getBoolean("oxidp_SessionSizeMetrics", false));
+    }
+
+    private void buildCallbackExecutor(final IdpConfiguration configuration) {
+        if (!configuration.getBoolean("oxidp_AsyncCallback", true)) {
+            logger.info("Asynchronous processing of authorization responses is disabled");
+            return;
+        }
+
+        final int threads = configuration.getInt("oxidp_AsyncCallbackThreads", 32);
+        final int queueSize = configuration.getInt("oxidp_AsyncCallbackQueueSize", 512);
+        this.callbackTimeout = configuration.getLong("oxidp_AsyncCallbackTimeout", 30000);
+        this.callbackAbortWait = configuration.getLong("oxidp_AsyncCallbackAbortWait", 5000);
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.callbackExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+            runnable -> {
+                final Thread thread = new Thread(runnable, "oxauth-callback-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.callbackExecutor.allowCoreThreadTimeOut(true);
+
+        IdpMetrics.instance().gauge("callback.async.active", () -> callbackExecutor.getActiveCount());
+        IdpMetrics.instance().gauge("callback.async.queued", () -> callbackExecutor.getQueue().size());
+    }
+
+    /**
+     * Login result is decided by attributes the translators set for Shibboleth
+     */
+    private void auditAuthentication(final HttpServletRequest request, final String principal) {
+        if (auditLog == null) {
+            return;
+        }
+
+        final Object error = request.getAttribute(ExternalAuthentication.AUTHENTICATION_ERROR_KEY);
+        if ((error == null) && ((request.getAttribute(ExternalAuthentication.SUBJECT_KEY) != null)
+                || (request.getAttribute(ExternalAuthentication.PRINCIPAL_NAME_KEY) != null))) {
+            audit(AuthnAuditEvent.Type.LOGIN_SUCCESS, request, getClient(request), principal, null);
+        } else {
+            audit(AuthnAuditEvent.Type.LOGIN_FAILURE, request, getClient(request), principal, (error == null) ? "NoPrincipal" : error.toString());
+        }
+    }
+
+    private void audit(final AuthnAuditEvent.Type type, final HttpServletRequest request, final IdpAuthClient client, final String principal,
+            final String reason) {
+        if (auditLog == null) {
+            return;
+        }
+
+        final Object relyingPartyId = request.getAttribute(ExternalAuthentication.RELYING_PARTY_PARAM);
+        auditLog.publish(type, (relyingPartyId == null) ? null : relyingPartyId.toString(), principal, client.getRelyingPartyClientName(),
+                reason, request.getRemoteAddr());
+    }
+
+    private void buildAuditLog(final IdpConfiguration configuration) {
+        errorLogger.setIntervalMillis(getStackTraceLogInterval(configuration));
+        if (!configuration.getBoolean("oxidp_AuditLog", false)) {
+            return;
+        }
+
+        this.auditLog = new AuthnAuditLog(
+                configuration.getString("oxidp_AuditLogFile", System.getProperty("idp.home", "/opt/shibboleth-idp") + "/logs/idp-oxauth-audit.log"),
+                configuration.getLong("oxidp_AuditLogMaxFileSize", 10485760), configuration.getInt("oxidp_AuditLogMaxFiles", 10),
+                configuration.getInt("oxidp_AuditLogBufferSize", 8192));
+        this.auditLog.start();
+    }
+
+    private long getStackTraceLogInterval(final IdpConfiguration configuration) {
+        return TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_StackTraceLogInterval", 60));
+    }
+
+    private void buildWarmUp(final IdpConfiguration configuration) {
+        if (!configuration.getBoolean("oxidp_WarmUp", true)) {
+            return;
+        }
+
+        final List<TranslatorChain> chains = new ArrayList<TranslatorChain>(relyingPartyTranslators.values());
+        chains.add(defaultTranslators);
+
+        this.warmUp = new ModuleWarmUp(clientRegistry, chains, configuration.getInt("oxidp_WarmUpConnections", 4),
+                configuration.getInt("oxidp_WarmUpIterations", 10000), TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_WarmUpTimeout", 60)));
+        this.warmUp.start();
+    }
+
+    private void buildBackChannelLogoutProcessor(final IdpConfiguration configuration, final ApplicationContext ac) {
+        if (!configuration.getBoolean("oxidp_BackChannelLogout", false)) {
+            return;
+        }
+
+        this.backChannelLogoutProcessor = new BackChannelLogoutProcessor(clientRegistry.getLogoutSessionIndex(), getSessionManager(ac),
+                configuration.getInt("oxidp_BackChannelLogoutQueueSize", 10000), configuration.getInt("oxidp_BackChannelLogoutBatchSize", 500));
+        this.backChannelLogoutProcessor.start();
+    }
+
+    /**
+     * IdP session manager, or <code>null</code> if IdP doesn't expose it. Then back-channel logout can't end IdP sessions
+     */
+    private SessionManager getSessionManager(final ApplicationContext ac) {
+        try {
+            if ((ac != null) && ac.containsBean(SESSION_MANAGER_BEAN)) {
+                return ac.getBean(SESSION_MANAGER_BEAN, SessionManager.class);
+            }
+        } catch (final BeansException ex) {
+            logger.error("Failed to get IdP session manager", ex);
+            return null;
+        }
+
+        logger.warn("IdP session manager '{}' isn't available, back-channel logout won't end IdP sessions", SESSION_MANAGER_BEAN);
+        return null;
     }
 
     private void loadErrorPage(final HttpServletRequest request, final HttpServletResponse response) {
@@ -298,4 +803,149 @@ public class ShibOxAuthAuthServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Authorization response processing on the callback executor. Once the worker has started, only it uses the
+     * request, response and session and completes the request. Timeout and error handlers finish the request
+     * themselves when the worker never ran or doesn't finish within the abort wait; otherwise they leave the error
+     * for the worker to report
+     */
+    private class AsyncAuthorizationResponse implements Runnable, AsyncListener {
+
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final String authenticationKey;
+
+        // FutureTask can be cancelled while it's running, so the worker and the abort claim the request explicitly
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private AsyncContext asyncContext;
+        private volatile Future<?> worker;
+        // Set by timeout or error handler for the running worker to report
+        private volatile String error;
+
+        AsyncAuthorizationResponse(final HttpServletRequest request, final HttpServletResponse response, final String authenticationKey) {
+            this.request = request;
+            this.response = response;
+            this.authenticationKey = authenticationKey;
+        }
+
+        void start() {
+            this.asyncContext = request.startAsync(request, response);
+            asyncContext.setTimeout(callbackTimeout);
+            asyncContext.addListener(this);
+
+            try {
+                this.worker = callbackExecutor.submit(this);
+            } catch (final RejectedExecutionException ex) {
+                callbackRejections.increment();
+                logger.error("Too many authorization responses in progress, returning {}", AuthnEventIds.AUTHN_EXCEPTION);
+                finish(AuthnEventIds.AUTHN_EXCEPTION, null);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+
+            final UserProfile userProfile = retrieveUserProfile(request, response);
+            final String error = this.error;
+            finish(error, (error == null) ? userProfile : null);
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException {
+            if (!finished.get()) {
+                callbackTimeouts.increment();
+                logger.error("Authorization response processing timed out, returning InvalidToken");
+            }
+            abort("InvalidToken");
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException {
+            errorLogger.error(logger, "Error processing authorization response", event.getThrowable());
+            abort(AuthnEventIds.AUTHN_EXCEPTION);
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException {
+        }
+
+        /**
+         * Queued worker is cancelled and the request is finished on the container thread. A running worker is given
+         * the abort wait to complete the request. After it the worker is interrupted and the request is finished
+         * here, so the container thread isn't held by a stuck back-channel call; a late result of the worker is dropped
+         */
+        private void abort(final String error) {
+            this.error = error;
+
+            final Future<?> worker = this.worker;
+            if (started.compareAndSet(false, true)) {
+                if (worker != null) {
+                    worker.cancel(false);
+                }
+                finish(error, null);
+            } else if (!awaitDone()) {
+                callbackAbandoned.increment();
+                logger.error("Authorization response processing didn't finish in {} ms after {}, abandoning it", callbackAbortWait, error);
+                if (worker != null) {
+                    worker.cancel(true);
+                }
+                finish(error, null);
+            }
+        }
+
+        private void finish(final String error, final UserProfile userProfile) {
+            if (!finished.compareAndSet(false, true)) {
+                awaitDone();
+                return;
+            }
+
+            try {
+                if (error == null) {
+                    completeAuthorizationResponse(request, response, authenticationKey, userProfile);
+                } else {
+                    if ("InvalidToken".equals(error)) {
+                        invalidTokens.increment();
+                    }
+                    request.setAttribute(ExternalAuthentication.AUTHENTICATION_ERROR_KEY, error);
+                    finishExternalAuthentication(request, response, authenticationKey, null);
+                }
+                asyncContext.complete();
+            } catch (final ExternalAuthenticationException ex) {
+                externalAuthenticationErrors.increment();
+                logger.warn("Error processing oxAuth authentication request", ex);
+                asyncContext.dispatch("/no-conversation-state.jsp");
+            } catch (final Exception ex) {
+                unexpectedErrors.increment();
+                errorLogger.error(logger, "Something unexpected happened", ex);
+                asyncContext.complete();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Wait until the request is finished by the other side, at most the abort wait
+         *
+         * @return <code>true</code> if the request is finished
+         */
+        private boolean awaitDone() {
+            try {
+                return done.await(callbackAbortWait, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,80 @@
+package org.gluu.idp.externalauth;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.gluu.idp.externalauth.openid.client.RequestStateCodec;
+
+/**
+ * Exposes the claims of the authorization request state (e.g. conversation key) as request parameters
+ * <p>
+ * Claims are materialized once at construction. State claims take precedence over the request parameters with
+ * the same name.
+ */
+public class StateRequestWrapper extends HttpServletRequestWrapper {
+
+    private static final Set<String> INTERNAL_CLAIMS = new HashSet<String>(
+            Arrays.asList(RequestStateCodec.CLAIM_NONCE, RequestStateCodec.CLAIM_STATE_ID, RequestStateCodec.CLAIM_EXPIRATION,
+                    RequestStateCodec.CLAIM_BROWSER_BINDING));
+
+    private final Map<String, String[]> stateParameters;
+
+    private Map<String, String[]> parameterMap;
+
+    public StateRequestWrapper(final HttpServletRequest request, final Map<String, String> stateClaims) {
+        super(request);
+
+        final Map<String, String[]> parameters = new HashMap<String, String[]>();
+        for (final Map.Entry<String, String> entry : stateClaims.entrySet()) {
+            if (!INTERNAL_CLAIMS.contains(entry.getKey())) {
+                parameters.put(entry.getKey(), new String[] { entry.getValue() });
+            }
+        }
+        this.stateParameters = Collections.unmodifiableMap(parameters);
+    }
+
+    @Override
+    public String getParameter(final String name) {
+        final String[] values = stateParameters.get(name);
+        if (values != null) {
+            return values[0];
+        }
+
+        return super.getParameter(name);
+    }
+
+    @Override
+    public String[] getParameterValues(final String name) {
+        final String[] values = stateParameters.get(name);
+        if (values != null) {
+            return values.clone();
+        }
+
+        return super.getParameterValues(name);
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(getParameterMap().keySet());
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        if (parameterMap == null) {
+            final Map<String, String[]> parameters = new HashMap<String, String[]>(super.getParameterMap());
+            parameters.putAll(stateParameters);
+            parameterMap = Collections.unmodifiableMap(parameters);
+        }
+
+        return parameterMap;
+    }
+
+}
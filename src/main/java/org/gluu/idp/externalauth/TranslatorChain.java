@@ -0,0 +1,49 @@
+package org.gluu.idp.externalauth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.idp.externalauth.metrics.LatencyTimer;
+import org.gluu.oxauth.client.auth.user.UserProfile;
+
+/**
+ * Immutable ordered list of translators. Each stage records its own latency in <code>translator.&lt;class name&gt;</code> timer
+ */
+public final class TranslatorChain {
+
+    private final List<OxAuthToShibTranslator> translators;
+    private final LatencyTimer[] timers;
+
+    public TranslatorChain(final List<OxAuthToShibTranslator> translators) {
+        this.translators = Collections.unmodifiableList(new ArrayList<OxAuthToShibTranslator>(translators));
+        this.timers = new LatencyTimer[this.translators.size()];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = IdpMetrics.instance().timer("translator." + this.translators.get(i).getClass().getName());
+        }
+    }
+
+    public List<OxAuthToShibTranslator> getTranslators() {
+        return translators;
+    }
+
+    /**
+     * Run all translators in order
+     */
+    public void doTranslation(final HttpServletRequest request, final HttpServletResponse response, final UserProfile userProfile,
+            final String authenticationKey) throws Exception {
+        for (int i = 0; i < timers.length; i++) {
+            final long start = System.nanoTime();
+            try {
+                translators.get(i).doTranslation(request, response, userProfile, authenticationKey);
+            } finally {
+                timers[i].recordSince(start);
+            }
+        }
+    }
+
+}
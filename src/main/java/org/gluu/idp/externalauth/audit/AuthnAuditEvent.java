@@ -0,0 +1,46 @@
+package org.gluu.idp.externalauth.audit;
+
+/**
+ * Slot of the {@link AuthnAuditLog} ring buffer
+ * <p>
+ * Slots are allocated once and overwritten by every event published into them, so publishing doesn't allocate.
+ */
+public final class AuthnAuditEvent {
+
+    /**
+     * Kind of audited event
+     */
+    public enum Type {
+        LOGIN_SUCCESS, LOGIN_FAILURE, LOGOUT, BACKCHANNEL_LOGOUT
+    }
+
+    Type type;
+    long timestamp;
+    String relyingParty;
+    String principal;
+    String client;
+    String reason;
+    String remoteAddress;
+
+    AuthnAuditEvent() {
+    }
+
+    void set(final Type type, final long timestamp, final String relyingParty, final String principal, final String client,
+            final String reason, final String remoteAddress) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.relyingParty = relyingParty;
+        this.principal = principal;
+        this.client = client;
+        this.reason = reason;
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Drop references, so values of the written event aren't kept until the slot is reused
+     */
+    void clear() {
+        set(null, 0, null, null, null, null, null);
+    }
+
+}
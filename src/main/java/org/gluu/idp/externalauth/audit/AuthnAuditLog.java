@@ -0,0 +1,187 @@
+package org.gluu.idp.externalauth.audit;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Authentication audit log written by a single background thread
+ * <p>
+ * Request threads publish events into a preallocated ring buffer. Publishing never blocks: when the writer falls behind
+ * and the buffer is full, the event is dropped and counted. The writer takes all published events at once, writes them
+ * as JSON lines to a size rolled file and flushes once per batch.
+ */
+public class AuthnAuditLog implements Runnable {
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Logger logger = LoggerFactory.getLogger(AuthnAuditLog.class);
+
+    private final AuthnAuditEvent[] slots;
+    // Sequence of the event published into the slot
+    private final AtomicLongArray published;
+    private final int mask;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+
+    private final RollingAuditFile file;
+    private final int maxBatchSize;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final LongAdder publishedEvents;
+    private final LongAdder droppedEvents;
+    private final LongAdder writtenEvents;
+    private final LongAdder writeErrors;
+
+    /**
+     * @param bufferSize capacity of the ring buffer, rounded up to power of two
+     */
+    public AuthnAuditLog(final String file, final long maxFileSize, final int maxFiles, final int bufferSize) {
+        final int capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+        this.slots = new AuthnAuditEvent[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new AuthnAuditEvent();
+            published.set(i, -1);
+        }
+        this.mask = capacity - 1;
+        this.maxBatchSize = Math.min(capacity, 4096);
+
+        this.file = new RollingAuditFile(file, maxFileSize, maxFiles);
+        this.writer = new Thread(this, "oxauth-audit-writer");
+        this.writer.setDaemon(true);
+
+        final IdpMetrics metrics = IdpMetrics.instance();
+        this.publishedEvents = metrics.counter("audit.published");
+        this.droppedEvents = metrics.counter("audit.dropped");
+        this.writtenEvents = metrics.counter("audit.written");
+        this.writeErrors = metrics.counter("audit.writeError");
+        metrics.gauge("audit.backlog", () -> claimed.get() - consumed);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * Stop writer after it writes events published so far
+     */
+    public void destroy() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Publish event without blocking
+     *
+     * @return <code>false</code> if buffer is full and event was dropped
+     */
+    public boolean publish(final AuthnAuditEvent.Type type, final String relyingParty, final String principal, final String client,
+            final String reason, final String remoteAddress) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                droppedEvents.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        final int index = (int) (sequence & mask);
+        slots[index].set(type, System.currentTimeMillis(), relyingParty, principal, client, reason, remoteAddress);
+        published.lazySet(index, sequence);
+        publishedEvents.increment();
+
+        return true;
+    }
+
+    @Override
+    public void run() {
+        final StringBuilder batch = new StringBuilder(64 * 1024);
+        long next = consumed;
+        while (true) {
+            final boolean stopping = !running;
+
+            int count = 0;
+            while ((count < maxBatchSize) && (published.get((int) (next & mask)) == next)) {
+                final AuthnAuditEvent event = slots[(int) (next & mask)];
+                format(batch, event);
+                event.clear();
+                next++;
+                count++;
+            }
+
+            if (count == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            // Slots are released before writing, so producers aren't held by file I/O
+            consumed = next;
+            write(batch, count);
+            batch.setLength(0);
+        }
+
+        file.close();
+    }
+
+    private void write(final StringBuilder batch, final int count) {
+        try {
+            file.write(batch);
+            writtenEvents.add(count);
+        } catch (final IOException ex) {
+            writeErrors.increment();
+            file.close();
+            logger.error("Failed to write {} authentication audit events: {}", count, ex.getMessage());
+        }
+    }
+
+    private void format(final StringBuilder out, final AuthnAuditEvent event) {
+        out.append("{\"time\":\"").append(Instant.ofEpochMilli(event.timestamp)).append('"');
+        out.append(",\"type\":\"").append(event.type).append('"');
+        appendField(out, "rp", event.relyingParty);
+        appendField(out, "principal", event.principal);
+        appendField(out, "client", event.client);
+        appendField(out, "reason", event.reason);
+        appendField(out, "address", event.remoteAddress);
+        out.append("}\n");
+    }
+
+    private void appendField(final StringBuilder out, final String name, final String value) {
+        if (value == null) {
+            return;
+        }
+
+        out.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+}
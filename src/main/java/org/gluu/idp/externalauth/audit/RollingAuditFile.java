@@ -0,0 +1,100 @@
+package org.gluu.idp.externalauth.audit;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append only file which is rolled over by size to <code>&lt;file&gt;.1</code> ... <code>&lt;file&gt;.N</code>
+ * <p>
+ * Not thread safe, it's used by the single writer thread of {@link AuthnAuditLog}.
+ */
+final class RollingAuditFile {
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    private Writer writer;
+    private long size;
+
+    RollingAuditFile(final String file, final long maxFileSize, final int maxFiles) {
+        this.file = Paths.get(file);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Append lines and flush them
+     */
+    void write(final CharSequence lines) throws IOException {
+        if (writer == null) {
+            open();
+        }
+
+        final String text = lines.toString();
+        writer.write(text);
+        writer.flush();
+        // Audit lines are ASCII apart from user supplied values, so length is close enough for rolling
+        size += text.length();
+
+        if (size >= maxFileSize) {
+            roll();
+        }
+    }
+
+    void close() {
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.close();
+        } catch (final IOException ex) {
+            // Nothing to do, file is abandoned
+        }
+        writer = null;
+    }
+
+    private void open() throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 65536);
+        this.size = Files.size(file);
+    }
+
+    private void roll() throws IOException {
+        close();
+
+        if (maxFiles > 0) {
+            Files.deleteIfExists(getRolledFile(maxFiles));
+            for (int i = maxFiles - 1; i > 0; i--) {
+                final Path rolled = getRolledFile(i);
+                if (Files.exists(rolled)) {
+                    Files.move(rolled, getRolledFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, getRolledFile(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+
+        open();
+    }
+
+    private Path getRolledFile(final int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+}
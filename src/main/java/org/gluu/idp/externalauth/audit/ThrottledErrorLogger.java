@@ -0,0 +1,87 @@
+package org.gluu.idp.externalauth.audit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.slf4j.Logger;
+
+/**
+ * Logs stack trace of a failure at most once per interval
+ * <p>
+ * Failures are identical when they have the same message, exception type and throwing frame, or the same message
+ * when there is no exception. Repeats within the interval are logged with the exception message only, and the next
+ * stack trace reports how many were shortened, so a burst of identical failures doesn't flood the log with stack
+ * traces.
+ */
+public final class ThrottledErrorLogger {
+
+    private static final int MAX_FAILURES = 1024;
+
+    private final ConcurrentHashMap<String, Failure> failures = new ConcurrentHashMap<String, Failure>();
+
+    private final LongAdder suppressedStackTraces;
+
+    private volatile long intervalMillis;
+
+    public ThrottledErrorLogger(final long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.suppressedStackTraces = IdpMetrics.instance().counter("log.stackTrace.suppressed");
+    }
+
+    public void setIntervalMillis(final long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void error(final Logger logger, final String message, final Throwable ex) {
+        if (intervalMillis <= 0) {
+            logger.error(message, ex);
+            return;
+        }
+
+        final String key = getKey(message, ex);
+        Failure failure = failures.get(key);
+        if (failure == null) {
+            if (failures.size() >= MAX_FAILURES) {
+                // Many distinct failures, start over instead of tracking them all
+                failures.clear();
+            }
+            failure = failures.computeIfAbsent(key, k -> new Failure());
+        }
+
+        final long now = System.currentTimeMillis();
+        final long nextStackTraceTime = failure.nextStackTraceTime.get();
+        if ((now >= nextStackTraceTime) && failure.nextStackTraceTime.compareAndSet(nextStackTraceTime, now + intervalMillis)) {
+            final long suppressed = failure.suppressed.sumThenReset();
+            if (suppressed > 0) {
+                logger.error(message + " (stack trace omitted for " + suppressed + " identical failures)", ex);
+            } else {
+                logger.error(message, ex);
+            }
+            return;
+        }
+
+        failure.suppressed.increment();
+        suppressedStackTraces.increment();
+        logger.error("{}: {}", message, String.valueOf(ex));
+    }
+
+    private String getKey(final String message, final Throwable ex) {
+        if (ex == null) {
+            return message;
+        }
+
+        final StackTraceElement[] stackTrace = ex.getStackTrace();
+        final String frame = (stackTrace.length == 0) ? "" : stackTrace[0].toString();
+
+        return message + '|' + ex.getClass().getName() + '|' + frame + '|' + ex.getMessage();
+    }
+
+    private static final class Failure {
+
+        private final AtomicLong nextStackTraceTime = new AtomicLong();
+        private final LongAdder suppressed = new LongAdder();
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.gluu.idp.externalauth.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the counters, gauges and latency timers collected by the oxAuth authentication module.
+ * <p>
+ * Components should resolve their counters once and keep the references, so that recording
+ * on the request path is a single {@link LongAdder#increment()} without any map lookups.
+ */
+public final class IdpMetrics {
+
+    private static class MetricsSingleton {
+        static IdpMetrics INSTANCE = new IdpMetrics();
+    }
+
+    public static IdpMetrics instance() {
+        return MetricsSingleton.INSTANCE;
+    }
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+    private final ConcurrentMap<String, LatencyTimer> timers = new ConcurrentHashMap<String, LatencyTimer>();
+
+    private IdpMetrics() {
+    }
+
+    /**
+     * Get or register the counter with the given name
+     *
+     * @param name metric name, e.g. <code>openid.jwks.hit</code>
+     * @return the shared counter instance
+     */
+    public LongAdder counter(final String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Snapshot of all counters, sorted by name
+     */
+    public Map<String, Long> getCounters() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (final Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return result;
+    }
+
+    /**
+     * Register gauge which is evaluated only when metrics are read
+     *
+     * @param name metric name
+     * @param gauge supplier of the current value
+     */
+    public void gauge(final String name, final LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Snapshot of all gauges, sorted by name
+     */
+    public Map<String, Long> getGauges() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (final Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+
+        return result;
+    }
+
+    /**
+     * Get or register the latency timer with the given name
+     */
+    public LatencyTimer timer(final String name) {
+        return timers.computeIfAbsent(name, key -> new LatencyTimer());
+    }
+
+    /**
+     * All registered timers, sorted by name
+     */
+    public Map<String, LatencyTimer> getTimers() {
+        return new TreeMap<String, LatencyTimer>(timers);
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.gluu.idp.externalauth.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes {@link IdpMetrics} through JMX and in Prometheus text format
+ */
+public class IdpMetricsExporter implements IdpMetricsMXBean {
+
+    public static final String OBJECT_NAME = "org.gluu.idp:type=OxAuthAuthnMetrics";
+
+    private static final String PROMETHEUS_PREFIX = "oxauth_authn_";
+
+    private final Logger logger = LoggerFactory.getLogger(IdpMetricsExporter.class);
+
+    private final IdpMetrics metrics;
+
+    public IdpMetricsExporter(final IdpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void registerMBean() {
+        try {
+            final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!mbeanServer.isRegistered(objectName)) {
+                mbeanServer.registerMBean(this, objectName);
+            }
+        } catch (final Exception ex) {
+            logger.warn("Failed to register metrics MBean", ex);
+        }
+    }
+
+    public void unregisterMBean() {
+        try {
+            final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+        } catch (final Exception ex) {
+            logger.warn("Failed to unregister metrics MBean", ex);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return metrics.getCounters();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        return metrics.getGauges();
+    }
+
+    @Override
+    public Map<String, Long> getTimers() {
+        final Map<String, Long> result = new TreeMap<String, Long>();
+        for (final Map.Entry<String, LatencyTimer> entry : metrics.getTimers().entrySet()) {
+            final LatencyTimer timer = entry.getValue();
+            result.put(entry.getKey() + ".count", timer.getCount());
+            result.put(entry.getKey() + ".totalMicros", timer.getTotalMicros());
+            result.put(entry.getKey() + ".maxMicros", timer.getMaxMicros());
+            result.put(entry.getKey() + ".p50Micros", timer.getPercentileMicros(0.5));
+            result.put(entry.getKey() + ".p99Micros", timer.getPercentileMicros(0.99));
+            result.put(entry.getKey() + ".p999Micros", timer.getPercentileMicros(0.999));
+        }
+
+        return result;
+    }
+
+    /**
+     * Write all metrics in Prometheus text exposition format. Timers are exported as summaries in seconds
+     */
+    public void writePrometheus(final Writer writer) throws IOException {
+        for (final Map.Entry<String, Long> entry : metrics.getCounters().entrySet()) {
+            final String name = toPrometheusName(entry.getKey()) + "_total";
+            writer.write("# TYPE " + name + " counter\n");
+            writer.write(name + " " + entry.getValue() + "\n");
+        }
+
+        for (final Map.Entry<String, Long> entry : metrics.getGauges().entrySet()) {
+            final String name = toPrometheusName(entry.getKey());
+            writer.write("# TYPE " + name + " gauge\n");
+            writer.write(name + " " + entry.getValue() + "\n");
+        }
+
+        for (final Map.Entry<String, LatencyTimer> entry : metrics.getTimers().entrySet()) {
+            final String name = toPrometheusName(entry.getKey()) + "_seconds";
+            final LatencyTimer timer = entry.getValue();
+            writer.write("# TYPE " + name + " summary\n");
+            writer.write(name + "{quantile=\"0.5\"} " + toSeconds(timer.getPercentileMicros(0.5)) + "\n");
+            writer.write(name + "{quantile=\"0.99\"} " + toSeconds(timer.getPercentileMicros(0.99)) + "\n");
+            writer.write(name + "{quantile=\"0.999\"} " + toSeconds(timer.getPercentileMicros(0.999)) + "\n");
+            writer.write(name + "_sum " + toSeconds(timer.getTotalMicros()) + "\n");
+            writer.write(name + "_count " + timer.getCount() + "\n");
+        }
+    }
+
+    private static String toPrometheusName(final String name) {
+        return PROMETHEUS_PREFIX + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    private static String toSeconds(final long micros) {
+        return Double.toString(micros / 1000000.0);
+    }
+
+}
@@ -0,0 +1,19 @@
+package org.gluu.idp.externalauth.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link IdpMetrics}
+ */
+public interface IdpMetricsMXBean {
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    /**
+     * Timer statistics flattened to <code>&lt;timer&gt;.count</code>, <code>&lt;timer&gt;.p99Micros</code>, etc.
+     */
+    Map<String, Long> getTimers();
+
+}
@@ -0,0 +1,93 @@
+package org.gluu.idp.externalauth.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power of two microsecond buckets
+ * <p>
+ * Recording doesn't allocate, so timers can stay enabled under production load. Percentiles are
+ * approximated by the upper bound of the bucket.
+ */
+public final class LatencyTimer {
+
+    private static final int BUCKETS = 32;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    LatencyTimer() {
+    }
+
+    /**
+     * Record time elapsed since the given {@link System#nanoTime()} value
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(final long nanos) {
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        count.increment();
+        totalMicros.add(micros);
+        buckets.incrementAndGet(bucket(micros));
+
+        long max = maxMicros.get();
+        while ((micros > max) && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalMicros() {
+        return totalMicros.sum();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Approximate percentile in microseconds
+     *
+     * @param percentile value between 0 and 1, e.g. 0.99
+     */
+    public long getPercentileMicros(final double percentile) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+
+        return getMaxMicros();
+    }
+
+    private static int bucket(final long micros) {
+        if (micros <= 1) {
+            return 0;
+        }
+
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.gluu.idp.externalauth.metrics;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpSession;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serialized size of HttpSession attributes, as they would be replicated to cluster peers
+ * <p>
+ * Measuring serializes every attribute, so it's meant for troubleshooting and is disabled by default.
+ * Sizes of the individual attributes are logged at debug level.
+ */
+public final class SessionSizeMetrics {
+
+    private final Logger logger = LoggerFactory.getLogger(SessionSizeMetrics.class);
+
+    private final LongAdder samples;
+    private final LongAdder totalBytes;
+    private final LongAdder failures;
+    private final AtomicLong maxBytes = new AtomicLong();
+
+    private volatile boolean enabled;
+
+    public SessionSizeMetrics() {
+        final IdpMetrics metrics = IdpMetrics.instance();
+        this.samples = metrics.counter("session.size.samples");
+        this.totalBytes = metrics.counter("session.size.bytes");
+        this.failures = metrics.counter("session.size.notSerializable");
+        metrics.gauge("session.size.max", () -> maxBytes.get());
+    }
+
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Measure session attributes. Does nothing if measuring is disabled or there is no session
+     */
+    public void record(final HttpSession session) {
+        if (!enabled || (session == null)) {
+            return;
+        }
+
+        long sessionBytes = 0;
+        try {
+            for (final Enumeration<String> names = session.getAttributeNames(); names.hasMoreElements();) {
+                final String name = names.nextElement();
+                final long bytes = serializedSize(session.getAttribute(name));
+                if (bytes < 0) {
+                    failures.increment();
+                    logger.debug("Session attribute '{}' is not serializable", name);
+                    continue;
+                }
+
+                logger.debug("Session attribute '{}': {} bytes", name, bytes);
+                sessionBytes += bytes;
+            }
+        } catch (final IllegalStateException ex) {
+            // Session was invalidated
+            return;
+        }
+
+        samples.increment();
+        totalBytes.add(sessionBytes);
+        long max = maxBytes.get();
+        while ((sessionBytes > max) && !maxBytes.compareAndSet(max, sessionBytes)) {
+            max = maxBytes.get();
+        }
+    }
+
+    private static long serializedSize(final Object value) {
+        final CountingOutputStream counter = new CountingOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+            out.writeObject(value);
+        } catch (final IOException ex) {
+            return -1;
+        }
+
+        return counter.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(final int b) {
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+
+/**
+ * Precomputed authorization request URL prefixes per relying party
+ * <p>
+ * Prefix contains parameters which are the same for every login of the relying party: response_type, client_id,
+ * scope, redirect_uri and entityId. Only state, nonce and per request parameters are appended to it.
+ */
+final class AuthorizationUrlCache {
+
+	static final String ENTITY_ID_PARAMETER = "entityId";
+
+	private final String authorizationEndpoint;
+	private final String commonPrefix;
+	private final int maxEntries;
+
+	private final ConcurrentHashMap<String, String> prefixes = new ConcurrentHashMap<String, String>();
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+	AuthorizationUrlCache(String authorizationEndpoint, String clientId, String scope, String redirectUri, int maxEntries) {
+		this.authorizationEndpoint = authorizationEndpoint;
+		this.maxEntries = maxEntries;
+
+		final StringBuilder url = new StringBuilder(authorizationEndpoint);
+		url.append(authorizationEndpoint.indexOf('?') == -1 ? '?' : '&');
+		url.append("response_type=code");
+		appendParameter(url, "client_id", clientId);
+		appendParameter(url, "scope", scope);
+		appendParameter(url, "redirect_uri", redirectUri);
+		this.commonPrefix = url.toString();
+
+		this.hits = IdpMetrics.instance().counter("openid.authorizationUrl.hit");
+		this.misses = IdpMetrics.instance().counter("openid.authorizationUrl.miss");
+	}
+
+	/**
+	 * Check if prefixes were built for the given authorization endpoint
+	 */
+	boolean isFor(String authorizationEndpoint) {
+		return this.authorizationEndpoint.equals(authorizationEndpoint);
+	}
+
+	String getPrefix(String relyingPartyId) {
+		if (relyingPartyId == null) {
+			return commonPrefix;
+		}
+
+		final String prefix = prefixes.get(relyingPartyId);
+		if (prefix != null) {
+			hits.increment();
+			return prefix;
+		}
+		misses.increment();
+
+		final StringBuilder url = new StringBuilder(commonPrefix);
+		appendParameter(url, ENTITY_ID_PARAMETER, relyingPartyId);
+		final String result = url.toString();
+
+		// Relying parties are a bounded set in practice, the limit only protects from unexpected growth
+		if (prefixes.size() < maxEntries) {
+			prefixes.putIfAbsent(relyingPartyId, result);
+		}
+
+		return result;
+	}
+
+	static void appendParameter(StringBuilder url, String name, String value) {
+		if (value == null) {
+			return;
+		}
+
+		url.append('&').append(urlEncode(name)).append('=').append(urlEncode(value));
+	}
+
+	static String urlEncode(String value) {
+		if (isUnreserved(value)) {
+			return value;
+		}
+
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Values like state, nonce and random codes consist of characters which don't need encoding
+	 */
+	private static boolean isUnreserved(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			final char ch = value.charAt(i);
+			if (!(((ch >= 'a') && (ch <= 'z')) || ((ch >= 'A') && (ch <= 'Z')) || ((ch >= '0') && (ch <= '9')) || (ch == '-') || (ch == '_')
+					|| (ch == '.') || (ch == '*'))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+}
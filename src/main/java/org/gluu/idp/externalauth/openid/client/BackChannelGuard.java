@@ -0,0 +1,169 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulkhead and circuit breaker for back-channel calls to OpenID Provider
+ * <p>
+ * Bulkhead limits number of concurrent calls, so degraded OpenID Provider can't occupy all request threads.
+ * Circuit breaker opens after number of consecutive failures and rejects calls without waiting for socket
+ * timeouts. When open interval passes one probe call is allowed (half-open state); its result closes or opens the
+ * circuit again. Limits can be changed at runtime, state is kept across configuration reloads.
+ */
+public final class BackChannelGuard {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Granted call. Has to be released with the result of the call
+	 */
+	public static final class Permit {
+
+		private final boolean probe;
+
+		private Permit(boolean probe) {
+			this.probe = probe;
+		}
+	}
+
+	private static final Permit CALL = new Permit(false);
+	private static final Permit PROBE = new Permit(true);
+
+	private final Logger logger = LoggerFactory.getLogger(BackChannelGuard.class);
+
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile long openUntil;
+
+	private volatile int maxConcurrent;
+	private volatile int failureThreshold;
+	private volatile long openIntervalMillis;
+
+	private final LongAdder bulkheadRejections;
+	private final LongAdder circuitRejections;
+	private final LongAdder circuitOpenings;
+
+	/**
+	 * @param metricsPrefix prefix of metric names, e.g. <code>openid</code>
+	 */
+	public BackChannelGuard(IdpConfiguration configuration, String metricsPrefix) {
+		configure(configuration);
+
+		final IdpMetrics metrics = IdpMetrics.instance();
+		this.bulkheadRejections = metrics.counter(metricsPrefix + ".backChannel.rejected.bulkhead");
+		this.circuitRejections = metrics.counter(metricsPrefix + ".backChannel.rejected.circuitOpen");
+		this.circuitOpenings = metrics.counter(metricsPrefix + ".backChannel.circuitOpened");
+		metrics.gauge(metricsPrefix + ".backChannel.inFlight", () -> inFlight.get());
+		metrics.gauge(metricsPrefix + ".backChannel.state", () -> state.get().ordinal());
+	}
+
+	/**
+	 * Apply limits from configuration snapshot
+	 */
+	public void configure(IdpConfiguration configuration) {
+		this.maxConcurrent = configuration.getInt("oxidp_BackChannelMaxConcurrent", 100);
+		this.failureThreshold = configuration.getInt("oxidp_CircuitBreakerFailureThreshold", 5);
+		this.openIntervalMillis = TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_CircuitBreakerOpenInterval", 30));
+	}
+
+	/**
+	 * Try to start back-channel call
+	 *
+	 * @return permit or <code>null</code> if call is rejected
+	 */
+	public Permit acquire() {
+		final Permit permit = acquireCircuit();
+		if (permit == null) {
+			circuitRejections.increment();
+			return null;
+		}
+
+		final int current = inFlight.incrementAndGet();
+		final int max = maxConcurrent;
+		if ((max > 0) && (current > max)) {
+			inFlight.decrementAndGet();
+			bulkheadRejections.increment();
+			if (permit.probe) {
+				// Let another request do the probe
+				state.compareAndSet(State.HALF_OPEN, State.OPEN);
+			}
+			return null;
+		}
+
+		return permit;
+	}
+
+	/**
+	 * Finish back-channel call
+	 *
+	 * @param success <code>false</code> if OpenID Provider didn't respond or responded with server error
+	 */
+	public void release(Permit permit, boolean success) {
+		inFlight.decrementAndGet();
+
+		if (success) {
+			consecutiveFailures.set(0);
+			if (permit.probe && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+				logger.info("OpenID Provider back-channel recovered, circuit is closed");
+			}
+			return;
+		}
+
+		if (permit.probe) {
+			open();
+			return;
+		}
+
+		final int threshold = failureThreshold;
+		if ((threshold > 0) && (consecutiveFailures.incrementAndGet() >= threshold) && (state.get() == State.CLOSED)) {
+			// Set before state change, so no caller can see open circuit with stale interval
+			openUntil = System.currentTimeMillis() + openIntervalMillis;
+			if (state.compareAndSet(State.CLOSED, State.OPEN)) {
+				circuitOpenings.increment();
+				logger.error("OpenID Provider back-channel failed {} times in a row, circuit is open for {} ms", threshold, openIntervalMillis);
+			}
+		}
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	private Permit acquireCircuit() {
+		final State current = state.get();
+		if (current == State.CLOSED) {
+			return CALL;
+		}
+
+		if ((current == State.OPEN) && (System.currentTimeMillis() >= openUntil) && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+			logger.info("Sending probe call to OpenID Provider");
+			return PROBE;
+		}
+
+		return null;
+	}
+
+	private void open() {
+		openUntil = System.currentTimeMillis() + openIntervalMillis;
+		consecutiveFailures.set(0);
+		state.set(State.OPEN);
+		circuitOpenings.increment();
+		logger.error("OpenID Provider back-channel probe failed, circuit is open for {} ms", openIntervalMillis);
+	}
+
+}
@@ -0,0 +1,43 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.gluu.oxauth.client.auth.user.UserProfile;
+
+/**
+ * User profile shared by logins served from {@link UserProfileCache}
+ * <p>
+ * Translators can keep values derived from the profile in it, so they aren't rebuilt for every login. Profile is
+ * not modified after it's put into cache.
+ */
+public final class CachedUserProfile extends UserProfile {
+
+	private static final long serialVersionUID = 2390441254120787131L;
+
+	private final transient ConcurrentHashMap<Object, Object> derivedValues = new ConcurrentHashMap<Object, Object>(4);
+
+	CachedUserProfile(UserProfile profile) {
+		setId(profile.getId());
+		for (Map.Entry<String, Object> entry : profile.getAttributes().entrySet()) {
+			addAttribute(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Get value derived from this profile, producing it on first use
+	 *
+	 * @param owner component which owns the value, e.g. translator instance
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getDerivedValue(Object owner, Function<UserProfile, T> producer) {
+		if (derivedValues == null) {
+			// Deserialized copy
+			return producer.apply(this);
+		}
+
+		return (T) derivedValues.computeIfAbsent(owner, key -> producer.apply(this));
+	}
+
+}
@@ -0,0 +1,275 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang.StringUtils;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client side load balancing of back-channel requests across OpenID Provider nodes
+ * <p>
+ * Token and user info endpoint URLs from discovery document are re-targeted to one of the replica base URLs. Replica
+ * is chosen from two random healthy ones by requests in flight and smoothed latency. Health is tracked passively
+ * from results of real requests: replica with high error rate or latency is ejected for a while. At most half of
+ * replicas are ejected at the same time, and if none is healthy requests are still sent, so a false alarm can't stop
+ * all logins.
+ */
+final class EndpointBalancer {
+
+	private static final double ALPHA = 0.2;
+
+	private final Logger logger = LoggerFactory.getLogger(EndpointBalancer.class);
+
+	private final String metricsPrefix;
+	private final String source;
+	private final Replica[] replicas;
+
+	private final double errorRateThreshold;
+	private final long slowThresholdNanos;
+	private final long ejectionIntervalMillis;
+	private final int minSamples;
+
+	private final LongAdder ejections;
+
+	/**
+	 * @param metricsPrefix prefix of metric names, e.g. <code>openid.client.&lt;name&gt;</code>
+	 * @param replicas comma separated base URLs, e.g. <code>https://oxauth1.example.org:8443</code>
+	 */
+	EndpointBalancer(String metricsPrefix, String replicas, double errorRateThreshold, long slowThresholdMillis, long ejectionIntervalMillis,
+			int minSamples) {
+		this.metricsPrefix = metricsPrefix;
+		this.errorRateThreshold = errorRateThreshold;
+		this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+		this.ejectionIntervalMillis = ejectionIntervalMillis;
+		this.minSamples = minSamples;
+		this.source = replicas + "|" + errorRateThreshold + "|" + slowThresholdMillis + "|" + ejectionIntervalMillis + "|" + minSamples;
+
+		final List<Replica> result = new ArrayList<Replica>();
+		for (String baseUrl : StringUtils.split(replicas, ", ")) {
+			final URI base = toBaseUri(baseUrl);
+			if (base == null) {
+				logger.error("Ignoring invalid back-channel replica URL '{}'", baseUrl);
+				continue;
+			}
+			result.add(new Replica(base));
+		}
+		this.replicas = result.toArray(new Replica[result.size()]);
+
+		this.ejections = IdpMetrics.instance().counter(metricsPrefix + ".replica.ejected");
+	}
+
+	/**
+	 * Publish number of currently ejected replicas. Only the balancer which is kept after reload registers it, so the
+	 * gauge never reads a discarded one
+	 */
+	void registerGauge() {
+		IdpMetrics.instance().gauge(metricsPrefix + ".replica.ejectedNow", () -> countEjected(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Key of the settings. Balancer with the same key is reused on reload, so health statistics are kept
+	 */
+	String getSource() {
+		return source;
+	}
+
+	boolean isEmpty() {
+		return replicas.length == 0;
+	}
+
+	List<Replica> getReplicas() {
+		return Arrays.asList(replicas);
+	}
+
+	/**
+	 * Choose replica for the next request. Result has to be passed to {@link #record} when request is done
+	 */
+	Replica select() {
+		final Replica replica = choose(System.currentTimeMillis());
+		replica.inFlight.incrementAndGet();
+
+		return replica;
+	}
+
+	private Replica choose(long now) {
+		int healthy = 0;
+		for (Replica replica : replicas) {
+			if (!replica.isEjected(now)) {
+				healthy++;
+			}
+		}
+
+		if (healthy == 0) {
+			// Fail open to the replica which returns first
+			Replica result = replicas[0];
+			for (Replica replica : replicas) {
+				if (replica.ejectedUntil < result.ejectedUntil) {
+					result = replica;
+				}
+			}
+			return result;
+		}
+
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final int first = random.nextInt(healthy);
+		final Replica a = getHealthy(first, now);
+		if (healthy == 1) {
+			return a;
+		}
+
+		final Replica b = getHealthy((first + 1 + random.nextInt(healthy - 1)) % healthy, now);
+
+		return (a.score() <= b.score()) ? a : b;
+	}
+
+	/**
+	 * Record result of request sent to replica
+	 *
+	 * @param success <code>false</code> if replica didn't respond or responded with server error
+	 */
+	void record(Replica replica, long elapsedNanos, boolean success) {
+		replica.inFlight.decrementAndGet();
+
+		final boolean unhealthy;
+		synchronized (replica) {
+			replica.samples++;
+			replica.latencyNanos = (replica.samples == 1) ? elapsedNanos : (replica.latencyNanos * (1 - ALPHA) + elapsedNanos * ALPHA);
+			replica.errorRate = replica.errorRate * (1 - ALPHA) + (success ? 0 : ALPHA);
+			unhealthy = (replica.samples >= minSamples)
+					&& ((replica.errorRate > errorRateThreshold) || ((slowThresholdNanos > 0) && (replica.latencyNanos > slowThresholdNanos)));
+		}
+
+		if (unhealthy) {
+			eject(replica);
+		}
+	}
+
+	private void eject(Replica replica) {
+		final long now = System.currentTimeMillis();
+		if (replica.isEjected(now) || (countEjected(now) >= replicas.length / 2)) {
+			return;
+		}
+
+		final double errorRate;
+		final long latencyMillis;
+		synchronized (replica) {
+			errorRate = replica.errorRate;
+			latencyMillis = TimeUnit.NANOSECONDS.toMillis((long) replica.latencyNanos);
+			replica.ejectedUntil = now + ejectionIntervalMillis;
+		}
+		ejections.increment();
+		logger.warn("Ejected back-channel replica {} for {} ms, error rate: {}, latency: {} ms", replica.base, ejectionIntervalMillis,
+				String.format("%.2f", errorRate), latencyMillis);
+	}
+
+	private int countEjected(long now) {
+		int count = 0;
+		for (Replica replica : replicas) {
+			if (replica.isEjected(now)) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	private static URI toBaseUri(String url) {
+		try {
+			final URI uri = new URI(url);
+
+			return ((uri.getScheme() == null) || (uri.getHost() == null)) ? null : uri;
+		} catch (URISyntaxException ex) {
+			return null;
+		}
+	}
+
+	private Replica getHealthy(int index, long now) {
+		int current = 0;
+		for (Replica replica : replicas) {
+			if (!replica.isEjected(now) && (current++ == index)) {
+				return replica;
+			}
+		}
+
+		return replicas[0];
+	}
+
+	static final class Replica {
+
+		private final URI base;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final ConcurrentHashMap<String, String> endpoints = new ConcurrentHashMap<String, String>();
+
+		// Guarded by this
+		private int samples;
+		private double latencyNanos;
+		private double errorRate;
+		private volatile long ejectedUntil;
+
+		Replica(URI base) {
+			this.base = base;
+		}
+
+		/**
+		 * Replace scheme, host and port of endpoint with the replica ones
+		 */
+		String resolve(String endpoint) {
+			final String resolved = endpoints.get(endpoint);
+			if (resolved != null) {
+				return resolved;
+			}
+
+			try {
+				final URI uri = URI.create(endpoint);
+				final String result = new URI(base.getScheme(), uri.getUserInfo(), base.getHost(), base.getPort(), uri.getPath(), uri.getQuery(),
+						uri.getFragment()).toString();
+				endpoints.putIfAbsent(endpoint, result);
+				return result;
+			} catch (URISyntaxException | IllegalArgumentException ex) {
+				return endpoint;
+			}
+		}
+
+		private boolean isEjected(long now) {
+			final long until = ejectedUntil;
+			if (until == 0) {
+				return false;
+			}
+			if (now < until) {
+				return true;
+			}
+
+			// Returns with clean statistics
+			synchronized (this) {
+				if (ejectedUntil == until) {
+					samples = 0;
+					latencyNanos = 0;
+					errorRate = 0;
+					ejectedUntil = 0;
+				}
+			}
+			return false;
+		}
+
+		private double score() {
+			final double latency;
+			synchronized (this) {
+				latency = latencyNanos;
+			}
+
+			return (inFlight.get() + 1) * (latency + 1);
+		}
+	}
+
+}
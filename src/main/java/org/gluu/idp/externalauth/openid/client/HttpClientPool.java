@@ -0,0 +1,166 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.jboss.resteasy.client.ClientExecutor;
+import org.jboss.resteasy.client.core.executors.ApacheHttpClient4Executor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded keep-alive connection pool shared by all back-channel calls to oxAuth
+ * <p>
+ * All connections are created by one SSL socket factory, so TLS sessions are reused by the JSSE session cache
+ * when a new connection is opened to the same node.
+ */
+public class HttpClientPool {
+
+	private final Logger logger = LoggerFactory.getLogger(HttpClientPool.class);
+
+	private final InstrumentedConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final ClientExecutor clientExecutor;
+
+	private final LongAdder acquireCount;
+	private final LongAdder acquireTimeMicros;
+	private final LongAdder acquireTimeouts;
+
+	public HttpClientPool(IdpConfiguration configuration) {
+		final int maxConnections = configuration.getInt("oxidp_HttpMaxConnections", 200);
+		final int maxConnectionsPerRoute = configuration.getInt("oxidp_HttpMaxConnectionsPerRoute", 100);
+		final int connectTimeout = configuration.getInt("oxidp_HttpConnectTimeout", 5000);
+		final int readTimeout = configuration.getInt("oxidp_HttpReadTimeout", 10000);
+		final int acquireTimeout = configuration.getInt("oxidp_HttpPoolAcquireTimeout", 2000);
+		final long keepAlive = configuration.getLong("oxidp_HttpKeepAlive", 60);
+		final int validateAfterInactivity = configuration.getInt("oxidp_HttpValidateAfterInactivity", 2000);
+
+		final IdpMetrics metrics = IdpMetrics.instance();
+		this.acquireCount = metrics.counter("http.pool.acquire.count");
+		this.acquireTimeMicros = metrics.counter("http.pool.acquire.timeMicros");
+		this.acquireTimeouts = metrics.counter("http.pool.acquire.timeout");
+
+		final SSLConnectionSocketFactory sslSocketFactory = new SSLConnectionSocketFactory(SSLContexts.createSystemDefault(),
+				SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+
+		this.connectionManager = new InstrumentedConnectionManager(RegistryBuilder.<ConnectionSocketFactory> create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslSocketFactory).build());
+		this.connectionManager.setMaxTotal(maxConnections);
+		this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		this.connectionManager.setValidateAfterInactivity(validateAfterInactivity);
+
+		final RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeout).setSocketTimeout(readTimeout)
+				.setConnectionRequestTimeout(acquireTimeout).build();
+
+		// Connection state is disabled to allow reuse of TLS connections which were authenticated with client certificate
+		this.httpClient = HttpClients.custom().setConnectionManager(connectionManager).setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(new KeepAliveStrategy(TimeUnit.SECONDS.toMillis(keepAlive))).disableConnectionState()
+				.evictExpiredConnections().evictIdleConnections(keepAlive, TimeUnit.SECONDS).build();
+		this.clientExecutor = new ApacheHttpClient4Executor(httpClient);
+
+		metrics.gauge("http.pool.leased", () -> getTotalStats().getLeased());
+		metrics.gauge("http.pool.idle", () -> getTotalStats().getAvailable());
+		metrics.gauge("http.pool.pending", () -> getTotalStats().getPending());
+		metrics.gauge("http.pool.max", () -> getTotalStats().getMax());
+
+		logger.info("Created back-channel HTTP connection pool, maxConnections: {}, maxConnectionsPerRoute: {}", maxConnections,
+				maxConnectionsPerRoute);
+	}
+
+	public ClientExecutor getClientExecutor() {
+		return clientExecutor;
+	}
+
+	public PoolStats getTotalStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	public void destroy() {
+		try {
+			httpClient.close();
+		} catch (Exception ex) {
+			logger.warn("Failed to close back-channel HTTP client", ex);
+		}
+	}
+
+	/**
+	 * Keep connection alive for the time specified by server but no longer than configured limit
+	 */
+	private static class KeepAliveStrategy extends DefaultConnectionKeepAliveStrategy {
+
+		private final long maxKeepAliveMillis;
+
+		KeepAliveStrategy(long maxKeepAliveMillis) {
+			this.maxKeepAliveMillis = maxKeepAliveMillis;
+		}
+
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			final long keepAlive = super.getKeepAliveDuration(response, context);
+			if ((keepAlive <= 0) || (keepAlive > maxKeepAliveMillis)) {
+				return maxKeepAliveMillis;
+			}
+
+			return keepAlive;
+		}
+	}
+
+	/**
+	 * Connection manager which records time spent waiting for a pooled connection
+	 */
+	private class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+
+		InstrumentedConnectionManager(Registry<ConnectionSocketFactory> registry) {
+			super(registry);
+		}
+
+		@Override
+		public ConnectionRequest requestConnection(final HttpRoute route, final Object state) {
+			final ConnectionRequest connectionRequest = super.requestConnection(route, state);
+			return new ConnectionRequest() {
+
+				@Override
+				public boolean cancel() {
+					return connectionRequest.cancel();
+				}
+
+				@Override
+				public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+						throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+					final long start = System.nanoTime();
+					try {
+						return connectionRequest.get(timeout, timeUnit);
+					} catch (ConnectionPoolTimeoutException ex) {
+						acquireTimeouts.increment();
+						throw ex;
+					} finally {
+						acquireCount.increment();
+						acquireTimeMicros.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+					}
+				}
+			};
+		}
+	}
+
+}
@@ -0,0 +1,305 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang.StringUtils;
+import org.gluu.oxauth.model.jwt.Jwt;
+import org.gluu.oxauth.model.jwt.JwtClaimName;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates id_token and back-channel logout_token signature and claims using keys from {@link OpenIdMetadataCache}
+ *
+ * The signature is verified with JCA directly, so no key material or provider metadata is fetched on request thread.
+ * RS*, ES* and, with the client secret as key, HS* algorithms are accepted
+ */
+public class IdTokenValidator {
+
+	private static final String BACKCHANNEL_LOGOUT_EVENT = "http://schemas.openid.net/event/backchannel-logout";
+	private static final String AUTHORIZED_PARTY_CLAIM = "azp";
+
+	private final Logger logger = LoggerFactory.getLogger(IdTokenValidator.class);
+
+	private final OpenIdMetadataCache metadataCache;
+	private final String clientId;
+	private final String clientSecret;
+	private final long clockSkewMillis;
+
+	/**
+	 * @param clientSecret key of HS256, HS384 and HS512 signatures, or <code>null</code> to reject them
+	 */
+	public IdTokenValidator(OpenIdMetadataCache metadataCache, String clientId, String clientSecret, long clockSkewMillis) {
+		this.metadataCache = metadataCache;
+		this.clientId = clientId;
+		this.clientSecret = clientSecret;
+		this.clockSkewMillis = clockSkewMillis;
+	}
+
+	/**
+	 * Parse and validate id_token
+	 *
+	 * @param idToken encoded id_token
+	 * @param expectedNonce nonce sent in authorization request
+	 * @return parsed id_token or <code>null</code> if it's not valid
+	 */
+	public Jwt validate(String idToken, String expectedNonce) {
+		try {
+			final Jwt jwt = Jwt.parse(idToken);
+			if (!isValidSignature("id_token", idToken, jwt) || !isValidClaims(jwt, expectedNonce)) {
+				return null;
+			}
+
+			return jwt;
+		} catch (Exception ex) {
+			logger.error("Failed to validate id_token", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Validate logout_token of back-channel logout request
+	 *
+	 * @param jwt parsed logout_token
+	 * @param maxAgeMillis how long after <code>iat</code> token is accepted
+	 * @param replayGuard guard against reuse of <code>jti</code>
+	 */
+	public boolean isValidLogoutToken(String logoutToken, Jwt jwt, long maxAgeMillis, ReplayGuard replayGuard) {
+		try {
+			return isValidSignature("logout_token", logoutToken, jwt) && isValidLogoutClaims(jwt, maxAgeMillis, replayGuard);
+		} catch (Exception ex) {
+			logger.error("Failed to validate logout_token", ex);
+			return false;
+		}
+	}
+
+	private boolean isValidSignature(String tokenName, String token, Jwt jwt) throws Exception {
+		final String algorithm = jwt.getHeader().getClaimAsString("alg");
+		final String jcaAlgorithm = toJcaAlgorithm(algorithm);
+		if (jcaAlgorithm == null) {
+			logger.error("Unsupported {} signature algorithm '{}'", tokenName, algorithm);
+			return false;
+		}
+
+		final int signatureStart = token.lastIndexOf('.');
+		final byte[] signingInput = token.substring(0, signatureStart).getBytes(StandardCharsets.US_ASCII);
+		byte[] signature = Base64.getUrlDecoder().decode(token.substring(signatureStart + 1));
+
+		if (algorithm.startsWith("HS")) {
+			return isValidMac(tokenName, jcaAlgorithm, signingInput, signature);
+		}
+
+		final PublicKey publicKey = metadataCache.getPublicKey(jwt.getHeader().getKeyId());
+		if (publicKey == null) {
+			return false;
+		}
+
+		if (algorithm.startsWith("ES")) {
+			signature = toDerSignature(signature);
+		}
+
+		final Signature verifier = Signature.getInstance(jcaAlgorithm);
+		verifier.initVerify(publicKey);
+		verifier.update(signingInput);
+		if (!verifier.verify(signature)) {
+			logger.error("Invalid {} signature", tokenName);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Client secret is the MAC key, as registered with <code>id_token_signed_response_alg</code> HS*
+	 */
+	private boolean isValidMac(String tokenName, String jcaAlgorithm, byte[] signingInput, byte[] signature) throws Exception {
+		if (StringUtils.isEmpty(clientSecret)) {
+			logger.error("{} is signed with client secret, but client has no secret", tokenName);
+			return false;
+		}
+
+		final Mac mac = Mac.getInstance(jcaAlgorithm);
+		mac.init(new SecretKeySpec(clientSecret.getBytes(StandardCharsets.UTF_8), jcaAlgorithm));
+		if (!MessageDigest.isEqual(mac.doFinal(signingInput), signature)) {
+			logger.error("Invalid {} signature", tokenName);
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean isValidClaims(Jwt jwt, String expectedNonce) {
+		if (!isValidIssuerAndAudience("id_token", jwt)) {
+			return false;
+		}
+
+		// With several audiences the token must be issued to this client
+		final List<String> audience = jwt.getClaims().getClaimAsStringList(JwtClaimName.AUDIENCE);
+		final String authorizedParty = jwt.getClaims().getClaimAsString(AUTHORIZED_PARTY_CLAIM);
+		if (((audience.size() > 1) || (authorizedParty != null)) && !StringUtils.equals(clientId, authorizedParty)) {
+			logger.error("Invalid id_token authorized party '{}'", authorizedParty);
+			return false;
+		}
+
+		final long now = System.currentTimeMillis();
+		final Date expiration = jwt.getClaims().getClaimAsDate(JwtClaimName.EXPIRATION_TIME);
+		if ((expiration == null) || (expiration.getTime() + clockSkewMillis < now)) {
+			logger.error("Expired id_token, exp: '{}'", expiration);
+			return false;
+		}
+
+		final Date issuedAt = jwt.getClaims().getClaimAsDate(JwtClaimName.ISSUED_AT);
+		if ((issuedAt == null) || (issuedAt.getTime() - clockSkewMillis > now)) {
+			logger.error("Invalid id_token issue time, iat: '{}'", issuedAt);
+			return false;
+		}
+
+		final String nonce = jwt.getClaims().getClaimAsString(JwtClaimName.NONCE);
+		if ((expectedNonce == null) || !StringUtils.equals(expectedNonce, nonce)) {
+			logger.error("Invalid id_token nonce");
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Logout token claims per OpenID Connect Back-Channel Logout 1.0
+	 */
+	private boolean isValidLogoutClaims(Jwt jwt, long maxAgeMillis, ReplayGuard replayGuard) throws Exception {
+		if (!isValidIssuerAndAudience("logout_token", jwt)) {
+			return false;
+		}
+
+		final Date issuedAt = jwt.getClaims().getClaimAsDate(JwtClaimName.ISSUED_AT);
+		final long now = System.currentTimeMillis();
+		if ((issuedAt == null) || (issuedAt.getTime() - clockSkewMillis > now) || (issuedAt.getTime() + maxAgeMillis + clockSkewMillis < now)) {
+			logger.error("Invalid logout_token issue time, iat: '{}'", issuedAt);
+			return false;
+		}
+
+		final JSONObject claims = jwt.getClaims().toJsonObject();
+		final JSONObject events = claims.optJSONObject("events");
+		if ((events == null) || !events.has(BACKCHANNEL_LOGOUT_EVENT)) {
+			logger.error("logout_token has no back-channel logout event");
+			return false;
+		}
+
+		if (StringUtils.isEmpty(claims.optString(JwtClaimName.SUBJECT_IDENTIFIER)) && StringUtils.isEmpty(claims.optString("sid"))) {
+			logger.error("logout_token has neither sub nor sid");
+			return false;
+		}
+
+		if (claims.has(JwtClaimName.NONCE)) {
+			logger.error("logout_token must not contain nonce");
+			return false;
+		}
+
+		final String jwtId = claims.optString(JwtClaimName.JWT_ID);
+		if (StringUtils.isEmpty(jwtId) || !replayGuard.markUsed(jwtId, issuedAt.getTime() + maxAgeMillis + clockSkewMillis)) {
+			logger.error("logout_token has no jti or was already used");
+			return false;
+		}
+
+		return true;
+	}
+
+	private boolean isValidIssuerAndAudience(String tokenName, Jwt jwt) {
+		final String issuer = jwt.getClaims().getClaimAsString(JwtClaimName.ISSUER);
+		final String expectedIssuer = metadataCache.getOpenIdConfiguration().getIssuer();
+		if (!StringUtils.equals(expectedIssuer, issuer)) {
+			logger.error("Invalid {} issuer '{}', expected '{}'", tokenName, issuer, expectedIssuer);
+			return false;
+		}
+
+		final List<String> audience = jwt.getClaims().getClaimAsStringList(JwtClaimName.AUDIENCE);
+		if ((audience == null) || !audience.contains(clientId)) {
+			logger.error("Invalid {} audience '{}'", tokenName, audience);
+			return false;
+		}
+
+		return true;
+	}
+
+	private String toJcaAlgorithm(String algorithm) {
+		if (algorithm == null) {
+			return null;
+		}
+
+		switch (algorithm) {
+		case "RS256":
+			return "SHA256withRSA";
+		case "RS384":
+			return "SHA384withRSA";
+		case "RS512":
+			return "SHA512withRSA";
+		case "ES256":
+			return "SHA256withECDSA";
+		case "ES384":
+			return "SHA384withECDSA";
+		case "ES512":
+			return "SHA512withECDSA";
+		case "HS256":
+			return "HmacSHA256";
+		case "HS384":
+			return "HmacSHA384";
+		case "HS512":
+			return "HmacSHA512";
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * JWS ECDSA signature is R || S concatenation, JCA expects ASN.1 DER sequence
+	 */
+	private byte[] toDerSignature(byte[] jwsSignature) {
+		final int length = jwsSignature.length / 2;
+		final byte[] r = new BigInteger(1, Arrays.copyOfRange(jwsSignature, 0, length)).toByteArray();
+		final byte[] s = new BigInteger(1, Arrays.copyOfRange(jwsSignature, length, jwsSignature.length)).toByteArray();
+
+		final ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+		writeDerInteger(sequence, r);
+		writeDerInteger(sequence, s);
+
+		final ByteArrayOutputStream der = new ByteArrayOutputStream();
+		der.write(0x30);
+		writeDerLength(der, sequence.size());
+		der.write(sequence.toByteArray(), 0, sequence.size());
+
+		return der.toByteArray();
+	}
+
+	private void writeDerInteger(ByteArrayOutputStream out, byte[] value) {
+		out.write(0x02);
+		writeDerLength(out, value.length);
+		out.write(value, 0, value.length);
+	}
+
+	private void writeDerLength(ByteArrayOutputStream out, int length) {
+		if (length < 0x80) {
+			out.write(length);
+		} else if (length < 0x100) {
+			out.write(0x81);
+			out.write(length);
+		} else {
+			out.write(0x82);
+			out.write(length >> 8);
+			out.write(length & 0xFF);
+		}
+	}
+
+}
@@ -1,25 +1,1019 @@
 package org.gluu.idp.externalauth.openid.client;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringUtils;
+import org.gluu.context.J2EContext;
+import org.gluu.context.WebContext;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.idp.externalauth.metrics.LatencyTimer;
 import org.gluu.idp.externalauth.openid.conf.IdpAppConfiguration;
 import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.gluu.idp.externalauth.openid.conf.IdpConfigurationListener;
 import org.gluu.idp.externalauth.openid.conf.IdpLdapAppConfiguration;
+import org.gluu.oxauth.client.BaseResponse;
+import org.gluu.oxauth.client.JwkClient;
 import org.gluu.oxauth.client.OpenIdClient;
+import org.gluu.oxauth.client.OpenIdConfigurationResponse;
+import org.gluu.oxauth.client.TokenClient;
+import org.gluu.oxauth.client.TokenResponse;
+import org.gluu.oxauth.client.UserInfoClient;
+import org.gluu.oxauth.client.UserInfoResponse;
+import org.gluu.oxauth.client.auth.principal.OpenIdCredentials;
+import org.gluu.oxauth.client.auth.user.UserProfile;
+import org.gluu.oxauth.model.jwt.Jwt;
+import org.gluu.oxauth.model.jwt.JwtClaimName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This class is the oxAuth client which prepares AutZ requests and retrieve user profile
- * 
+ * <p>
+ * OpenID Provider discovery document and JWKS are served from {@link OpenIdMetadataCache} which is
+ * refreshed in background, so neither of them is loaded on request thread. Settings derived from configuration are
+ * kept in one immutable snapshot which is replaced when configuration is reloaded.
+ *
  * @author Yuriy Movchan
  * @version 0.1, 09/13/2018
  */
-public class IdpAuthClient extends OpenIdClient<IdpAppConfiguration, IdpLdapAppConfiguration> {
+public class IdpAuthClient extends OpenIdClient<IdpAppConfiguration, IdpLdapAppConfiguration> implements IdpConfigurationListener {
+
+	private static final String STATE_ATTRIBUTE = "#state_parameter";
+	private static final String NONCE_ATTRIBUTE = "#nonce_parameter";
+	private static final String ID_TOKEN_ATTRIBUTE = "#id_token";
+	private static final String SID_ATTRIBUTE = "#sid";
+	private static final String CLIENT_ATTRIBUTE = "#client";
+
+	// Attributes shared by all clients are kept under a fixed prefix, the base client prefixes its own with client name
+	private static final String SHARED_ATTRIBUTE_PREFIX = "oxidp#";
+	private static final String LOGOUT_SESSION_ATTRIBUTE = "#logout_session";
+
+	private static final String SID_CLAIM = "sid";
+
+	private static final String WARM_UP_CLAIM = "warmup";
+
+	private static final String BROWSER_BINDING_COOKIE = "oxidp_state_binding";
+
+	private static final String STATE_CLAIMS_ATTRIBUTE = IdpAuthClient.class.getName() + ".stateClaims";
+	private static final Map<String, String> INVALID_STATE_CLAIMS = Collections.unmodifiableMap(new HashMap<String, String>());
 
-	@SuppressWarnings("unused")
 	private final Logger logger = LoggerFactory.getLogger(IdpAuthClient.class);
 
+	private final String name;
+	private final String metricsPrefix;
+	private final HttpClientPool httpClientPool;
+	private final boolean ownsHttpClientPool;
+	private final BackChannelGuard backChannelGuard;
+	private final SingleFlight<TokenResponse> tokenFlights;
+	private final SingleFlight<UserInfoResponse> userInfoFlights;
+	// Keys of callbacks accepted with signed state, so their duplicates can share the code exchange
+	private final InMemoryReplayGuard acceptedCallbacks;
+	private final InMemoryReplayGuard logoutTokenReplayGuard;
+
+	private volatile LogoutSessionIndex logoutSessionIndex;
+
+	private volatile ClientSettings settings;
+
+	private final LongAdder idTokenProfiles;
+	private final LongAdder userInfoProfiles;
+	private final LongAdder userInfoFallbacks;
+	private final LatencyTimer codeExchangeTimer;
+	private final LatencyTimer idTokenValidationTimer;
+	private final LatencyTimer userInfoTimer;
+
 	public IdpAuthClient() {
-		super(IdpConfiguration.instance());
+		this(IdpConfiguration.instance());
+	}
+
+	public IdpAuthClient(final IdpConfiguration configuration) {
+		this(configuration, null, null);
+	}
+
+	/**
+	 * Create named client of additional OpenID Provider. Its settings are taken from <code>oxidp_Client.&lt;name&gt;.*</code>
+	 * properties
+	 *
+	 * @param name client name or <code>null</code> for default client
+	 * @param httpClientPool pool to share or <code>null</code> to create own pool
+	 */
+	public IdpAuthClient(final IdpConfiguration configuration, final String name, final HttpClientPool httpClientPool) {
+		super(configuration);
+		this.name = name;
+
+		// Pool is sized once, changes of its properties need restart
+		this.ownsHttpClientPool = httpClientPool == null;
+		this.httpClientPool = ownsHttpClientPool ? new HttpClientPool(configuration) : httpClientPool;
+
+		this.metricsPrefix = (name == null) ? "openid" : "openid.client." + name;
+		this.backChannelGuard = new BackChannelGuard(configuration, metricsPrefix);
+		this.tokenFlights = new SingleFlight<TokenResponse>(metricsPrefix + ".callback", getCoalescingMaxEntries(configuration),
+				getCoalescingTimeout(configuration));
+		this.userInfoFlights = new SingleFlight<UserInfoResponse>(metricsPrefix + ".userInfo", getCoalescingMaxEntries(configuration),
+				getCoalescingTimeout(configuration));
+		this.acceptedCallbacks = new InMemoryReplayGuard(metricsPrefix + ".acceptedCallbacks", getReplayGuardMaxEntries(configuration));
+		this.logoutTokenReplayGuard = new InMemoryReplayGuard(metricsPrefix + ".logoutTokenReplayGuard", getReplayGuardMaxEntries(configuration));
+		this.settings = buildSettings(configuration, null);
+
+		final IdpMetrics metrics = IdpMetrics.instance();
+		this.idTokenProfiles = metrics.counter("openid.profile.idToken");
+		this.userInfoProfiles = metrics.counter("openid.profile.userInfo");
+		this.userInfoFallbacks = metrics.counter("openid.profile.userInfo.fallback");
+		this.codeExchangeTimer = metrics.timer("openid.codeExchange");
+		this.idTokenValidationTimer = metrics.timer("openid.idTokenValidation");
+		this.userInfoTimer = metrics.timer("openid.userInfo");
+	}
+
+	/**
+	 * Apply new configuration snapshot. Requests in progress finish with the settings they started with
+	 */
+	@Override
+	public void configurationChanged(final IdpConfiguration configuration) {
+		final ClientSettings previous = this.settings;
+		this.settings = buildSettings(configuration, previous);
+		backChannelGuard.configure(configuration);
+		tokenFlights.configure(getCoalescingMaxEntries(configuration), getCoalescingTimeout(configuration));
+		userInfoFlights.configure(getCoalescingMaxEntries(configuration), getCoalescingTimeout(configuration));
+		acceptedCallbacks.setMaxEntries(getReplayGuardMaxEntries(configuration));
+		logoutTokenReplayGuard.setMaxEntries(getReplayGuardMaxEntries(configuration));
+
+		if (previous.metadataCache != this.settings.metadataCache) {
+			previous.metadataCache.destroy();
+		}
+		logger.info("Applied new oxAuth client configuration");
+	}
+
+	public void destroy() {
+		settings.metadataCache.destroy();
+		if (ownsHttpClientPool) {
+			httpClientPool.destroy();
+		}
+	}
+
+	/**
+	 * Name of the client in {@link IdpAuthClientRegistry}. It's not the base client name which prefixes session attributes
+	 *
+	 * @return client name or <code>null</code> for default client
+	 */
+	public String getRelyingPartyClientName() {
+		return name;
+	}
+
+	/**
+	 * Name of the client which authenticated user in this session
+	 *
+	 * @return client name or <code>null</code> for default client
+	 */
+	public String getLoginClientName(final WebContext context) {
+		return (String) getSharedAttribute(context, CLIENT_ATTRIBUTE);
+	}
+
+	/**
+	 * Session attribute which any client can read, e.g. when login and logout are handled by different clients
+	 */
+	public static Object getSharedAttribute(final WebContext context, final String name) {
+		return context.getSessionAttribute(SHARED_ATTRIBUTE_PREFIX + name);
+	}
+
+	public static void setSharedAttribute(final WebContext context, final String name, final Object value) {
+		context.setSessionAttribute(SHARED_ATTRIBUTE_PREFIX + name, value);
+	}
+
+	public HttpClientPool getHttpClientPool() {
+		return httpClientPool;
+	}
+
+	public BackChannelGuard getBackChannelGuard() {
+		return backChannelGuard;
+	}
+
+	/**
+	 * Index to add sessions of logins to, or <code>null</code> to not index them
+	 */
+	void setLogoutSessionIndex(final LogoutSessionIndex logoutSessionIndex) {
+		this.logoutSessionIndex = logoutSessionIndex;
+	}
+
+	/**
+	 * Check if token with the issuer and audience is issued to this client. Client whose discovery document isn't
+	 * loaded yet doesn't match any token
+	 */
+	public boolean isTokenRecipient(final String issuer, final List<String> audience) {
+		final ClientSettings settings = this.settings;
+		final OpenIdConfigurationResponse openIdConfiguration = settings.metadataCache.getLoadedOpenIdConfiguration();
+		if (openIdConfiguration == null) {
+			return false;
+		}
+
+		return StringUtils.equals(issuer, openIdConfiguration.getIssuer()) && (audience != null) && audience.contains(settings.clientId);
+	}
+
+	/**
+	 * Validate logout_token of back-channel logout request with cached keys
+	 *
+	 * @param jwt parsed logout_token
+	 */
+	public boolean isValidLogoutToken(final String logoutToken, final Jwt jwt) {
+		final ClientSettings settings = this.settings;
+
+		return settings.idTokenValidator.isValidLogoutToken(logoutToken, jwt, settings.logoutTokenMaxAge, logoutTokenReplayGuard);
+	}
+
+	/**
+	 * Load discovery document and JWKS before the first login
+	 *
+	 * @return <code>true</code> if they are loaded
+	 */
+	public boolean preloadMetadata() {
+		return settings.metadataCache.preload();
+	}
+
+	/**
+	 * Open back-channel connections before the first login, so they wait idle in pool. Each route (OpenID Provider
+	 * and each of its replicas) gets <code>count</code> concurrent JWKS requests
+	 */
+	public void openConnections(final int count) {
+		final ClientSettings settings = this.settings;
+		final String jwksUri = settings.metadataCache.getOpenIdConfiguration().getJwksUri();
+
+		final List<String> urls = new ArrayList<String>();
+		urls.add(jwksUri);
+		if (settings.endpointBalancer != null) {
+			for (EndpointBalancer.Replica replica : settings.endpointBalancer.getReplicas()) {
+				urls.add(replica.resolve(jwksUri));
+			}
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(count, runnable -> {
+			final Thread thread = new Thread(runnable, "oxauth-warmup-connection");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			for (String url : urls) {
+				final List<CompletableFuture<Void>> requests = new ArrayList<CompletableFuture<Void>>(count);
+				for (int i = 0; i < count; i++) {
+					requests.add(CompletableFuture.runAsync(() -> {
+						final JwkClient jwkClient = new JwkClient(url);
+						jwkClient.setExecutor(httpClientPool.getClientExecutor());
+						jwkClient.exec();
+					}, executor));
+				}
+				CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[requests.size()])).join();
+			}
+		} catch (RuntimeException ex) {
+			logger.warn("Failed to open back-channel connections: {}", ex.getMessage());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Build authorization URLs and encode and decode request state, so these paths are compiled before the first login.
+	 * Nothing is stored in session or in replay guard
+	 */
+	public void warmUpAuthorizationRequests(final int iterations) {
+		final ClientSettings settings = this.settings;
+		final RequestStateCodec stateCodec = settings.stateCodec;
+		final String prefix = getAuthorizationUrlCache(settings).getPrefix(null);
+
+		long length = 0;
+		for (int i = 0; i < iterations; i++) {
+			final String nonce = stateCodec.generateRandom();
+			final Map<String, String> claims = new HashMap<String, String>(4);
+			claims.put(WARM_UP_CLAIM, Integer.toString(i));
+			claims.put(RequestStateCodec.CLAIM_NONCE, nonce);
+			final String state = stateCodec.encode(claims);
+			stateCodec.decode(state);
+
+			final StringBuilder url = new StringBuilder(prefix.length() + state.length() + nonce.length() + 128);
+			url.append(prefix);
+			AuthorizationUrlCache.appendParameter(url, "state", state);
+			AuthorizationUrlCache.appendParameter(url, "nonce", nonce);
+			length += url.length();
+		}
+		logger.debug("Built {} authorization URLs, {} characters", iterations, length);
+	}
+
+	@Override
+	public String getRedirectionUrl(final WebContext context, final Map<String, String> customResponseHeaders,
+			final Map<String, String> customParameters, final boolean force) {
+		final StringBuilder url = startRedirectionUrl(context, customResponseHeaders, null, force);
+		if (customParameters != null) {
+			for (Map.Entry<String, String> entry : customParameters.entrySet()) {
+				AuthorizationUrlCache.appendParameter(url, entry.getKey(), entry.getValue());
+			}
+		}
+
+		return url.toString();
+	}
+
+	/**
+	 * Build authorization URL for the relying party. Parameters which don't change between its logins are taken
+	 * from the precomputed prefix, only state, nonce, prompt and <code>acr_values</code> are appended
+	 *
+	 * @param stateClaims claims to pass through the state parameter
+	 * @param relyingPartyId entityId of the relying party, passed as <code>entityId</code> parameter
+	 * @param acrValues space separated <code>acr_values</code>, or <code>null</code>
+	 */
+	public String getRedirectionUrl(final WebContext context, final Map<String, String> stateClaims, final String relyingPartyId,
+			final String acrValues, final boolean force) {
+		final StringBuilder url = startRedirectionUrl(context, stateClaims, relyingPartyId, force);
+		AuthorizationUrlCache.appendParameter(url, "acr_values", acrValues);
+
+		return url.toString();
+	}
+
+	private StringBuilder startRedirectionUrl(final WebContext context, final Map<String, String> stateClaims, final String relyingPartyId,
+			final boolean force) {
+		final ClientSettings settings = this.settings;
+		final RequestStateCodec stateCodec = settings.stateCodec;
+
+		final String nonce = stateCodec.generateRandom();
+		final String state;
+		if (stateCodec.isSigned()) {
+			// Self-contained state, nothing is stored in session
+			final Map<String, String> claims = new HashMap<String, String>(stateClaims == null ? 2 : stateClaims.size() + 2);
+			if (stateClaims != null) {
+				claims.putAll(stateClaims);
+			}
+			claims.put(RequestStateCodec.CLAIM_NONCE, nonce);
+			final String browserBinding = getBrowserBinding(context, settings);
+			if (browserBinding != null) {
+				claims.put(RequestStateCodec.CLAIM_BROWSER_BINDING, stateCodec.getBrowserBinding(browserBinding));
+			}
+			state = stateCodec.encode(claims);
+		} else {
+			state = stateCodec.encode(stateClaims);
+			setAttribute(context, STATE_ATTRIBUTE, state);
+			setAttribute(context, NONCE_ATTRIBUTE, nonce);
+		}
+
+		final String prefix = getAuthorizationUrlCache(settings).getPrefix(relyingPartyId);
+		final StringBuilder url = new StringBuilder(prefix.length() + state.length() + nonce.length() + 128);
+		url.append(prefix);
+		AuthorizationUrlCache.appendParameter(url, "state", state);
+		AuthorizationUrlCache.appendParameter(url, "nonce", nonce);
+		if (force) {
+			AuthorizationUrlCache.appendParameter(url, "prompt", "login");
+		}
+
+		return url;
+	}
+
+	/**
+	 * Prefixes are rebuilt when refreshed discovery document has another authorization endpoint
+	 */
+	private AuthorizationUrlCache getAuthorizationUrlCache(final ClientSettings settings) {
+		final String authorizationEndpoint = settings.metadataCache.getOpenIdConfiguration().getAuthorizationEndpoint();
+
+		AuthorizationUrlCache authorizationUrlCache = settings.authorizationUrlCache;
+		if ((authorizationUrlCache == null) || !authorizationUrlCache.isFor(authorizationEndpoint)) {
+			authorizationUrlCache = new AuthorizationUrlCache(authorizationEndpoint, settings.clientId,
+					StringUtils.join(settings.appConfiguration.getOpenIdScopes(), ' '), settings.appConfiguration.getOpenIdRedirectUrl(),
+					settings.authorizationUrlCacheSize);
+			settings.authorizationUrlCache = authorizationUrlCache;
+		}
+
+		return authorizationUrlCache;
+	}
+
+	@Override
+	public boolean isAuthorizationResponse(final WebContext context) {
+		return StringUtils.isNotBlank(context.getRequestParameter("state"))
+				&& (StringUtils.isNotBlank(context.getRequestParameter("code")) || StringUtils.isNotBlank(context.getRequestParameter("error")));
+	}
+
+	@Override
+	public String getRequestState(final WebContext context) {
+		return context.getRequestParameter("state");
+	}
+
+	/**
+	 * Decode claims of the state from authorization response. Decoded claims are cached in request attribute,
+	 * so state is parsed and verified only once per request
+	 *
+	 * @return claims or <code>null</code> if state is not valid
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, String> getRequestStateClaims(final WebContext context) {
+		final HttpServletRequest request = (context instanceof J2EContext) ? ((J2EContext) context).getRequest() : null;
+		if (request != null) {
+			final Object cachedClaims = request.getAttribute(STATE_CLAIMS_ATTRIBUTE);
+			if (cachedClaims != null) {
+				return (cachedClaims == INVALID_STATE_CLAIMS) ? null : (Map<String, String>) cachedClaims;
+			}
+		}
+
+		final Map<String, String> claims = settings.stateCodec.decode(getRequestState(context));
+		if (request != null) {
+			request.setAttribute(STATE_CLAIMS_ATTRIBUTE, (claims == null) ? INVALID_STATE_CLAIMS : claims);
+		}
+
+		return claims;
+	}
+
+	@Override
+	public boolean isValidRequestState(final WebContext context) {
+		final ClientSettings settings = this.settings;
+		if (settings.stateCodec.isSigned()) {
+			final Map<String, String> claims = getRequestStateClaims(context);
+			if (claims == null) {
+				return false;
+			}
+
+			// Valid state of another login must not complete in this browser (login CSRF)
+			if (!settings.stateCodec.isBoundTo(claims, getBrowserBindingCookie(context))) {
+				logger.error("State was issued to another browser");
+				return false;
+			}
+
+			final long expirationTime = TimeUnit.SECONDS.toMillis(Long.parseLong(claims.get(RequestStateCodec.CLAIM_EXPIRATION)));
+			final String callbackKey = getCallbackKey(StringUtils.defaultString(context.getRequestParameter("code")), getRequestState(context));
+			if (!settings.replayGuard.markUsed(claims.get(RequestStateCodec.CLAIM_STATE_ID), expirationTime)) {
+				// Duplicate of a callback accepted shortly before (double submit, retry) with the same code
+				if (settings.callbackCoalescing && acceptedCallbacks.isUsed(callbackKey)) {
+					logger.debug("State is used by a recent callback with the same code. Sharing its code exchange");
+					return true;
+				}
+
+				logger.error("State was already used");
+				return false;
+			}
+
+			if (settings.callbackCoalescing) {
+				acceptedCallbacks.markUsed(callbackKey, System.currentTimeMillis() + tokenFlights.getTimeoutMillis());
+			}
+
+			return true;
+		}
+
+		final String requestState = getRequestState(context);
+		final Object sessionState = getAttribute(context, STATE_ATTRIBUTE);
+		if ((requestState == null) || !(sessionState instanceof String)) {
+			return false;
+		}
+
+		return MessageDigest.isEqual(requestState.getBytes(StandardCharsets.UTF_8), ((String) sessionState).getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public OpenIdCredentials getCredentials(final WebContext context) {
+		final String error = context.getRequestParameter("error");
+		if (StringUtils.isNotBlank(error)) {
+			logger.error("Authorization response contains error: '{}', description: '{}'", error, context.getRequestParameter("error_description"));
+		}
+
+		final OpenIdCredentials credentials = new OpenIdCredentials(context.getRequestParameter("code"));
+		credentials.setClientName(getClass().getSimpleName());
+
+		return credentials;
+	}
+
+	@Override
+	public UserProfile getUserProfile(final OpenIdCredentials credentials, final WebContext context) {
+		return getUserProfile(credentials, context, null);
+	}
+
+	/**
+	 * Exchange authorization code and build user profile
+	 *
+	 * @param relyingPartyId entityId of the relying party, used to select profile source
+	 * @return user profile or <code>null</code> if tokens are not valid
+	 */
+	public UserProfile getUserProfile(final OpenIdCredentials credentials, final WebContext context, final String relyingPartyId) {
+		if (StringUtils.isBlank(credentials.getAuthorizationCode())) {
+			logger.error("Authorization code is missing in authorization response");
+			return null;
+		}
+
+		return loadUserProfile(this.settings, credentials, context, relyingPartyId);
+	}
+
+	private UserProfile loadUserProfile(final ClientSettings settings, final OpenIdCredentials credentials, final WebContext context,
+			final String relyingPartyId) {
+		final OpenIdConfigurationResponse openIdConfiguration = settings.metadataCache.getOpenIdConfiguration();
+
+		// Nonce stays in session until login finishes, so a duplicated callback of the same session can validate the token too
+		final Object nonce;
+		if (settings.stateCodec.isSigned()) {
+			final Map<String, String> claims = getRequestStateClaims(context);
+			nonce = claims == null ? null : claims.get(RequestStateCodec.CLAIM_NONCE);
+		} else {
+			nonce = getAttribute(context, NONCE_ATTRIBUTE);
+		}
+
+		// Exchange authorization code
+		final TokenResponse tokenResponse = getTokenResponse(settings, openIdConfiguration, credentials.getAuthorizationCode(),
+				getRequestState(context));
+		if ((tokenResponse == null) || (tokenResponse.getStatus() != 200) || StringUtils.isBlank(tokenResponse.getIdToken())) {
+			logger.error("Failed to exchange authorization code, status: '{}'", tokenResponse == null ? null : tokenResponse.getStatus());
+			return null;
+		}
+
+		// Validate id_token
+		final long validationStart = System.nanoTime();
+		final Jwt idToken = settings.idTokenValidator.validate(tokenResponse.getIdToken(), (String) nonce);
+		idTokenValidationTimer.recordSince(validationStart);
+		if (idToken == null) {
+			return null;
+		}
+		storeLogoutHint(settings, context, idToken, tokenResponse.getIdToken());
+
+		final UserProfileFactory userProfileFactory = settings.userProfileFactory;
+		final UserProfileCache profileCache = settings.profileCache;
+		final boolean cacheable = (profileCache != null) && profileCache.isEnabled(relyingPartyId);
+		final boolean idTokenProfile = userProfileFactory.isIdTokenProfile(relyingPartyId);
+
+		final Map<String, List<String>> userClaims = (cacheable || idTokenProfile) ? userProfileFactory.getUserClaims(idToken) : null;
+		final Map<String, List<String>> idTokenClaims = idTokenProfile ? userProfileFactory.checkRequiredClaims(userClaims) : null;
+
+		// Cache is consulted only here, after id_token of the user is validated
+		String profileKey = null;
+		if (cacheable) {
+			profileKey = profileCache.getKey(idTokenClaims == null ? "userinfo" : "id_token",
+					idToken.getClaims().getClaimAsString(JwtClaimName.SUBJECT_IDENTIFIER), userClaims);
+			final UserProfile cachedProfile = profileCache.get(profileKey);
+			if (cachedProfile != null) {
+				return cachedProfile;
+			}
+		}
+
+		final UserProfile userProfile;
+		if (idTokenClaims != null) {
+			idTokenProfiles.increment();
+			userProfile = userProfileFactory.build(idToken, idTokenClaims);
+		} else {
+			if (idTokenProfile) {
+				logger.debug("Required claims are missing in id_token. Requesting user info");
+				userInfoFallbacks.increment();
+			}
+
+			// Request user info
+			final UserInfoResponse userInfoResponse = getUserInfoResponse(settings, openIdConfiguration, tokenResponse.getAccessToken());
+			if ((userInfoResponse == null) || (userInfoResponse.getStatus() != 200)) {
+				logger.error("Failed to get user info, status: '{}'", userInfoResponse == null ? null : userInfoResponse.getStatus());
+				return null;
+			}
+			userInfoProfiles.increment();
+
+			userProfile = userProfileFactory.build(idToken, userInfoResponse.getClaims());
+		}
+
+		return (profileKey == null) ? userProfile : profileCache.put(profileKey, userProfile);
+	}
+
+	/**
+	 * Duplicated callbacks (double submit, browser or proxy retry) share one code exchange. Only the response is shared,
+	 * every callback validates it and writes its own session
+	 */
+	private TokenResponse getTokenResponse(final ClientSettings settings, final OpenIdConfigurationResponse openIdConfiguration,
+			final String code, final String state) {
+		if (!settings.callbackCoalescing) {
+			return exchangeAuthorizationCode(settings, openIdConfiguration, code);
+		}
+
+		return tokenFlights.execute(getCallbackKey(code, state), () -> exchangeAuthorizationCode(settings, openIdConfiguration, code));
+	}
+
+	private UserInfoResponse getUserInfoResponse(final ClientSettings settings, final OpenIdConfigurationResponse openIdConfiguration,
+			final String accessToken) {
+		if (!settings.callbackCoalescing || StringUtils.isEmpty(accessToken)) {
+			return requestUserInfo(settings, openIdConfiguration, accessToken);
+		}
+
+		// Keyed by hash, so the map doesn't keep access tokens
+		return userInfoFlights.execute(getCallbackKey(accessToken, null), () -> requestUserInfo(settings, openIdConfiguration, accessToken));
+	}
+
+	private TokenResponse exchangeAuthorizationCode(final ClientSettings settings, final OpenIdConfigurationResponse openIdConfiguration,
+			final String code) {
+		final BackChannelGuard.Permit permit = backChannelGuard.acquire();
+		if (permit == null) {
+			logger.error("Token request is rejected, OpenID Provider back-channel is overloaded or unavailable");
+			return null;
+		}
+
+		final EndpointBalancer.Replica replica = (settings.endpointBalancer == null) ? null : settings.endpointBalancer.select();
+		final long start = System.nanoTime();
+		TokenResponse tokenResponse = null;
+		try {
+			final String tokenEndpoint = openIdConfiguration.getTokenEndpoint();
+			tokenResponse = execTokenRequest(replica == null ? tokenEndpoint : replica.resolve(tokenEndpoint), code,
+					settings.appConfiguration.getOpenIdRedirectUrl(), settings.clientId, settings.clientSecret);
+			return tokenResponse;
+		} finally {
+			codeExchangeTimer.recordSince(start);
+			final boolean available = isAvailable(tokenResponse);
+			if (replica != null) {
+				settings.endpointBalancer.record(replica, System.nanoTime() - start, available);
+			}
+			backChannelGuard.release(permit, available);
+		}
+	}
+
+	private UserInfoResponse requestUserInfo(final ClientSettings settings, final OpenIdConfigurationResponse openIdConfiguration,
+			final String accessToken) {
+		final BackChannelGuard.Permit permit = backChannelGuard.acquire();
+		if (permit == null) {
+			logger.error("User info request is rejected, OpenID Provider back-channel is overloaded or unavailable");
+			return null;
+		}
+
+		final EndpointBalancer.Replica replica = (settings.endpointBalancer == null) ? null : settings.endpointBalancer.select();
+		final long start = System.nanoTime();
+		UserInfoResponse userInfoResponse = null;
+		try {
+			final String userInfoEndpoint = openIdConfiguration.getUserInfoEndpoint();
+			userInfoResponse = execUserInfoRequest(replica == null ? userInfoEndpoint : replica.resolve(userInfoEndpoint), accessToken);
+			return userInfoResponse;
+		} finally {
+			userInfoTimer.recordSince(start);
+			final boolean available = isAvailable(userInfoResponse);
+			if (replica != null) {
+				settings.endpointBalancer.record(replica, System.nanoTime() - start, available);
+			}
+			backChannelGuard.release(permit, available);
+		}
+	}
+
+	/**
+	 * Token request of authorization code grant. It's the only place which calls token endpoint, so tests can replace it
+	 */
+	TokenResponse execTokenRequest(final String tokenEndpoint, final String code, final String redirectUri, final String clientId,
+			final String clientSecret) {
+		final TokenClient tokenClient = new TokenClient(tokenEndpoint);
+		tokenClient.setExecutor(httpClientPool.getClientExecutor());
+
+		return tokenClient.execAuthorizationCode(code, redirectUri, clientId, clientSecret);
+	}
+
+	UserInfoResponse execUserInfoRequest(final String userInfoEndpoint, final String accessToken) {
+		final UserInfoClient userInfoClient = new UserInfoClient(userInfoEndpoint);
+		userInfoClient.setExecutor(httpClientPool.getClientExecutor());
+
+		return userInfoClient.execUserInfo(accessToken);
+	}
+
+	/**
+	 * Client errors like invalid_grant are caused by request, only missing response and server errors count
+	 * as OpenID Provider failure
+	 */
+	private boolean isAvailable(final BaseResponse response) {
+		return (response != null) && (response.getStatus() > 0) && (response.getStatus() < 500);
+	}
+
+	@Override
+	public String getLogoutRedirectionUrl(final WebContext context) {
+		final ClientSettings settings = this.settings;
+		final OpenIdConfigurationResponse openIdConfiguration = settings.metadataCache.getOpenIdConfiguration();
+
+		final StringBuilder url = new StringBuilder(openIdConfiguration.getEndSessionEndpoint());
+		url.append(openIdConfiguration.getEndSessionEndpoint().indexOf('?') == -1 ? '?' : '&');
+		url.append("post_logout_redirect_uri=").append(AuthorizationUrlCache.urlEncode(settings.appConfiguration.getOpenIdPostLogoutRedirectUri()));
+
+		final Object idToken = getAttribute(context, ID_TOKEN_ATTRIBUTE);
+		if (idToken != null) {
+			AuthorizationUrlCache.appendParameter(url, "id_token_hint", (String) idToken);
+		} else {
+			final Object sid = getAttribute(context, SID_ATTRIBUTE);
+			if (sid != null) {
+				AuthorizationUrlCache.appendParameter(url, SID_CLAIM, (String) sid);
+			}
+		}
+
+		return url.toString();
+	}
+
+	@Override
+	public void clearAuthorized(final WebContext context) {
+		setAttribute(context, ID_TOKEN_ATTRIBUTE, null);
+		setAttribute(context, SID_ATTRIBUTE, null);
+		if (getSharedAttribute(context, CLIENT_ATTRIBUTE) != null) {
+			setSharedAttribute(context, CLIENT_ATTRIBUTE, null);
+		}
+		// Unbinding removes session from logout index
+		if (getAttribute(context, LOGOUT_SESSION_ATTRIBUTE) != null) {
+			setAttribute(context, LOGOUT_SESSION_ATTRIBUTE, null);
+		}
+	}
+
+	/**
+	 * Remove state and nonce of completed login from session. They are single use and aren't needed anymore
+	 */
+	public void clearRequestState(final WebContext context) {
+		if (settings.stateCodec.isSigned()) {
+			return;
+		}
+
+		if (getAttribute(context, STATE_ATTRIBUTE) != null) {
+			setAttribute(context, STATE_ATTRIBUTE, null);
+		}
+		if (getAttribute(context, NONCE_ATTRIBUTE) != null) {
+			setAttribute(context, NONCE_ATTRIBUTE, null);
+		}
+	}
+
+	/**
+	 * Random value of the browser binding cookie. Cookie of the browser is reused, so logins in parallel tabs are all
+	 * valid; a new one is set if the browser has none
+	 *
+	 * @return cookie value, or <code>null</code> if context has no servlet response
+	 */
+	private String getBrowserBinding(final WebContext context, final ClientSettings settings) {
+		final String cookieValue = getBrowserBindingCookie(context);
+		if (cookieValue != null) {
+			return cookieValue;
+		}
+		if (!(context instanceof J2EContext)) {
+			return null;
+		}
+
+		final HttpServletRequest request = ((J2EContext) context).getRequest();
+		final HttpServletResponse response = ((J2EContext) context).getResponse();
+		final String value = settings.stateCodec.generateRandom();
+		// Lax cookie is sent with the top-level redirect back from the OpenID Provider
+		final StringBuilder cookie = new StringBuilder(128);
+		cookie.append(BROWSER_BINDING_COOKIE).append('=').append(value);
+		cookie.append("; Path=").append(request.getContextPath()).append(request.getServletPath());
+		cookie.append("; HttpOnly; SameSite=Lax");
+		if (request.isSecure() || StringUtils.startsWith(settings.appConfiguration.getOpenIdRedirectUrl(), "https:")) {
+			cookie.append("; Secure");
+		}
+		response.addHeader("Set-Cookie", cookie.toString());
+
+		return value;
+	}
+
+	private String getBrowserBindingCookie(final WebContext context) {
+		return getCookie(context, BROWSER_BINDING_COOKIE);
+	}
+
+	private String getCookie(final WebContext context, final String name) {
+		if (!(context instanceof J2EContext)) {
+			return null;
+		}
+
+		final Cookie[] cookies = ((J2EContext) context).getRequest().getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (name.equals(cookie.getName()) && StringUtils.isNotEmpty(cookie.getValue())) {
+					return cookie.getValue();
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Keep data which is needed to send end session request. In <code>sid</code> mode only session id from
+	 * id_token is kept instead of whole token, unless token has no <code>sid</code> claim
+	 */
+	private void storeLogoutHint(final ClientSettings settings, final WebContext context, final Jwt idToken, final String encodedIdToken) {
+		// Logout has to go to the OpenID Provider which authenticated user
+		if ((name != null) || (getSharedAttribute(context, CLIENT_ATTRIBUTE) != null)) {
+			setSharedAttribute(context, CLIENT_ATTRIBUTE, name);
+		}
+
+		final String sid = idToken.getClaims().getClaimAsString(SID_CLAIM);
+		final LogoutSessionIndex logoutSessionIndex = this.logoutSessionIndex;
+		if (settings.backChannelLogout && (logoutSessionIndex != null)) {
+			// Replaced binding of the previous login is removed from index. Browser has IdP session cookie only on
+			// re-authentication; IdP session created after this login is recorded by IdpSessionCaptureFilter
+			final String subject = idToken.getClaims().getClaimAsString(JwtClaimName.SUBJECT_IDENTIFIER);
+			setAttribute(context, LOGOUT_SESSION_ATTRIBUTE,
+					logoutSessionIndex.bind(name, sid, subject, getCookie(context, LogoutSessionIndex.IDP_SESSION_COOKIE)));
+			context.setSessionAttribute(LogoutSessionIndex.PENDING_BINDING_ATTRIBUTE, getName() + LOGOUT_SESSION_ATTRIBUTE);
+		}
+
+		if (settings.sidLogoutHint) {
+			if (StringUtils.isNotEmpty(sid)) {
+				setAttribute(context, SID_ATTRIBUTE, sid);
+				if (getAttribute(context, ID_TOKEN_ATTRIBUTE) != null) {
+					setAttribute(context, ID_TOKEN_ATTRIBUTE, null);
+				}
+				return;
+			}
+		}
+
+		setAttribute(context, ID_TOKEN_ATTRIBUTE, encodedIdToken);
+	}
+
+	private ClientSettings buildSettings(final IdpConfiguration configuration, final ClientSettings previous) {
+		final IdpAppConfiguration appConfiguration = (name == null) ? configuration.getAppConfiguration()
+				: configuration.getClientAppConfiguration(name);
+		final String clientId = appConfiguration.getOpenIdClientId();
+
+		final String providerUrl = appConfiguration.getOpenIdProviderUrl();
+		final long metadataRefreshInterval = TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_MetadataRefreshInterval", 3600));
+		final long jwksMinRefreshInterval = TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_JwksMinRefreshInterval", 30));
+		final long metadataMaxWait = configuration.getLong("oxidp_MetadataMaxWait", 1000);
+		final String metadataSource = providerUrl + "|" + metadataRefreshInterval + "|" + jwksMinRefreshInterval + "|" + metadataMaxWait;
+
+		final OpenIdMetadataCache metadataCache;
+		if ((previous != null) && previous.metadataSource.equals(metadataSource)) {
+			metadataCache = previous.metadataCache;
+		} else {
+			metadataCache = new OpenIdMetadataCache(providerUrl, metadataRefreshInterval, jwksMinRefreshInterval, metadataMaxWait,
+					httpClientPool.getClientExecutor());
+			metadataCache.start();
+		}
+
+		final String clientSecret = configuration.decrypt(appConfiguration.getOpenIdClientPassword());
+		final IdTokenValidator idTokenValidator = new IdTokenValidator(metadataCache, clientId, clientSecret,
+				TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_IdTokenClockSkew", 60)));
+		final RequestStateCodec stateCodec = createStateCodec(configuration);
+		final ReplayGuard replayGuard = stateCodec.isSigned() ? createReplayGuard(configuration, previous) : null;
+		final UserProfileFactory userProfileFactory = new UserProfileFactory(configuration);
+		final UserProfileCache profileCache = createProfileCache(configuration, userProfileFactory, previous);
+		final EndpointBalancer endpointBalancer = createEndpointBalancer(configuration, previous);
+
+		return new ClientSettings(appConfiguration, clientId, clientSecret, metadataSource,
+				metadataCache, idTokenValidator, userProfileFactory, stateCodec, replayGuard,
+				configuration.getInt("oxidp_AuthorizationUrlCacheSize", 1000), configuration.getBoolean("oxidp_CallbackCoalescing", true), profileCache,
+				"sid".equals(configuration.getString("oxidp_LogoutHint", "id_token")), endpointBalancer,
+				configuration.getBoolean("oxidp_BackChannelLogout", false),
+				TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_LogoutTokenMaxAge", 300)));
+	}
+
+	private EndpointBalancer createEndpointBalancer(final IdpConfiguration configuration, final ClientSettings previous) {
+		final String replicas = configuration.getString((name == null) ? "oxidp_BackChannelReplicas" : "oxidp_Client." + name + ".BackChannelReplicas",
+				null);
+		if (replicas == null) {
+			return null;
+		}
+
+		final EndpointBalancer endpointBalancer = new EndpointBalancer(metricsPrefix, replicas,
+				configuration.getDouble("oxidp_ReplicaErrorRateThreshold", 0.5),
+				configuration.getLong("oxidp_ReplicaSlowThreshold", 5000),
+				TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_ReplicaEjectionInterval", 30)), configuration.getInt("oxidp_ReplicaMinSamples", 10));
+		if (endpointBalancer.isEmpty()) {
+			return null;
+		}
+		if ((previous != null) && (previous.endpointBalancer != null) && previous.endpointBalancer.getSource().equals(endpointBalancer.getSource())) {
+			// Keep health statistics
+			return previous.endpointBalancer;
+		}
+
+		endpointBalancer.registerGauge();
+		return endpointBalancer;
+	}
+
+	/**
+	 * Authorization code and state are hashed, so they aren't kept in memory as they are
+	 */
+	private String getCallbackKey(final String code, final String state) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		digest.update(code.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(StringUtils.defaultString(state).getBytes(StandardCharsets.UTF_8));
+
+		return Base64.getEncoder().encodeToString(digest.digest());
+	}
+
+	private int getCoalescingMaxEntries(final IdpConfiguration configuration) {
+		return configuration.getInt("oxidp_CallbackCoalescingMaxEntries", 10000);
+	}
+
+	private long getCoalescingTimeout(final IdpConfiguration configuration) {
+		return configuration.getLong("oxidp_CallbackCoalescingTimeout", 30000);
+	}
+
+	private int getReplayGuardMaxEntries(final IdpConfiguration configuration) {
+		return configuration.getInt("oxidp_ReplayGuardMaxEntries", InMemoryReplayGuard.DEFAULT_MAX_ENTRIES);
+	}
+
+	private RequestStateCodec createStateCodec(final IdpConfiguration configuration) {
+		if (!configuration.getBoolean("oxidp_StatelessState", false)) {
+			return new RequestStateCodec();
+		}
+
+		final String secret = configuration.decrypt(configuration.getString("oxidp_StateSecret", null));
+		if (StringUtils.isEmpty(secret)) {
+			logger.error("Stateless request state requires oxidp_StateSecret. Falling back to state in session");
+			return new RequestStateCodec();
+		}
+
+		return new RequestStateCodec(secret, configuration.getBoolean("oxidp_StateEncryption", false),
+				TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_StateLifetime", 1800)));
+	}
+
+	private UserProfileCache createProfileCache(final IdpConfiguration configuration, final UserProfileFactory userProfileFactory,
+			final ClientSettings previous) {
+		if (!configuration.getBoolean("oxidp_ProfileCache", false)) {
+			return null;
+		}
+
+		final Set<String> excludedRelyingParties = new TreeSet<String>();
+		for (String relyingPartyId : StringUtils.split(configuration.getString("oxidp_ProfileCacheExcludedRelyingParties", ""), ", ")) {
+			excludedRelyingParties.add(relyingPartyId);
+		}
+
+		final int maxEntries = configuration.getInt("oxidp_ProfileCacheMaxEntries", 10000);
+		final long ttl = TimeUnit.SECONDS.toMillis(configuration.getLong("oxidp_ProfileCacheTtl", 300));
+		final String source = maxEntries + "|" + ttl + "|" + excludedRelyingParties + "|" + userProfileFactory.getProfileSource();
+		if ((previous != null) && (previous.profileCache != null) && previous.profileCache.getSource().equals(source)) {
+			// Cached profiles were built with the same claim mapping
+			return previous.profileCache;
+		}
+
+		return new UserProfileCache(metricsPrefix, source, maxEntries, ttl, excludedRelyingParties);
+	}
+
+	private ReplayGuard createReplayGuard(final IdpConfiguration configuration, final ClientSettings previous) {
+		final String classname = configuration.getString("oxidp_StateReplayGuard", InMemoryReplayGuard.class.getName());
+		if ((previous != null) && (previous.replayGuard != null) && previous.replayGuard.getClass().getName().equals(classname)) {
+			// Keep used states across reloads
+			if (previous.replayGuard instanceof InMemoryReplayGuard) {
+				((InMemoryReplayGuard) previous.replayGuard).setMaxEntries(getReplayGuardMaxEntries(configuration));
+			}
+			return previous.replayGuard;
+		}
+
+		if (InMemoryReplayGuard.class.getName().equals(classname)) {
+			return new InMemoryReplayGuard(metricsPrefix + ".stateReplayGuard", getReplayGuardMaxEntries(configuration));
+		}
+
+		try {
+			return (ReplayGuard) Class.forName(classname).newInstance();
+		} catch (Exception ex) {
+			logger.error("Error building state replay guard with name: " + classname + ". Using in-memory replay guard", ex);
+			return new InMemoryReplayGuard(metricsPrefix + ".stateReplayGuard", getReplayGuardMaxEntries(configuration));
+		}
+	}
+
+	/**
+	 * Immutable client settings built from one configuration snapshot
+	 */
+	private static final class ClientSettings {
+
+		private final IdpAppConfiguration appConfiguration;
+		private final String clientId;
+		private final String clientSecret;
+
+		private final String metadataSource;
+		private final OpenIdMetadataCache metadataCache;
+		private final IdTokenValidator idTokenValidator;
+		private final UserProfileFactory userProfileFactory;
+		private final RequestStateCodec stateCodec;
+		private final ReplayGuard replayGuard;
+
+		private final int authorizationUrlCacheSize;
+		private final boolean callbackCoalescing;
+		private final UserProfileCache profileCache;
+		private final boolean sidLogoutHint;
+		private final EndpointBalancer endpointBalancer;
+		private final boolean backChannelLogout;
+		private final long logoutTokenMaxAge;
+		// Derived from settings and discovery document, so it's dropped together with the snapshot
+		private volatile AuthorizationUrlCache authorizationUrlCache;
+
+		ClientSettings(IdpAppConfiguration appConfiguration, String clientId, String clientSecret, String metadataSource,
+				OpenIdMetadataCache metadataCache, IdTokenValidator idTokenValidator, UserProfileFactory userProfileFactory,
+				RequestStateCodec stateCodec, ReplayGuard replayGuard, int authorizationUrlCacheSize,
+				boolean callbackCoalescing, UserProfileCache profileCache, boolean sidLogoutHint,
+				EndpointBalancer endpointBalancer, boolean backChannelLogout, long logoutTokenMaxAge) {
+			this.appConfiguration = appConfiguration;
+			this.clientId = clientId;
+			this.clientSecret = clientSecret;
+			this.metadataSource = metadataSource;
+			this.metadataCache = metadataCache;
+			this.idTokenValidator = idTokenValidator;
+			this.userProfileFactory = userProfileFactory;
+			this.stateCodec = stateCodec;
+			this.replayGuard = replayGuard;
+			this.authorizationUrlCacheSize = authorizationUrlCacheSize;
+			this.callbackCoalescing = callbackCoalescing;
+			this.profileCache = profileCache;
+			this.sidLogoutHint = sidLogoutHint;
+			this.endpointBalancer = endpointBalancer;
+			this.backChannelLogout = backChannelLogout;
+			this.logoutTokenMaxAge = logoutTokenMaxAge;
+		}
 	}
 
 }
@@ -0,0 +1,173 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.gluu.context.WebContext;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.gluu.idp.externalauth.openid.conf.IdpConfigurationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * oxAuth clients selected by relying party
+ * <p>
+ * Default client is built from the LDAP application configuration. Additional named clients are listed in
+ * <code>oxidp_Clients</code>; each of them serves relying parties from <code>oxidp_Client.&lt;name&gt;.RelyingParties</code>.
+ * All clients share one HTTP connection pool and the index of sessions for back-channel logout.
+ */
+public final class IdpAuthClientRegistry implements IdpConfigurationListener {
+
+	private final Logger logger = LoggerFactory.getLogger(IdpAuthClientRegistry.class);
+
+	private final IdpAuthClient defaultClient;
+	private final LogoutSessionIndex logoutSessionIndex;
+
+	private volatile Map<String, IdpAuthClient> clients;
+	private volatile Map<String, IdpAuthClient> relyingPartyClients;
+
+	public IdpAuthClientRegistry(IdpConfiguration configuration) {
+		this.logoutSessionIndex = new LogoutSessionIndex(getLogoutIndexMaxSessions(configuration));
+		this.defaultClient = new IdpAuthClient(configuration);
+		this.defaultClient.setLogoutSessionIndex(logoutSessionIndex);
+		this.clients = Collections.emptyMap();
+		this.relyingPartyClients = Collections.emptyMap();
+
+		applyClients(configuration);
+	}
+
+	public IdpAuthClient getDefaultClient() {
+		return defaultClient;
+	}
+
+	/**
+	 * Client which serves the relying party
+	 */
+	public IdpAuthClient getClient(String relyingPartyId) {
+		if (relyingPartyId == null) {
+			return defaultClient;
+		}
+
+		final IdpAuthClient client = relyingPartyClients.get(relyingPartyId);
+
+		return (client == null) ? defaultClient : client;
+	}
+
+	/**
+	 * Client to which token is issued. Several clients may share OpenID Provider, so both issuer and audience have to
+	 * match
+	 *
+	 * @return client or <code>null</code> if there is no such client
+	 */
+	public IdpAuthClient getClientByToken(String issuer, List<String> audience) {
+		if ((issuer == null) || (audience == null)) {
+			return null;
+		}
+
+		if (defaultClient.isTokenRecipient(issuer, audience)) {
+			return defaultClient;
+		}
+		for (IdpAuthClient client : clients.values()) {
+			if (client.isTokenRecipient(issuer, audience)) {
+				return client;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Default client followed by the named ones
+	 */
+	public List<IdpAuthClient> getClients() {
+		final List<IdpAuthClient> result = new ArrayList<IdpAuthClient>(clients.size() + 1);
+		result.add(defaultClient);
+		result.addAll(clients.values());
+
+		return result;
+	}
+
+	public LogoutSessionIndex getLogoutSessionIndex() {
+		return logoutSessionIndex;
+	}
+
+	/**
+	 * Client which authenticated user in this session
+	 */
+	public IdpAuthClient getLoginClient(WebContext context) {
+		final String name = defaultClient.getLoginClientName(context);
+		if (name == null) {
+			return defaultClient;
+		}
+
+		final IdpAuthClient client = clients.get(name);
+
+		return (client == null) ? defaultClient : client;
+	}
+
+	@Override
+	public void configurationChanged(IdpConfiguration configuration) {
+		defaultClient.configurationChanged(configuration);
+		logoutSessionIndex.setMaxSessions(getLogoutIndexMaxSessions(configuration));
+		applyClients(configuration);
+	}
+
+	public void destroy() {
+		for (IdpAuthClient client : clients.values()) {
+			client.destroy();
+		}
+		defaultClient.destroy();
+	}
+
+	private int getLogoutIndexMaxSessions(IdpConfiguration configuration) {
+		return configuration.getInt("oxidp_BackChannelLogoutMaxSessions", 100000);
+	}
+
+	/**
+	 * Existing clients get new configuration, new ones are created and removed ones are destroyed
+	 */
+	private synchronized void applyClients(IdpConfiguration configuration) {
+		final Map<String, IdpAuthClient> previousClients = this.clients;
+
+		final Map<String, IdpAuthClient> newClients = new HashMap<String, IdpAuthClient>();
+		final Map<String, IdpAuthClient> newRelyingPartyClients = new HashMap<String, IdpAuthClient>();
+		for (String name : StringUtils.split(configuration.getString("oxidp_Clients", ""), ", ")) {
+			IdpAuthClient client = previousClients.get(name);
+			try {
+				if (client == null) {
+					client = new IdpAuthClient(configuration, name, defaultClient.getHttpClientPool());
+					client.setLogoutSessionIndex(logoutSessionIndex);
+					logger.info("Created oxAuth client '{}'", name);
+				} else {
+					client.configurationChanged(configuration);
+				}
+			} catch (RuntimeException ex) {
+				logger.error("Failed to configure oxAuth client '" + name + "'", ex);
+				if (client == null) {
+					continue;
+				}
+				// Existing client keeps its current settings
+			}
+			newClients.put(name, client);
+
+			for (String relyingPartyId : StringUtils.split(configuration.getString("oxidp_Client." + name + ".RelyingParties", ""), ", ")) {
+				newRelyingPartyClients.put(relyingPartyId, client);
+			}
+		}
+
+		this.clients = Collections.unmodifiableMap(newClients);
+		this.relyingPartyClients = Collections.unmodifiableMap(newRelyingPartyClients);
+
+		for (Map.Entry<String, IdpAuthClient> entry : previousClients.entrySet()) {
+			if (!newClients.containsKey(entry.getKey())) {
+				entry.getValue().destroy();
+				logger.info("Removed oxAuth client '{}'", entry.getKey());
+			}
+		}
+	}
+
+}
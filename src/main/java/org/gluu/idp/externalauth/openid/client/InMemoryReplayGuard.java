@@ -0,0 +1,93 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+
+/**
+ * Replay guard which keeps used values in local memory until they expire
+ * <p>
+ * Number of kept values is bounded. When the guard is full, new values are accepted without being recorded until
+ * expired ones are cleaned up, so replays of them aren't detected during that time.
+ */
+public class InMemoryReplayGuard implements ReplayGuard {
+
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private static final long CLEANUP_INTERVAL_MILLIS = 10000;
+
+	private final ConcurrentHashMap<String, Long> usedValues = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong nextCleanupTime = new AtomicLong();
+
+	private volatile int maxEntries;
+
+	private final LongAdder overflows;
+
+	/**
+	 * Constructor used when the guard is configured by class name
+	 */
+	public InMemoryReplayGuard() {
+		this("replayGuard", DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param metricsPrefix prefix of guard metrics, e.g. <code>openid.stateReplayGuard</code>
+	 */
+	public InMemoryReplayGuard(String metricsPrefix, int maxEntries) {
+		this.maxEntries = maxEntries;
+
+		final IdpMetrics metrics = IdpMetrics.instance();
+		this.overflows = metrics.counter(metricsPrefix + ".overflow");
+		metrics.gauge(metricsPrefix + ".size", () -> usedValues.size());
+	}
+
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	@Override
+	public boolean markUsed(String value, long expirationTime) {
+		final long now = System.currentTimeMillis();
+		cleanup(now);
+
+		if (usedValues.size() >= maxEntries) {
+			overflows.increment();
+			return !isUsed(value);
+		}
+
+		final Long previous = usedValues.putIfAbsent(value, expirationTime);
+
+		return (previous == null) || ((previous < now) && usedValues.replace(value, previous, expirationTime));
+	}
+
+	/**
+	 * Check if value is marked as used and not expired, without marking it
+	 */
+	public boolean isUsed(String value) {
+		final Long expirationTime = usedValues.get(value);
+
+		return (expirationTime != null) && (expirationTime >= System.currentTimeMillis());
+	}
+
+	public int size() {
+		return usedValues.size();
+	}
+
+	private void cleanup(long now) {
+		final long cleanupTime = nextCleanupTime.get();
+		if ((now < cleanupTime) || !nextCleanupTime.compareAndSet(cleanupTime, now + CLEANUP_INTERVAL_MILLIS)) {
+			return;
+		}
+
+		for (Iterator<Map.Entry<String, Long>> it = usedValues.entrySet().iterator(); it.hasNext();) {
+			if (it.next().getValue() < now) {
+				it.remove();
+			}
+		}
+	}
+
+}
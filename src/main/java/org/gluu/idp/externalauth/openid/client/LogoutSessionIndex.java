@@ -0,0 +1,210 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.apache.commons.lang.StringUtils;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+
+/**
+ * Local index of the sessions authenticated by OpenID Provider, by <code>sid</code> and <code>sub</code> of id_token
+ * <p>
+ * Session is added when {@link Binding} is put into it at login and removed when binding is removed at logout or
+ * session is invalidated or expires, so back-channel logout finds sessions without scanning them. Binding also keeps
+ * the Shibboleth IdP session id: the one the browser had at login, replaced by the one Shibboleth creates after the
+ * login (see {@link #recordIdpSession}). Index is kept per node; sessions replicated from cluster peers aren't indexed.
+ */
+public final class LogoutSessionIndex {
+
+	/**
+	 * Cookie with the id of Shibboleth IdP session
+	 */
+	public static final String IDP_SESSION_COOKIE = "shib_idp_session";
+
+	/**
+	 * Session attribute with the name of the binding attribute whose IdP session isn't recorded yet
+	 */
+	public static final String PENDING_BINDING_ATTRIBUTE = "oxidp#logout_pending_binding";
+
+	private final ConcurrentHashMap<String, Set<Binding>> bindings = new ConcurrentHashMap<String, Set<Binding>>();
+	private final AtomicInteger size = new AtomicInteger();
+
+	private volatile int maxSessions;
+
+	private final LongAdder overflows;
+
+	public LogoutSessionIndex(int maxSessions) {
+		this.maxSessions = maxSessions;
+
+		final IdpMetrics metrics = IdpMetrics.instance();
+		this.overflows = metrics.counter("logout.index.overflow");
+		metrics.gauge("logout.index.size", () -> size.get());
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Create binding to put into session of the login
+	 *
+	 * @param clientName client which authenticated user or <code>null</code> for default client
+	 * @param idpSessionId Shibboleth IdP session id or <code>null</code> if it isn't known yet
+	 */
+	Binding bind(String clientName, String sid, String subject, String idpSessionId) {
+		return new Binding(this, StringUtils.defaultString(clientName), sid, subject, idpSessionId);
+	}
+
+	/**
+	 * Bindings of the OpenID Provider session <code>sid</code>, or of all sessions of the user if <code>sid</code> is
+	 * empty
+	 *
+	 * @param clientName client which received logout request or <code>null</code> for default client
+	 */
+	public Set<Binding> getBindings(String clientName, String sid, String subject) {
+		final String key = StringUtils.isNotEmpty(sid) ? getSidKey(StringUtils.defaultString(clientName), sid)
+				: getSubjectKey(StringUtils.defaultString(clientName), subject);
+		if (key == null) {
+			return Collections.emptySet();
+		}
+
+		final Set<Binding> result = bindings.get(key);
+
+		return (result == null) ? Collections.<Binding>emptySet() : result;
+	}
+
+	/**
+	 * Record IdP session which Shibboleth created for the session after the login
+	 *
+	 * @return <code>false</code> if session has no binding waiting for IdP session
+	 */
+	public static boolean recordIdpSession(HttpSession session, String idpSessionId) {
+		final Object bindingAttribute = session.getAttribute(PENDING_BINDING_ATTRIBUTE);
+		if (bindingAttribute == null) {
+			return false;
+		}
+
+		final Object binding = session.getAttribute(bindingAttribute.toString());
+		if (binding instanceof Binding) {
+			((Binding) binding).idpSessionId = idpSessionId;
+		}
+		session.removeAttribute(PENDING_BINDING_ATTRIBUTE);
+
+		return binding instanceof Binding;
+	}
+
+	private void add(Binding binding, HttpSession session) {
+		if (size.incrementAndGet() > maxSessions) {
+			size.decrementAndGet();
+			overflows.increment();
+			return;
+		}
+
+		binding.session = session;
+		binding.indexed = true;
+		put(getSidKey(binding.clientKey, binding.sid), binding);
+		put(getSubjectKey(binding.clientKey, binding.subject), binding);
+	}
+
+	private void remove(Binding binding) {
+		if (!binding.indexed) {
+			return;
+		}
+
+		binding.indexed = false;
+		size.decrementAndGet();
+		delete(getSidKey(binding.clientKey, binding.sid), binding);
+		delete(getSubjectKey(binding.clientKey, binding.subject), binding);
+	}
+
+	private void put(String key, Binding binding) {
+		if (key != null) {
+			bindings.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(binding);
+		}
+	}
+
+	private void delete(String key, Binding binding) {
+		if (key == null) {
+			return;
+		}
+
+		bindings.computeIfPresent(key, (k, keyBindings) -> {
+			keyBindings.remove(binding);
+			return keyBindings.isEmpty() ? null : keyBindings;
+		});
+	}
+
+	private static String getSidKey(String clientKey, String sid) {
+		return StringUtils.isEmpty(sid) ? null : "sid|" + clientKey + '|' + sid;
+	}
+
+	private static String getSubjectKey(String clientKey, String subject) {
+		return StringUtils.isEmpty(subject) ? null : "sub|" + clientKey + '|' + subject;
+	}
+
+	/**
+	 * Session attribute which keeps session in the index while it's bound
+	 */
+	public static final class Binding implements HttpSessionBindingListener, Serializable {
+
+		private static final long serialVersionUID = -2969350736574934162L;
+
+		private final transient LogoutSessionIndex index;
+		private final String clientKey;
+		private final String sid;
+		private final String subject;
+		private volatile String idpSessionId;
+
+		private transient volatile HttpSession session;
+		private transient volatile boolean indexed;
+
+		Binding(LogoutSessionIndex index, String clientKey, String sid, String subject, String idpSessionId) {
+			this.index = index;
+			this.clientKey = clientKey;
+			this.sid = sid;
+			this.subject = subject;
+			this.idpSessionId = idpSessionId;
+		}
+
+		/**
+		 * @return session the binding is put into, or <code>null</code> if it isn't indexed
+		 */
+		public HttpSession getSession() {
+			return session;
+		}
+
+		/**
+		 * @return Shibboleth IdP session id, or <code>null</code> if browser had no IdP session at login
+		 */
+		public String getIdpSessionId() {
+			return idpSessionId;
+		}
+
+		@Override
+		public void valueBound(HttpSessionBindingEvent event) {
+			if (index != null) {
+				index.add(this, event.getSession());
+			}
+		}
+
+		@Override
+		public void valueUnbound(HttpSessionBindingEvent event) {
+			if (index != null) {
+				index.remove(this);
+			}
+		}
+	}
+
+}
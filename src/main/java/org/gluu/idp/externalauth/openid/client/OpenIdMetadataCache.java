@@ -0,0 +1,389 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang.StringUtils;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.oxauth.client.JwkClient;
+import org.gluu.oxauth.client.JwkResponse;
+import org.gluu.oxauth.client.OpenIdConfigurationClient;
+import org.gluu.oxauth.client.OpenIdConfigurationResponse;
+import org.jboss.resteasy.client.ClientExecutor;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared cache of the OpenID Provider discovery document and JWKS.
+ * <p>
+ * Both are loaded and refreshed by a background thread. Public keys are parsed once and stored by
+ * <code>kid</code>. A token signed with an unknown <code>kid</code> triggers at most one JWKS re-fetch per
+ * <code>minKeysRefreshInterval</code>; concurrent callers share the result of the same fetch.
+ * <p>
+ * Fetches are never made on request thread. A request which misses metadata waits for the background fetch at most
+ * <code>maxWait</code>, then continues with the keys it has, so an unavailable OpenID Provider doesn't hold every
+ * login for the HTTP timeout.
+ */
+public class OpenIdMetadataCache {
+
+	private static final String DISCOVERY_PATH = "/.well-known/openid-configuration";
+
+	private final Logger logger = LoggerFactory.getLogger(OpenIdMetadataCache.class);
+
+	private final String discoveryUrl;
+	private final long refreshIntervalMillis;
+	private final long minKeysRefreshIntervalMillis;
+	private final long maxWaitMillis;
+	private final ClientExecutor clientExecutor;
+
+	private final ScheduledExecutorService scheduler;
+
+	private volatile OpenIdConfigurationResponse openIdConfiguration;
+	private volatile Map<String, PublicKey> publicKeys = Collections.emptyMap();
+	private volatile long keysRefreshAttemptTime;
+
+	private final AtomicReference<CompletableFuture<OpenIdConfigurationResponse>> configurationLoad = new AtomicReference<CompletableFuture<OpenIdConfigurationResponse>>();
+	private final AtomicReference<CompletableFuture<Map<String, PublicKey>>> keysRefresh = new AtomicReference<CompletableFuture<Map<String, PublicKey>>>();
+
+	private final LongAdder discoveryHits;
+	private final LongAdder discoveryMisses;
+	private final LongAdder keyHits;
+	private final LongAdder keyMisses;
+	private final LongAdder refreshes;
+	private final LongAdder refreshFailures;
+	private final LongAdder unknownKidRefreshes;
+	private final LongAdder unknownKidThrottled;
+	private final LongAdder waitTimeouts;
+
+	/**
+	 * @param maxWaitMillis how long request thread waits for a fetch it triggered
+	 */
+	public OpenIdMetadataCache(String openIdProviderUrl, long refreshIntervalMillis, long minKeysRefreshIntervalMillis, long maxWaitMillis,
+			ClientExecutor clientExecutor) {
+		this.discoveryUrl = StringUtils.removeEnd(openIdProviderUrl, "/") + DISCOVERY_PATH;
+		this.refreshIntervalMillis = refreshIntervalMillis;
+		this.minKeysRefreshIntervalMillis = minKeysRefreshIntervalMillis;
+		this.maxWaitMillis = maxWaitMillis;
+		this.clientExecutor = clientExecutor;
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "oxauth-metadata-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		final IdpMetrics metrics = IdpMetrics.instance();
+		this.discoveryHits = metrics.counter("openid.discovery.hit");
+		this.discoveryMisses = metrics.counter("openid.discovery.miss");
+		this.keyHits = metrics.counter("openid.jwks.hit");
+		this.keyMisses = metrics.counter("openid.jwks.miss");
+		this.refreshes = metrics.counter("openid.metadata.refresh");
+		this.refreshFailures = metrics.counter("openid.metadata.refresh.failure");
+		this.unknownKidRefreshes = metrics.counter("openid.jwks.unknownKid.refresh");
+		this.unknownKidThrottled = metrics.counter("openid.jwks.unknownKid.throttled");
+		this.waitTimeouts = metrics.counter("openid.metadata.wait.timeout");
+	}
+
+	/**
+	 * Load metadata in background and schedule periodic refresh
+	 */
+	public void start() {
+		scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void destroy() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Load discovery document and JWKS on the calling thread unless background load has done it already
+	 *
+	 * @return <code>true</code> if both are loaded
+	 */
+	public boolean preload() {
+		try {
+			final OpenIdConfigurationResponse configuration = (this.openIdConfiguration == null) ? initOpenIdConfiguration() : this.openIdConfiguration;
+			if (this.publicKeys.isEmpty()) {
+				loadPublicKeys(configuration);
+			}
+
+			return true;
+		} catch (RuntimeException ex) {
+			logger.warn("Failed to preload OpenID Provider metadata: {}", ex.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Discovery document if it's already loaded. Never waits for the load
+	 *
+	 * @return discovery document or <code>null</code> if it isn't loaded yet
+	 */
+	public OpenIdConfigurationResponse getLoadedOpenIdConfiguration() {
+		return this.openIdConfiguration;
+	}
+
+	/**
+	 * @throws IllegalStateException if discovery document isn't loaded yet and can't be loaded within <code>maxWait</code>
+	 */
+	public OpenIdConfigurationResponse getOpenIdConfiguration() {
+		final OpenIdConfigurationResponse result = this.openIdConfiguration;
+		if (result != null) {
+			discoveryHits.increment();
+			return result;
+		}
+
+		// Only happens when the first background load is not finished yet or failed
+		discoveryMisses.increment();
+		CompletableFuture<OpenIdConfigurationResponse> load = configurationLoad.get();
+		if (load == null) {
+			final CompletableFuture<OpenIdConfigurationResponse> created = new CompletableFuture<OpenIdConfigurationResponse>();
+			if (configurationLoad.compareAndSet(null, created)) {
+				runInBackground(created, () -> created.complete(initOpenIdConfiguration()), configurationLoad);
+				load = created;
+			} else {
+				load = configurationLoad.get();
+			}
+		}
+
+		final OpenIdConfigurationResponse loaded = (load == null) ? this.openIdConfiguration : await(load, null);
+		if (loaded == null) {
+			throw new IllegalStateException("OpenID Provider configuration is not loaded from: " + discoveryUrl);
+		}
+
+		return loaded;
+	}
+
+	/**
+	 * Get the public key with the given <code>kid</code>. Unknown key id causes a single, throttled JWKS re-fetch
+	 *
+	 * @param keyId key id from JWT header. If it's empty the only key in JWKS is returned
+	 * @return public key or <code>null</code> if there is no such key
+	 */
+	public PublicKey getPublicKey(String keyId) {
+		PublicKey publicKey = findPublicKey(this.publicKeys, keyId);
+		if (publicKey != null) {
+			keyHits.increment();
+			return publicKey;
+		}
+
+		keyMisses.increment();
+		publicKey = findPublicKey(refreshKeysOnUnknownKeyId(), keyId);
+		if (publicKey == null) {
+			logger.warn("Failed to find public key with kid '{}' in JWKS", keyId);
+		}
+
+		return publicKey;
+	}
+
+	private PublicKey findPublicKey(Map<String, PublicKey> keys, String keyId) {
+		if (StringUtils.isEmpty(keyId)) {
+			return keys.size() == 1 ? keys.values().iterator().next() : null;
+		}
+
+		return keys.get(keyId);
+	}
+
+	/**
+	 * @return refreshed keys, or current keys if refresh is throttled, failed or didn't finish within <code>maxWait</code>
+	 */
+	private Map<String, PublicKey> refreshKeysOnUnknownKeyId() {
+		CompletableFuture<Map<String, PublicKey>> refresh = keysRefresh.get();
+		if (refresh == null) {
+			if (System.currentTimeMillis() - keysRefreshAttemptTime < minKeysRefreshIntervalMillis) {
+				unknownKidThrottled.increment();
+				return this.publicKeys;
+			}
+
+			final CompletableFuture<Map<String, PublicKey>> created = new CompletableFuture<Map<String, PublicKey>>();
+			if (keysRefresh.compareAndSet(null, created)) {
+				unknownKidRefreshes.increment();
+				// Throttles callers which arrive while the fetch is in progress or after it timed out
+				this.keysRefreshAttemptTime = System.currentTimeMillis();
+				runInBackground(created, () -> created.complete(loadPublicKeys(initOpenIdConfiguration())), keysRefresh);
+				refresh = created;
+			} else {
+				refresh = keysRefresh.get();
+				if (refresh == null) {
+					return this.publicKeys;
+				}
+			}
+		}
+
+		return await(refresh, this.publicKeys);
+	}
+
+	/**
+	 * Run fetch on the refresh thread. Failure completes it with <code>null</code>, callers fall back to what they have
+	 */
+	private <T> void runInBackground(CompletableFuture<T> future, Runnable fetch, AtomicReference<CompletableFuture<T>> inProgress) {
+		try {
+			scheduler.execute(() -> {
+				try {
+					fetch.run();
+				} catch (RuntimeException ex) {
+					logger.error("Failed to load OpenID Provider metadata", ex);
+					future.complete(null);
+				} finally {
+					inProgress.compareAndSet(future, null);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// Cache is destroyed
+			future.complete(null);
+			inProgress.compareAndSet(future, null);
+		}
+	}
+
+	private <T> T await(CompletableFuture<T> future, T fallback) {
+		try {
+			final T result = future.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+			return (result == null) ? fallback : result;
+		} catch (TimeoutException ex) {
+			waitTimeouts.increment();
+			logger.warn("OpenID Provider metadata is not loaded within {} ms, continuing with cached values", maxWaitMillis);
+			return fallback;
+		} catch (ExecutionException ex) {
+			return fallback;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return fallback;
+		}
+	}
+
+	private void refresh() {
+		try {
+			final OpenIdConfigurationResponse configuration = loadOpenIdConfiguration();
+			loadPublicKeys(configuration);
+			refreshes.increment();
+		} catch (RuntimeException ex) {
+			refreshFailures.increment();
+			logger.error("Failed to refresh OpenID Provider metadata. Keeping previous values", ex);
+		}
+	}
+
+	private synchronized OpenIdConfigurationResponse initOpenIdConfiguration() {
+		if (this.openIdConfiguration != null) {
+			return this.openIdConfiguration;
+		}
+
+		return loadOpenIdConfiguration();
+	}
+
+	private synchronized OpenIdConfigurationResponse loadOpenIdConfiguration() {
+		logger.debug("Loading OpenID Provider configuration from '{}'", discoveryUrl);
+
+		final OpenIdConfigurationClient client = new OpenIdConfigurationClient(discoveryUrl);
+		client.setExecutor(clientExecutor);
+		final OpenIdConfigurationResponse response = client.execOpenIdConfiguration();
+		if ((response == null) || (response.getStatus() != 200)) {
+			throw new IllegalStateException("Failed to load OpenID Provider configuration from: " + discoveryUrl);
+		}
+
+		this.openIdConfiguration = response;
+
+		return response;
+	}
+
+	private Map<String, PublicKey> loadPublicKeys(OpenIdConfigurationResponse configuration) {
+		this.keysRefreshAttemptTime = System.currentTimeMillis();
+
+		logger.debug("Loading JWKS from '{}'", configuration.getJwksUri());
+		final JwkClient client = new JwkClient(configuration.getJwksUri());
+		client.setExecutor(clientExecutor);
+		final JwkResponse response = client.exec();
+		if ((response == null) || (response.getStatus() != 200)) {
+			throw new IllegalStateException("Failed to load JWKS from: " + configuration.getJwksUri());
+		}
+
+		final Map<String, PublicKey> keys = parsePublicKeys(response.getEntity());
+		this.publicKeys = keys;
+
+		return keys;
+	}
+
+	private Map<String, PublicKey> parsePublicKeys(String jwks) {
+		final JSONArray jsonKeys = new JSONObject(jwks).getJSONArray("keys");
+
+		final Map<String, PublicKey> keys = new HashMap<String, PublicKey>();
+		for (int i = 0; i < jsonKeys.length(); i++) {
+			final JSONObject jsonKey = jsonKeys.getJSONObject(i);
+			if (StringUtils.equals("enc", jsonKey.optString("use", null))) {
+				continue;
+			}
+
+			final String keyId = jsonKey.optString("kid", "");
+			try {
+				final PublicKey publicKey = toPublicKey(jsonKey);
+				if (publicKey != null) {
+					keys.put(keyId, publicKey);
+				}
+			} catch (Exception ex) {
+				logger.warn("Failed to parse JWK with kid '{}'", keyId, ex);
+			}
+		}
+		logger.debug("Loaded {} public keys from JWKS", keys.size());
+
+		return Collections.unmodifiableMap(keys);
+	}
+
+	private PublicKey toPublicKey(JSONObject jsonKey) throws Exception {
+		final String keyType = jsonKey.getString("kty");
+		if ("RSA".equals(keyType)) {
+			final RSAPublicKeySpec keySpec = new RSAPublicKeySpec(toBigInteger(jsonKey.getString("n")), toBigInteger(jsonKey.getString("e")));
+			return KeyFactory.getInstance("RSA").generatePublic(keySpec);
+		}
+
+		if ("EC".equals(keyType)) {
+			final AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+			parameters.init(new ECGenParameterSpec(toCurveName(jsonKey.getString("crv"))));
+
+			final ECPoint point = new ECPoint(toBigInteger(jsonKey.getString("x")), toBigInteger(jsonKey.getString("y")));
+			final ECPublicKeySpec keySpec = new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class));
+			return KeyFactory.getInstance("EC").generatePublic(keySpec);
+		}
+
+		logger.debug("Skipping JWK with unsupported key type '{}'", keyType);
+		return null;
+	}
+
+	private String toCurveName(String crv) {
+		switch (crv) {
+		case "P-256":
+			return "secp256r1";
+		case "P-384":
+			return "secp384r1";
+		case "P-521":
+			return "secp521r1";
+		default:
+			throw new IllegalArgumentException("Unsupported curve: " + crv);
+		}
+	}
+
+	private BigInteger toBigInteger(String base64Url) {
+		return new BigInteger(1, Base64.getUrlDecoder().decode(base64Url));
+	}
+
+}
@@ -0,0 +1,20 @@
+package org.gluu.idp.externalauth.openid.client;
+
+/**
+ * Guard against reuse of one-time values, e.g. the id of the self-contained request state
+ * <p>
+ * Implementations must be thread safe. An implementation shared by all IdP nodes (e.g. backed by a distributed cache)
+ * is needed to detect replays across the cluster; {@link InMemoryReplayGuard} only detects them on the local node.
+ */
+public interface ReplayGuard {
+
+	/**
+	 * Mark value as used
+	 *
+	 * @param value one-time value
+	 * @param expirationTime time in milliseconds after which the value can be forgotten
+	 * @return <code>true</code> if value was not used before
+	 */
+	boolean markUsed(String value, long expirationTime);
+
+}
@@ -0,0 +1,249 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encodes authorization request state as compact JWT
+ * <p>
+ * Without secret the state is unsigned JWT which must be compared with the copy kept in HttpSession. With secret the state
+ * is self-contained: it's signed with HMAC-SHA256 (HS256) and optionally its claims are encrypted with AES-GCM, so any IdP
+ * node sharing the secret can validate it. Signed state carries a MAC of a random value kept in a browser cookie, so it's
+ * accepted only from the browser which started the login.
+ */
+public class RequestStateCodec {
+
+	public static final String CLAIM_NONCE = "nonce";
+	public static final String CLAIM_STATE_ID = "jti";
+	public static final String CLAIM_EXPIRATION = "exp";
+	public static final String CLAIM_BROWSER_BINDING = "bnd";
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	private static final int GCM_IV_LENGTH = 12;
+	private static final int GCM_TAG_LENGTH = 128;
+
+	private final Logger logger = LoggerFactory.getLogger(RequestStateCodec.class);
+
+	private final SecureRandom secureRandom = new SecureRandom();
+
+	private final String header;
+	private final SecretKeySpec macKey;
+	private final SecretKeySpec bindingKey;
+	private final SecretKeySpec encryptionKey;
+	private final long lifetimeMillis;
+
+	private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>();
+
+	/**
+	 * Codec for unsigned state
+	 */
+	public RequestStateCodec() {
+		this.header = encode("{\"alg\":\"none\",\"typ\":\"JWT\"}");
+		this.macKey = null;
+		this.bindingKey = null;
+		this.encryptionKey = null;
+		this.lifetimeMillis = 0;
+	}
+
+	/**
+	 * Codec for signed and optionally encrypted state
+	 *
+	 * @param secret secret shared by all IdP nodes
+	 * @param encrypt encrypt state claims
+	 * @param lifetimeMillis maximum time between authorization request and response
+	 */
+	public RequestStateCodec(String secret, boolean encrypt, long lifetimeMillis) {
+		this.header = encode(encrypt ? "{\"alg\":\"HS256\",\"enc\":\"A128GCM\",\"typ\":\"JWT\"}" : "{\"alg\":\"HS256\",\"typ\":\"JWT\"}");
+		this.macKey = new SecretKeySpec(deriveKey(secret, "oxidp-state-mac", 32), HMAC_ALGORITHM);
+		this.bindingKey = new SecretKeySpec(deriveKey(secret, "oxidp-state-binding", 32), HMAC_ALGORITHM);
+		this.encryptionKey = encrypt ? new SecretKeySpec(deriveKey(secret, "oxidp-state-enc", 16), "AES") : null;
+		this.lifetimeMillis = lifetimeMillis;
+	}
+
+	public boolean isSigned() {
+		return macKey != null;
+	}
+
+	public String encode(Map<String, String> claims) {
+		final JSONObject json = new JSONObject();
+		if (claims != null) {
+			for (Map.Entry<String, String> entry : claims.entrySet()) {
+				json.put(entry.getKey(), entry.getValue());
+			}
+		}
+		if (!json.has(CLAIM_STATE_ID)) {
+			json.put(CLAIM_STATE_ID, generateRandom());
+		}
+
+		if (!isSigned()) {
+			return header + "." + encode(json.toString()) + ".";
+		}
+
+		json.put(CLAIM_EXPIRATION, (System.currentTimeMillis() + lifetimeMillis) / 1000);
+
+		final byte[] payload = json.toString().getBytes(StandardCharsets.UTF_8);
+		final String signingInput = header + "." + ENCODER.encodeToString(encryptionKey == null ? payload : encrypt(payload));
+
+		return signingInput + "." + ENCODER.encodeToString(sign(signingInput));
+	}
+
+	/**
+	 * Decode state claims. Signed state is verified and checked for expiration
+	 *
+	 * @return claims or <code>null</code> if state is not valid
+	 */
+	public Map<String, String> decode(String state) {
+		if (StringUtils.isEmpty(state)) {
+			return null;
+		}
+
+		final int payloadStart = state.indexOf('.');
+		final int signatureStart = state.indexOf('.', payloadStart + 1);
+		if ((payloadStart == -1) || (signatureStart == -1)) {
+			logger.debug("State is not in JWT format");
+			return null;
+		}
+
+		try {
+			byte[] payload = DECODER.decode(state.substring(payloadStart + 1, signatureStart));
+			if (isSigned()) {
+				final String signingInput = state.substring(0, signatureStart);
+				final byte[] signature = DECODER.decode(state.substring(signatureStart + 1));
+				if (!header.equals(state.substring(0, payloadStart)) || !MessageDigest.isEqual(sign(signingInput), signature)) {
+					logger.warn("State signature is not valid");
+					return null;
+				}
+
+				if (encryptionKey != null) {
+					payload = decrypt(payload);
+				}
+			}
+
+			final JSONObject json = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+			if (isSigned() && (json.optLong(CLAIM_EXPIRATION, 0) * 1000 < System.currentTimeMillis())) {
+				logger.warn("State is expired");
+				return null;
+			}
+
+			final Map<String, String> claims = new HashMap<String, String>();
+			for (Iterator<String> it = json.keys(); it.hasNext();) {
+				final String name = it.next();
+				claims.put(name, String.valueOf(json.get(name)));
+			}
+
+			return Collections.unmodifiableMap(claims);
+		} catch (RuntimeException | GeneralSecurityException ex) {
+			logger.debug("Failed to decode state", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * MAC of the browser cookie value to put into {@link #CLAIM_BROWSER_BINDING} claim
+	 */
+	public String getBrowserBinding(String cookieValue) {
+		try {
+			final Mac instance = Mac.getInstance(HMAC_ALGORITHM);
+			instance.init(bindingKey);
+
+			return ENCODER.encodeToString(instance.doFinal(cookieValue.getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Failed to bind state", ex);
+		}
+	}
+
+	/**
+	 * Check that decoded state was issued to the browser which sent the cookie value
+	 */
+	public boolean isBoundTo(Map<String, String> claims, String cookieValue) {
+		final String binding = claims.get(CLAIM_BROWSER_BINDING);
+		if ((binding == null) || StringUtils.isEmpty(cookieValue)) {
+			return false;
+		}
+
+		return MessageDigest.isEqual(binding.getBytes(StandardCharsets.US_ASCII),
+				getBrowserBinding(cookieValue).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	public String generateRandom() {
+		final byte[] bytes = new byte[24];
+		secureRandom.nextBytes(bytes);
+
+		return ENCODER.encodeToString(bytes);
+	}
+
+	private byte[] sign(String signingInput) {
+		try {
+			Mac instance = mac.get();
+			if (instance == null) {
+				instance = Mac.getInstance(HMAC_ALGORITHM);
+				instance.init(macKey);
+				mac.set(instance);
+			}
+
+			return instance.doFinal(signingInput.getBytes(StandardCharsets.US_ASCII));
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Failed to sign state", ex);
+		}
+	}
+
+	private byte[] encrypt(byte[] payload) {
+		try {
+			final byte[] iv = new byte[GCM_IV_LENGTH];
+			secureRandom.nextBytes(iv);
+
+			final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+			final byte[] encrypted = cipher.doFinal(payload);
+
+			return ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array();
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Failed to encrypt state", ex);
+		}
+	}
+
+	private byte[] decrypt(byte[] payload) throws GeneralSecurityException {
+		final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_LENGTH, payload, 0, GCM_IV_LENGTH));
+
+		return cipher.doFinal(payload, GCM_IV_LENGTH, payload.length - GCM_IV_LENGTH);
+	}
+
+	private static byte[] deriveKey(String secret, String purpose, int length) {
+		try {
+			final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+
+			return Arrays.copyOf(mac.doFinal(purpose.getBytes(StandardCharsets.UTF_8)), length);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException("Failed to derive state key", ex);
+		}
+	}
+
+	private static String encode(String value) {
+		return ENCODER.encodeToString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,129 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces concurrent calls with the same key into one execution
+ * <p>
+ * First caller executes the call, callers which come while it's in progress wait for its result. Map is bounded:
+ * when it's full calls are executed without coalescing. Entries of calls which hang longer than timeout are
+ * expired, so the map can't leak even if a call never completes.
+ *
+ * @param <V> result type
+ */
+final class SingleFlight<V> {
+
+	private static final long CLEANUP_INTERVAL_MILLIS = 10000;
+
+	private final Logger logger = LoggerFactory.getLogger(SingleFlight.class);
+
+	private final ConcurrentHashMap<String, Flight<V>> flights = new ConcurrentHashMap<String, Flight<V>>();
+	private final AtomicLong nextCleanupTime = new AtomicLong();
+
+	private volatile int maxEntries;
+	private volatile long timeoutMillis;
+
+	private final LongAdder coalesced;
+	private final LongAdder timeouts;
+	private final LongAdder overflows;
+
+	SingleFlight(String metricsPrefix, int maxEntries, long timeoutMillis) {
+		configure(maxEntries, timeoutMillis);
+
+		final IdpMetrics metrics = IdpMetrics.instance();
+		this.coalesced = metrics.counter(metricsPrefix + ".coalesced");
+		this.timeouts = metrics.counter(metricsPrefix + ".coalescing.timeout");
+		this.overflows = metrics.counter(metricsPrefix + ".coalescing.overflow");
+		metrics.gauge(metricsPrefix + ".inFlight", () -> flights.size());
+	}
+
+	void configure(int maxEntries, long timeoutMillis) {
+		this.maxEntries = maxEntries;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Execute call or wait for result of the same call in progress
+	 *
+	 * @return result of the call, or <code>null</code> if the shared call failed or didn't complete within timeout
+	 */
+	V execute(String key, Supplier<V> call) {
+		final long now = System.currentTimeMillis();
+		cleanup(now);
+
+		if (flights.size() >= maxEntries) {
+			overflows.increment();
+			return call.get();
+		}
+
+		final Flight<V> flight = new Flight<V>(now + timeoutMillis);
+		final Flight<V> existing = flights.putIfAbsent(key, flight);
+		if (existing == null) {
+			try {
+				final V result = call.get();
+				flight.result.complete(result);
+				return result;
+			} catch (RuntimeException ex) {
+				flight.result.completeExceptionally(ex);
+				throw ex;
+			} finally {
+				flights.remove(key, flight);
+			}
+		}
+
+		coalesced.increment();
+		try {
+			return existing.result.get(Math.max(existing.expirationTime - now, 0), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			timeouts.increment();
+			logger.error("Call in progress didn't complete within {} ms", timeoutMillis);
+		} catch (ExecutionException ex) {
+			logger.debug("Shared call failed", ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		return null;
+	}
+
+	private void cleanup(long now) {
+		final long cleanupTime = nextCleanupTime.get();
+		if ((now < cleanupTime) || !nextCleanupTime.compareAndSet(cleanupTime, now + CLEANUP_INTERVAL_MILLIS)) {
+			return;
+		}
+
+		for (Iterator<Map.Entry<String, Flight<V>>> it = flights.entrySet().iterator(); it.hasNext();) {
+			if (it.next().getValue().expirationTime < now) {
+				it.remove();
+			}
+		}
+	}
+
+	private static final class Flight<V> {
+
+		private final CompletableFuture<V> result = new CompletableFuture<V>();
+		private final long expirationTime;
+
+		Flight(long expirationTime) {
+			this.expirationTime = expirationTime;
+		}
+	}
+
+}
@@ -0,0 +1,162 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.oxauth.client.auth.user.UserProfile;
+
+/**
+ * Size bounded LRU cache of user profiles with expiration
+ * <p>
+ * Profiles are keyed by <code>sub</code> and hash of the user claims of id_token. Lookup is done only after
+ * id_token is validated, so cached profile is never returned without fresh proof of authentication of the user.
+ * Hit saves user info request and lets translators reuse attributes they built for the cached profile.
+ */
+final class UserProfileCache {
+
+	private final String source;
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final Set<String> excludedRelyingParties;
+
+	private final LinkedHashMap<String, Entry> profiles;
+
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+	private final LongAdder expirations;
+
+	/**
+	 * @param metricsPrefix prefix of cache metrics, e.g. <code>openid.client.&lt;name&gt;</code>
+	 * @param source settings the cache and cached profiles were built with, the cache is kept across reloads while they
+	 *            are the same
+	 */
+	UserProfileCache(String metricsPrefix, String source, int maxEntries, long ttlMillis, Set<String> excludedRelyingParties) {
+		this.source = source;
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.excludedRelyingParties = excludedRelyingParties;
+
+		this.profiles = new LinkedHashMap<String, Entry>(Math.min(maxEntries, 1024), 0.75f, true) {
+
+			private static final long serialVersionUID = -1735474155470981340L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > UserProfileCache.this.maxEntries) {
+					evictions.increment();
+					return true;
+				}
+
+				return false;
+			}
+		};
+
+		final IdpMetrics metrics = IdpMetrics.instance();
+		this.hits = metrics.counter(metricsPrefix + ".profileCache.hit");
+		this.misses = metrics.counter(metricsPrefix + ".profileCache.miss");
+		this.evictions = metrics.counter(metricsPrefix + ".profileCache.eviction");
+		this.expirations = metrics.counter(metricsPrefix + ".profileCache.expired");
+		metrics.gauge(metricsPrefix + ".profileCache.size", () -> size());
+	}
+
+	String getSource() {
+		return source;
+	}
+
+	boolean isEnabled(String relyingPartyId) {
+		return (relyingPartyId == null) || !excludedRelyingParties.contains(relyingPartyId);
+	}
+
+	/**
+	 * Build cache key
+	 *
+	 * @param source profile source, profiles built from id_token and from user info are cached separately
+	 * @param claims user claims of id_token
+	 */
+	String getKey(String source, String subject, Map<String, List<String>> claims) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+
+		for (Map.Entry<String, List<String>> entry : new TreeMap<String, List<String>>(claims).entrySet()) {
+			digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+			for (String value : entry.getValue()) {
+				digest.update((byte) 0);
+				digest.update(value.getBytes(StandardCharsets.UTF_8));
+			}
+			digest.update((byte) 1);
+		}
+
+		return source + '|' + subject + '|' + Base64.getEncoder().encodeToString(digest.digest());
+	}
+
+	/**
+	 * @return cached profile or <code>null</code>
+	 */
+	UserProfile get(String key) {
+		final long now = System.currentTimeMillis();
+		synchronized (profiles) {
+			final Entry entry = profiles.get(key);
+			if (entry == null) {
+				misses.increment();
+				return null;
+			}
+
+			if (entry.expirationTime < now) {
+				profiles.remove(key);
+				expirations.increment();
+				misses.increment();
+				return null;
+			}
+
+			hits.increment();
+			return entry.profile;
+		}
+	}
+
+	/**
+	 * Put profile into cache
+	 *
+	 * @return shared copy of the profile which should be used instead of the given one
+	 */
+	UserProfile put(String key, UserProfile profile) {
+		final CachedUserProfile cachedProfile = new CachedUserProfile(profile);
+		final Entry entry = new Entry(cachedProfile, System.currentTimeMillis() + ttlMillis);
+		synchronized (profiles) {
+			profiles.put(key, entry);
+		}
+
+		return cachedProfile;
+	}
+
+	int size() {
+		synchronized (profiles) {
+			return profiles.size();
+		}
+	}
+
+	private static final class Entry {
+
+		private final CachedUserProfile profile;
+		private final long expirationTime;
+
+		Entry(CachedUserProfile profile, long expirationTime) {
+			this.profile = profile;
+			this.expirationTime = expirationTime;
+		}
+	}
+
+}
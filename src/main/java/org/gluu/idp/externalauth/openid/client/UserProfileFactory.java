@@ -0,0 +1,175 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringUtils;
+import org.gluu.idp.externalauth.openid.conf.IdpAppConfiguration;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.gluu.oxauth.client.auth.user.UserProfile;
+import org.gluu.oxauth.client.conf.ClaimToAttributeMapping;
+import org.gluu.oxauth.model.jwt.Jwt;
+import org.gluu.oxauth.model.jwt.JwtClaimName;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Builds {@link UserProfile} from userinfo response or from validated id_token claims
+ * <p>
+ * Claims from both sources are converted to the same <code>claim -> list of values</code> form, so translators
+ * get identical profiles regardless of the source.
+ */
+public class UserProfileFactory {
+
+	/**
+	 * id_token claims which describe the token itself and are never returned from userinfo endpoint
+	 */
+	private static final Set<String> ID_TOKEN_PROTOCOL_CLAIMS = new HashSet<String>(Arrays.asList(JwtClaimName.ISSUER, JwtClaimName.AUDIENCE,
+			JwtClaimName.EXPIRATION_TIME, JwtClaimName.ISSUED_AT, JwtClaimName.NOT_BEFORE, JwtClaimName.NONCE, JwtClaimName.JWT_ID,
+			JwtClaimName.AUTHENTICATION_TIME, JwtClaimName.AUTHENTICATION_CONTEXT_CLASS_REFERENCE, JwtClaimName.AUTHENTICATION_METHOD_REFERENCES,
+			JwtClaimName.AUTHORIZED_PARTY, JwtClaimName.ACCESS_TOKEN_HASH, JwtClaimName.CODE_HASH, "sid", "oxOpenIDConnectVersion"));
+
+	private final IdpAppConfiguration appConfiguration;
+
+	private final boolean idTokenProfile;
+	private final Set<String> idTokenProfileRelyingParties;
+	private final Set<String> userInfoProfileRelyingParties;
+	private final List<String> requiredClaims;
+
+	public UserProfileFactory(IdpConfiguration configuration) {
+		this.appConfiguration = configuration.getAppConfiguration();
+
+		this.idTokenProfile = configuration.getBoolean("oxidp_IdTokenProfile", false);
+		this.idTokenProfileRelyingParties = toSet(configuration.getString("oxidp_IdTokenProfileRelyingParties", null));
+		this.userInfoProfileRelyingParties = toSet(configuration.getString("oxidp_UserInfoProfileRelyingParties", null));
+		this.requiredClaims = new ArrayList<String>(toSet(configuration.getString("oxidp_IdTokenProfileRequiredClaims", null)));
+	}
+
+	/**
+	 * Check if profile for given relying party should be built from id_token claims
+	 */
+	public boolean isIdTokenProfile(String relyingPartyId) {
+		if (relyingPartyId != null) {
+			if (idTokenProfileRelyingParties.contains(relyingPartyId)) {
+				return true;
+			}
+			if (userInfoProfileRelyingParties.contains(relyingPartyId)) {
+				return false;
+			}
+		}
+
+		return idTokenProfile;
+	}
+
+	/**
+	 * Get user claims from id_token
+	 *
+	 * @return claims or <code>null</code> if some of the required claims are missing
+	 */
+	public Map<String, List<String>> getIdTokenClaims(Jwt idToken) {
+		return checkRequiredClaims(getUserClaims(idToken));
+	}
+
+	/**
+	 * Check if user claims of id_token are enough to build profile
+	 *
+	 * @return given claims or <code>null</code> if some of the required claims are missing
+	 */
+	public Map<String, List<String>> checkRequiredClaims(Map<String, List<String>> claims) {
+		for (String requiredClaim : requiredClaims) {
+			if (!claims.containsKey(requiredClaim)) {
+				return null;
+			}
+		}
+
+		return claims;
+	}
+
+	/**
+	 * Get all user claims of id_token, claims which describe the token itself are skipped
+	 */
+	public Map<String, List<String>> getUserClaims(Jwt idToken) {
+		final JSONObject jsonClaims = idToken.getClaims().toJsonObject();
+
+		final Map<String, List<String>> claims = new HashMap<String, List<String>>();
+		for (Iterator<String> it = jsonClaims.keys(); it.hasNext();) {
+			final String name = it.next();
+			if (ID_TOKEN_PROTOCOL_CLAIMS.contains(name)) {
+				continue;
+			}
+
+			final Object value = jsonClaims.get(name);
+			if (value instanceof JSONArray) {
+				final JSONArray array = (JSONArray) value;
+				final List<String> values = new ArrayList<String>(array.length());
+				for (int i = 0; i < array.length(); i++) {
+					values.add(String.valueOf(array.get(i)));
+				}
+				claims.put(name, values);
+			} else if (value != JSONObject.NULL) {
+				claims.put(name, Collections.singletonList(String.valueOf(value)));
+			}
+		}
+
+		return claims;
+	}
+
+	/**
+	 * Settings which built profiles depend on. Cached profiles can be reused while they are the same
+	 */
+	public String getProfileSource() {
+		final StringBuilder source = new StringBuilder(new TreeSet<String>(requiredClaims).toString());
+
+		final List<ClaimToAttributeMapping> claimMappings = appConfiguration.getOpenIdClaimMapping();
+		if (claimMappings != null) {
+			for (ClaimToAttributeMapping mapping : claimMappings) {
+				source.append('|').append(mapping.getClaim()).append('=').append(mapping.getAttribute());
+			}
+		}
+
+		return source.toString();
+	}
+
+	public UserProfile build(Jwt idToken, Map<String, List<String>> claims) {
+		final UserProfile profile = new UserProfile();
+		profile.setId(idToken.getClaims().getClaimAsString(JwtClaimName.SUBJECT_IDENTIFIER));
+
+		final List<ClaimToAttributeMapping> claimMappings = appConfiguration.getOpenIdClaimMapping();
+		if ((claimMappings == null) || claimMappings.isEmpty()) {
+			for (Map.Entry<String, List<String>> entry : claims.entrySet()) {
+				profile.addAttribute(entry.getKey(), entry.getValue());
+			}
+		} else {
+			for (ClaimToAttributeMapping mapping : claimMappings) {
+				final List<String> values = claims.get(mapping.getClaim());
+				if (values != null) {
+					profile.addAttribute(mapping.getAttribute(), values);
+				}
+			}
+		}
+
+		return profile;
+	}
+
+	private Set<String> toSet(String value) {
+		if (StringUtils.isBlank(value)) {
+			return Collections.emptySet();
+		}
+
+		final Set<String> result = new HashSet<String>();
+		for (String item : StringUtils.split(value, ", ")) {
+			result.add(item);
+		}
+
+		return result;
+	}
+
+}
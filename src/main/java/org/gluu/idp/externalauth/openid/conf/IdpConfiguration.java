@@ -1,30 +1,126 @@
 package org.gluu.idp.externalauth.openid.conf;
 
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.lang.StringUtils;
 import org.gluu.oxauth.client.conf.Configuration;
+import org.gluu.persist.PersistenceEntryManager;
+import org.gluu.util.properties.FileConfiguration;
+import org.gluu.util.security.StringEncrypter;
+import org.gluu.util.security.StringEncrypter.EncryptionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * IDP configuration factory
+ * <p>
+ * Each instance is an immutable snapshot of oxidp.properties and LDAP application configuration. The current
+ * snapshot is replaced atomically by {@link IdpConfigurationReloader} when the file or revision of the LDAP entry
+ * changes.
+ * <p>
+ * The class isn't final, so tests, benchmarks and the load test can mock it instead of loading files and LDAP.
  * 
  * @author Yuriy Movchan
  * @version 0.1, 09/13/2018
  */
-public final class IdpConfiguration extends Configuration<IdpAppConfiguration, IdpLdapAppConfiguration> {
+public class IdpConfiguration extends Configuration<IdpAppConfiguration, IdpLdapAppConfiguration> {
+
+	private static final String CONFIGURATION_FILE_NAME = "oxidp.properties";
+
+	private static final List<IdpConfigurationListener> LISTENERS = new CopyOnWriteArrayList<IdpConfigurationListener>();
 
 	private final Logger logger = LoggerFactory.getLogger(IdpConfiguration.class);
 
-	private static class ConfigurationSingleton {
-		static IdpConfiguration INSTANCE = new IdpConfiguration();
-	}
+	private static final String[] REVISION_ATTRIBUTES = new String[] { "oxRevision" };
+
+	private static volatile IdpConfigurationReloader reloader;
 
+	/**
+	 * Current configuration snapshot. Callers which need consistent values should read it once per request
+	 */
 	public static IdpConfiguration instance() {
-		return ConfigurationSingleton.INSTANCE;
+		IdpConfigurationReloader current = reloader;
+		if (current == null) {
+			current = startReloader();
+		}
+
+		return current.getConfiguration();
+	}
+
+	private static synchronized IdpConfigurationReloader startReloader() {
+		if (reloader == null) {
+			reloader = IdpConfigurationReloader.start();
+		}
+
+		return reloader;
+	}
+
+	/**
+	 * Register listener which is notified from background thread when new configuration snapshot is applied
+	 */
+	public static void addListener(IdpConfigurationListener listener) {
+		LISTENERS.add(listener);
+	}
+
+	public static void removeListener(IdpConfigurationListener listener) {
+		LISTENERS.remove(listener);
+	}
+
+	/**
+	 * Stop background reload. Called when the module is destroyed, it doesn't start the reloader if it's not started yet.
+	 * Next {@link #instance()} call, e.g. after redeploy in the same class loader, loads configuration and starts it again
+	 */
+	public static synchronized void shutdown() {
+		if (reloader != null) {
+			reloader.shutdown();
+			reloader = null;
+		}
+	}
+
+	static List<IdpConfigurationListener> getListeners() {
+		return LISTENERS;
+	}
+
+	/**
+	 * Location of oxidp.properties. It's resolved the same way as in base configuration
+	 */
+	static File getConfigurationFile() {
+		String baseDir = System.getProperty("gluu.base");
+		if ((baseDir == null) && (System.getProperty("catalina.base.ignore") == null)) {
+			baseDir = System.getProperty("catalina.base");
+		}
+		if (baseDir == null) {
+			baseDir = System.getProperty("catalina.home");
+		}
+		if (baseDir == null) {
+			baseDir = System.getProperty("jboss.home.dir");
+		}
+
+		return new File(baseDir + File.separator + "conf" + File.separator + CONFIGURATION_FILE_NAME);
+	}
+
+	/**
+	 * Entry manager which uses LDAP connection settings of this snapshot. Caller has to destroy it
+	 */
+	PersistenceEntryManager openEntryManager() {
+		return createPersistenceEntryManager();
+	}
+
+	/**
+	 * Read only revision of LDAP application configuration entry
+	 */
+	long loadRevision(PersistenceEntryManager entryManager) {
+		final String configurationEntryDn = getString(getApplicationConfigurationPropertyName(), null);
+
+		return entryManager.find(IdpConfigurationRevision.class, configurationEntryDn, REVISION_ATTRIBUTES).getRevision();
 	}
 
 	@Override
 	protected String getDefaultConfigurationFileName() {
-		return "oxidp.properties";
+		return CONFIGURATION_FILE_NAME;
 	}
 
 	@Override
@@ -37,4 +133,104 @@ public final class IdpConfiguration extends Configuration<IdpAppConfiguration, I
 		return "oxidp_ConfigurationEntryDN";
 	}
 
+	/**
+	 * Get string property from oxidp.properties
+	 */
+	public String getString(String key, String defaultValue) {
+		final FileConfiguration fileConfiguration = getLdapConfiguration();
+		if (fileConfiguration == null) {
+			return defaultValue;
+		}
+
+		final String value = fileConfiguration.getString(key);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+
+		return value.trim();
+	}
+
+	public int getInt(String key, int defaultValue) {
+		final String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			logger.warn("Invalid integer value '{}' of property '{}'. Using default: {}", value, key, defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public long getLong(String key, long defaultValue) {
+		final String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			logger.warn("Invalid long value '{}' of property '{}'. Using default: {}", value, key, defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public double getDouble(String key, double defaultValue) {
+		final String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException ex) {
+			logger.warn("Invalid double value '{}' of property '{}'. Using default: {}", value, key, defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		final String value = getString(key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+
+		return Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * Application configuration of named client. Provider URL, client id and password are taken from
+	 * <code>oxidp_Client.&lt;name&gt;.ProviderUrl</code>, <code>.ClientId</code> and <code>.ClientPassword</code>, other
+	 * settings are the same as in the default one
+	 */
+	public IdpAppConfiguration getClientAppConfiguration(String name) {
+		final IdpAppConfiguration appConfiguration = (IdpAppConfiguration) SerializationUtils.clone(getAppConfiguration());
+
+		final String prefix = "oxidp_Client." + name + ".";
+		appConfiguration.setOpenIdProviderUrl(getString(prefix + "ProviderUrl", appConfiguration.getOpenIdProviderUrl()));
+		appConfiguration.setOpenIdClientId(getString(prefix + "ClientId", appConfiguration.getOpenIdClientId()));
+		appConfiguration.setOpenIdClientPassword(getString(prefix + "ClientPassword", appConfiguration.getOpenIdClientPassword()));
+
+		return appConfiguration;
+	}
+
+	/**
+	 * Decrypt value encrypted with the configuration salt. Plain values are returned as is
+	 */
+	public String decrypt(String value) {
+		if (StringUtils.isEmpty(value)) {
+			return value;
+		}
+
+		try {
+			return StringEncrypter.defaultInstance().decrypt(value, getCryptoConfigurationSalt());
+		} catch (EncryptionException ex) {
+			logger.debug("Value is not encrypted. Using it as is");
+			return value;
+		}
+	}
+
 }
@@ -0,0 +1,13 @@
+package org.gluu.idp.externalauth.openid.conf;
+
+/**
+ * Listener of configuration changes
+ */
+public interface IdpConfigurationListener {
+
+	/**
+	 * Called from background thread after new configuration snapshot became current
+	 */
+	void configurationChanged(IdpConfiguration configuration);
+
+}
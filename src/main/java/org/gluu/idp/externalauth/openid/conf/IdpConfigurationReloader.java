@@ -0,0 +1,252 @@
+package org.gluu.idp.externalauth.openid.conf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.persist.PersistenceEntryManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps current {@link IdpConfiguration} snapshot and replaces it in background
+ * <p>
+ * oxidp.properties is watched for modifications and <code>oxRevision</code> of LDAP application configuration entry is
+ * polled periodically. The whole configuration is loaded only when the file or revision changes, and new snapshot is
+ * applied only if it's loaded successfully. Readers never wait for file system or LDAP.
+ */
+public final class IdpConfigurationReloader {
+
+	private static final long WATCH_DELAY_MILLIS = 1000;
+	private static final long UNKNOWN_REVISION = Long.MIN_VALUE;
+
+	private final Logger logger = LoggerFactory.getLogger(IdpConfigurationReloader.class);
+
+	private final ScheduledExecutorService scheduler;
+	private final AtomicBoolean watchReloadPending = new AtomicBoolean();
+
+	private final LongAdder reloads;
+	private final LongAdder reloadFailures;
+
+	private volatile IdpConfiguration configuration;
+
+	private volatile WatchService watchService;
+	private volatile Thread watchThread;
+
+	// Accessed from scheduler thread only
+	private PersistenceEntryManager entryManager;
+	private long revision = UNKNOWN_REVISION;
+	private long fileModified;
+
+	private IdpConfigurationReloader(IdpConfiguration configuration) {
+		this.configuration = configuration;
+		this.fileModified = IdpConfiguration.getConfigurationFile().lastModified();
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "oxidp-configuration-reload");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		this.reloads = IdpMetrics.instance().counter("configuration.reload");
+		this.reloadFailures = IdpMetrics.instance().counter("configuration.reload.failure");
+	}
+
+	/**
+	 * Load initial configuration and start background reload
+	 */
+	static IdpConfigurationReloader start() {
+		final IdpConfigurationReloader reloader = new IdpConfigurationReloader(new IdpConfiguration());
+
+		final long interval = reloader.configuration.getLong("oxidp_ConfigurationReloadInterval", 60);
+		if (interval > 0) {
+			// Revision of the loaded configuration is read in background, so startup doesn't wait for it
+			reloader.scheduler.execute(() -> reloader.revision = reloader.readRevision());
+			reloader.scheduler.scheduleWithFixedDelay(reloader::poll, interval, interval, TimeUnit.SECONDS);
+		}
+		if (reloader.configuration.getBoolean("oxidp_ConfigurationWatchFile", true)) {
+			reloader.watch(IdpConfiguration.getConfigurationFile());
+		}
+
+		return reloader;
+	}
+
+	public IdpConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	/**
+	 * Stop periodic reload and file watch. Last loaded configuration stays available
+	 */
+	public void shutdown() {
+		scheduler.shutdownNow();
+
+		final WatchService watchService = this.watchService;
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException ex) {
+				logger.debug("Failed to close configuration file watcher", ex);
+			}
+		}
+
+		final Thread watchThread = this.watchThread;
+		if (watchThread != null) {
+			watchThread.interrupt();
+		}
+
+		try {
+			if (scheduler.awaitTermination(WATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS)) {
+				closeEntryManager();
+			} else {
+				logger.warn("Configuration reload is not stopped in {} ms", WATCH_DELAY_MILLIS);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		logger.debug("Configuration reload is stopped");
+	}
+
+	private void poll() {
+		if (IdpConfiguration.getConfigurationFile().lastModified() != fileModified) {
+			reload();
+			return;
+		}
+
+		final long currentRevision = readRevision();
+		if ((currentRevision == UNKNOWN_REVISION) || (currentRevision == revision)) {
+			logger.trace("Configuration is not changed");
+			return;
+		}
+
+		reload();
+	}
+
+	private void reload() {
+		// File and revision are read before the configuration, so changes made while it's loading are picked up by next poll
+		final long loadedFileModified = IdpConfiguration.getConfigurationFile().lastModified();
+		final long loadedRevision = readRevision();
+
+		final IdpConfiguration loaded;
+		try {
+			loaded = new IdpConfiguration();
+		} catch (RuntimeException ex) {
+			reloadFailures.increment();
+			logger.error("Failed to reload configuration. Keeping current one", ex);
+			return;
+		}
+
+		if ((loaded.getLdapConfiguration() == null) || (loaded.getAppConfiguration() == null)) {
+			reloadFailures.increment();
+			logger.error("Failed to reload configuration from oxidp.properties or LDAP. Keeping current one");
+			return;
+		}
+
+		this.configuration = loaded;
+		this.fileModified = loadedFileModified;
+		this.revision = loadedRevision;
+		// LDAP connection settings may be changed in the file
+		closeEntryManager();
+
+		reloads.increment();
+		logger.info("Applied new configuration");
+
+		for (IdpConfigurationListener listener : IdpConfiguration.getListeners()) {
+			try {
+				listener.configurationChanged(loaded);
+			} catch (RuntimeException ex) {
+				logger.error("Failed to apply new configuration in " + listener, ex);
+			}
+		}
+	}
+
+	/**
+	 * @return revision of LDAP application configuration entry, or {@link #UNKNOWN_REVISION} if it can't be read
+	 */
+	private long readRevision() {
+		try {
+			if (entryManager == null) {
+				entryManager = configuration.openEntryManager();
+			}
+
+			return configuration.loadRevision(entryManager);
+		} catch (RuntimeException ex) {
+			reloadFailures.increment();
+			logger.error("Failed to read configuration revision from LDAP", ex);
+			closeEntryManager();
+			return UNKNOWN_REVISION;
+		}
+	}
+
+	private void closeEntryManager() {
+		if (entryManager != null) {
+			try {
+				entryManager.destroy();
+			} catch (RuntimeException ex) {
+				logger.debug("Failed to close configuration entry manager", ex);
+			}
+			entryManager = null;
+		}
+	}
+
+	private void watch(File file) {
+		final Path directory = file.getAbsoluteFile().getParentFile().toPath();
+		final Path fileName = file.toPath().getFileName();
+
+		final WatchService watchService;
+		try {
+			watchService = directory.getFileSystem().newWatchService();
+			directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException ex) {
+			logger.warn("Failed to watch configuration file '{}'. Changes are picked up by periodic reload only", file, ex);
+			return;
+		}
+		this.watchService = watchService;
+
+		final Thread thread = new Thread(() -> {
+			try {
+				while (true) {
+					final WatchKey key = watchService.take();
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (fileName.equals(event.context())) {
+							scheduleWatchReload();
+						}
+					}
+					key.reset();
+				}
+			} catch (InterruptedException | ClosedWatchServiceException ex) {
+				logger.debug("Configuration file watcher is stopped");
+			}
+		}, "oxidp-configuration-watch");
+		thread.setDaemon(true);
+		this.watchThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Editors produce several events per save, so they are coalesced into one reload
+	 */
+	private void scheduleWatchReload() {
+		if (scheduler.isShutdown()) {
+			return;
+		}
+		if (watchReloadPending.compareAndSet(false, true)) {
+			scheduler.schedule(() -> {
+				watchReloadPending.set(false);
+				reload();
+			}, WATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
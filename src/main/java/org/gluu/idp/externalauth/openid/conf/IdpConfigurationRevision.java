@@ -0,0 +1,35 @@
+package org.gluu.idp.externalauth.openid.conf;
+
+import org.gluu.persist.annotation.AttributeName;
+import org.gluu.persist.annotation.DN;
+import org.gluu.persist.annotation.DataEntry;
+
+/**
+ * Revision of LDAP application configuration entry. It's read instead of the whole entry to check for changes
+ */
+@DataEntry
+public class IdpConfigurationRevision {
+
+	@DN
+	private String dn;
+
+	@AttributeName(name = "oxRevision")
+	private long revision;
+
+	public String getDn() {
+		return dn;
+	}
+
+	public void setDn(String dn) {
+		this.dn = dn;
+	}
+
+	public long getRevision() {
+		return revision;
+	}
+
+	public void setRevision(long revision) {
+		this.revision = revision;
+	}
+
+}
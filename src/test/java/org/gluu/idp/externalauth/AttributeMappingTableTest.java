@@ -0,0 +1,71 @@
+package org.gluu.idp.externalauth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.authn.principal.IdPAttributePrincipal;
+
+public class AttributeMappingTableTest {
+
+    private final AttributeMappingTable mappingTable = new AttributeMappingTable();
+
+    @Test
+    public void mapsDistinctNonEmptyValues() {
+        final Map<String, List<String>> values = mappingTable.produceAttributeValues(profileAttributes());
+
+        assertEquals(Arrays.asList("uid", "memberOf"), Arrays.asList(values.keySet().toArray()));
+        assertEquals(Collections.singletonList("user1"), values.get("uid"));
+        assertEquals(Arrays.asList("group1", "group2"), values.get("memberOf"));
+        assertFalse(values.containsKey("mail"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void sharedValuesAreUnmodifiable() {
+        mappingTable.produceAttributeValues(profileAttributes()).get("memberOf").add("admins");
+    }
+
+    @Test
+    public void buildsNewPrincipalsForEveryLogin() {
+        final Map<String, List<String>> values = mappingTable.produceAttributeValues(profileAttributes());
+
+        final List<IdPAttributePrincipal> first = mappingTable.toIdpAttributePrincipals(values);
+        final List<IdPAttributePrincipal> second = mappingTable.toIdpAttributePrincipals(values);
+        assertEquals(2, first.size());
+        assertNotSame(first.get(1), second.get(1));
+        assertNotSame(first.get(1).getAttribute(), second.get(1).getAttribute());
+
+        first.get(1).getAttribute().setValues(Collections.singletonList(new StringAttributeValue("admins")));
+        assertEquals(2, second.get(1).getAttribute().getValues().size());
+        assertEquals(Arrays.asList("group1", "group2"), values.get("memberOf"));
+    }
+
+    @Test
+    public void producesPrincipalsFromProfileAttributes() {
+        final List<IdPAttributePrincipal> principals = mappingTable.produceIdpAttributePrincipals(profileAttributes());
+
+        assertEquals(2, principals.size());
+        assertEquals("uid", principals.get(0).getAttribute().getId());
+        assertTrue(principals.get(0).getAttribute().getValues().contains(new StringAttributeValue("user1")));
+    }
+
+    private Map<String, Object> profileAttributes() {
+        final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("uid", "user1");
+        attributes.put("memberOf", Arrays.asList("group1", "group1", "", "group2"));
+        attributes.put("mail", Collections.emptyList());
+
+        return attributes;
+    }
+
+}
@@ -0,0 +1,91 @@
+package org.gluu.idp.externalauth.audit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+public class ThrottledErrorLoggerTest {
+
+    private static final String MESSAGE = "Callback failed";
+
+    private Logger logger;
+
+    @Before
+    public void setUp() {
+        logger = mock(Logger.class);
+    }
+
+    @Test
+    public void logsStackTraceOncePerInterval() {
+        final ThrottledErrorLogger errorLogger = new ThrottledErrorLogger(60000);
+        final RuntimeException ex = new RuntimeException("timeout");
+
+        errorLogger.error(logger, MESSAGE, ex);
+        errorLogger.error(logger, MESSAGE, ex);
+        errorLogger.error(logger, MESSAGE, ex);
+
+        verify(logger).error(MESSAGE, ex);
+        verify(logger, times(2)).error("{}: {}", MESSAGE, String.valueOf(ex));
+        verifyNoMoreInteractions(logger);
+    }
+
+    @Test
+    public void logsStackTraceAgainAfterInterval() throws InterruptedException {
+        final ThrottledErrorLogger errorLogger = new ThrottledErrorLogger(50);
+        final RuntimeException ex = new RuntimeException("timeout");
+
+        errorLogger.error(logger, MESSAGE, ex);
+        errorLogger.error(logger, MESSAGE, ex);
+        Thread.sleep(100);
+        errorLogger.error(logger, MESSAGE, ex);
+
+        verify(logger).error(MESSAGE, ex);
+        verify(logger).error("{}: {}", MESSAGE, String.valueOf(ex));
+        verify(logger).error(MESSAGE + " (stack trace omitted for 1 identical failures)", ex);
+        verifyNoMoreInteractions(logger);
+    }
+
+    @Test
+    public void logsStackTraceOfEachDistinctFailure() {
+        final ThrottledErrorLogger errorLogger = new ThrottledErrorLogger(60000);
+        final RuntimeException ex1 = new RuntimeException("timeout");
+        final IllegalStateException ex2 = new IllegalStateException("timeout");
+
+        errorLogger.error(logger, MESSAGE, ex1);
+        errorLogger.error(logger, MESSAGE, ex2);
+
+        verify(logger).error(MESSAGE, ex1);
+        verify(logger).error(MESSAGE, ex2);
+        verifyNoMoreInteractions(logger);
+    }
+
+    @Test
+    public void logsEveryStackTraceWhenDisabled() {
+        final ThrottledErrorLogger errorLogger = new ThrottledErrorLogger(0);
+        final RuntimeException ex = new RuntimeException("timeout");
+
+        errorLogger.error(logger, MESSAGE, ex);
+        errorLogger.error(logger, MESSAGE, ex);
+
+        verify(logger, times(2)).error(MESSAGE, ex);
+        verifyNoMoreInteractions(logger);
+    }
+
+    @Test
+    public void throttlesFailureWithoutException() {
+        final ThrottledErrorLogger errorLogger = new ThrottledErrorLogger(60000);
+
+        errorLogger.error(logger, MESSAGE, null);
+        errorLogger.error(logger, MESSAGE, null);
+
+        verify(logger).error(MESSAGE, (Throwable) null);
+        verify(logger).error("{}: {}", MESSAGE, "null");
+        verifyNoMoreInteractions(logger);
+    }
+
+}
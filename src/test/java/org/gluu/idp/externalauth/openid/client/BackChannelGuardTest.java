@@ -0,0 +1,109 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.gluu.util.properties.FileConfiguration;
+import org.junit.Test;
+
+public class BackChannelGuardTest {
+
+	@Test
+	public void rejectsCallsOverConcurrencyLimit() {
+		final BackChannelGuard guard = new BackChannelGuard(newConfiguration("2", "5", "30"), "test.guard.bulkhead");
+
+		final BackChannelGuard.Permit first = guard.acquire();
+		final BackChannelGuard.Permit second = guard.acquire();
+		assertNotNull(first);
+		assertNotNull(second);
+		assertNull(guard.acquire());
+		assertEquals(2, guard.getInFlight());
+
+		guard.release(first, true);
+		assertNotNull(guard.acquire());
+		assertEquals(BackChannelGuard.State.CLOSED, guard.getState());
+	}
+
+	@Test
+	public void opensCircuitAfterConsecutiveFailures() {
+		final BackChannelGuard guard = new BackChannelGuard(newConfiguration("0", "3", "30"), "test.guard.open");
+
+		guard.release(guard.acquire(), false);
+		guard.release(guard.acquire(), false);
+		guard.release(guard.acquire(), true);
+		guard.release(guard.acquire(), false);
+		guard.release(guard.acquire(), false);
+		assertEquals(BackChannelGuard.State.CLOSED, guard.getState());
+
+		guard.release(guard.acquire(), false);
+		assertEquals(BackChannelGuard.State.OPEN, guard.getState());
+		assertNull(guard.acquire());
+		assertEquals(0, guard.getInFlight());
+	}
+
+	@Test
+	public void successfulProbeClosesCircuit() {
+		final BackChannelGuard guard = new BackChannelGuard(newConfiguration("0", "1", "0"), "test.guard.probe");
+
+		guard.release(guard.acquire(), false);
+		assertEquals(BackChannelGuard.State.OPEN, guard.getState());
+
+		final BackChannelGuard.Permit probe = guard.acquire();
+		assertNotNull(probe);
+		assertEquals(BackChannelGuard.State.HALF_OPEN, guard.getState());
+		assertNull("Only one probe is allowed", guard.acquire());
+
+		guard.release(probe, true);
+		assertEquals(BackChannelGuard.State.CLOSED, guard.getState());
+		assertNotNull(guard.acquire());
+	}
+
+	@Test
+	public void failedProbeOpensCircuitAgain() {
+		final BackChannelGuard guard = new BackChannelGuard(newConfiguration("0", "1", "0"), "test.guard.failedProbe");
+
+		guard.release(guard.acquire(), false);
+		final BackChannelGuard.Permit probe = guard.acquire();
+		guard.release(probe, false);
+
+		assertEquals(BackChannelGuard.State.OPEN, guard.getState());
+	}
+
+	@Test
+	public void probeRejectedByBulkheadIsLeftToNextCall() {
+		final BackChannelGuard guard = new BackChannelGuard(newConfiguration("2", "1", "0"), "test.guard.probeBulkhead");
+
+		final BackChannelGuard.Permit slowCall = guard.acquire();
+		guard.release(guard.acquire(), false);
+		assertEquals(BackChannelGuard.State.OPEN, guard.getState());
+
+		// Limit lowered at runtime, so the only call in flight fills the bulkhead
+		guard.configure(newConfiguration("1", "1", "0"));
+		assertNull(guard.acquire());
+		assertEquals(BackChannelGuard.State.OPEN, guard.getState());
+
+		guard.release(slowCall, true);
+		assertNotNull(guard.acquire());
+		assertEquals(BackChannelGuard.State.HALF_OPEN, guard.getState());
+	}
+
+	private static IdpConfiguration newConfiguration(String maxConcurrent, String failureThreshold, String openIntervalSeconds) {
+		final FileConfiguration fileConfiguration = mock(FileConfiguration.class);
+		when(fileConfiguration.getString("oxidp_BackChannelMaxConcurrent")).thenReturn(maxConcurrent);
+		when(fileConfiguration.getString("oxidp_CircuitBreakerFailureThreshold")).thenReturn(failureThreshold);
+		when(fileConfiguration.getString("oxidp_CircuitBreakerOpenInterval")).thenReturn(openIntervalSeconds);
+
+		// Values are read through the real accessors from the given oxidp_* properties
+		final IdpConfiguration configuration = mock(IdpConfiguration.class, CALLS_REAL_METHODS);
+		doReturn(fileConfiguration).when(configuration).getLdapConfiguration();
+
+		return configuration;
+	}
+
+}
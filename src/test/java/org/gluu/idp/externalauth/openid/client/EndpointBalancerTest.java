@@ -0,0 +1,133 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EndpointBalancerTest {
+
+	private static final String REPLICAS = "https://oxauth1.example.org:8443, https://oxauth2.example.org";
+
+	private static final long FAST_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	@Test
+	public void resolvesEndpointToReplica() {
+		final EndpointBalancer balancer = new EndpointBalancer("test.balancer", REPLICAS, 0.5, 0, 30000, 3);
+		final List<EndpointBalancer.Replica> replicas = balancer.getReplicas();
+
+		assertEquals(2, replicas.size());
+		assertEquals("https://oxauth1.example.org:8443/oxauth/restv1/token?a=1",
+				replicas.get(0).resolve("https://op.example.org/oxauth/restv1/token?a=1"));
+		assertEquals("https://oxauth2.example.org/oxauth/restv1/userinfo", replicas.get(1).resolve("https://op.example.org/oxauth/restv1/userinfo"));
+	}
+
+	@Test
+	public void ignoresInvalidReplicaUrls() {
+		assertEquals(1, new EndpointBalancer("test.balancer", "https://oxauth1.example.org, oxauth2, https://oxauth%zz.example.org", 0.5, 0, 30000, 3)
+				.getReplicas().size());
+		assertTrue(new EndpointBalancer("test.balancer", "", 0.5, 0, 30000, 3).isEmpty());
+	}
+
+	@Test
+	public void prefersReplicaWithFewerRequestsInFlight() {
+		final EndpointBalancer balancer = new EndpointBalancer("test.balancer", REPLICAS, 0.5, 0, 30000, 3);
+
+		final EndpointBalancer.Replica first = balancer.select();
+		final EndpointBalancer.Replica second = balancer.select();
+		assertNotSame(first, second);
+
+		balancer.record(first, FAST_NANOS, true);
+		balancer.record(second, FAST_NANOS, true);
+	}
+
+	@Test
+	public void ejectsFailingReplica() {
+		final EndpointBalancer balancer = new EndpointBalancer("test.balancer", REPLICAS, 0.5, 0, 30000, 3);
+
+		// Error rate exceeds 0.5 after 4 failures
+		for (int i = 0; i < 4; i++) {
+			recordRound(balancer, FAST_NANOS, false);
+		}
+
+		assertOnlySelected(balancer, balancer.getReplicas().get(1));
+	}
+
+	@Test
+	public void ejectsSlowReplica() {
+		final EndpointBalancer balancer = new EndpointBalancer("test.balancer", REPLICAS, 0.5, 5, 30000, 3);
+
+		for (int i = 0; i < 3; i++) {
+			recordRound(balancer, SLOW_NANOS, true);
+		}
+
+		assertOnlySelected(balancer, balancer.getReplicas().get(1));
+	}
+
+	@Test
+	public void ejectsAtMostHalfOfReplicas() {
+		final EndpointBalancer balancer = new EndpointBalancer("test.balancer", REPLICAS, 0.5, 0, 30000, 3);
+		final EndpointBalancer.Replica remaining = balancer.getReplicas().get(1);
+
+		for (int i = 0; i < 4; i++) {
+			recordRound(balancer, FAST_NANOS, false);
+		}
+		for (int i = 0; i < 10; i++) {
+			final EndpointBalancer.Replica replica = balancer.select();
+			assertSame(remaining, replica);
+			balancer.record(replica, FAST_NANOS, false);
+		}
+
+		// Replica ejected first would be chosen if both were ejected
+		assertOnlySelected(balancer, remaining);
+	}
+
+	@Test
+	public void returnsEjectedReplicaAfterInterval() throws InterruptedException {
+		final EndpointBalancer balancer = new EndpointBalancer("test.balancer", REPLICAS, 0.5, 0, 50, 3);
+
+		for (int i = 0; i < 4; i++) {
+			recordRound(balancer, FAST_NANOS, false);
+		}
+		Thread.sleep(100);
+
+		// Returned replica has clean statistics, so it wins over the one with recorded latency
+		final EndpointBalancer.Replica replica = balancer.select();
+		assertSame(balancer.getReplicas().get(0), replica);
+		balancer.record(replica, FAST_NANOS, true);
+	}
+
+	/**
+	 * Select replicas until the first one is selected, so every recorded result belongs to a selection. Request to the
+	 * first replica gets the given result, requests to the other one succeed
+	 */
+	private static void recordRound(EndpointBalancer balancer, long firstLatencyNanos, boolean firstSuccess) {
+		final EndpointBalancer.Replica first = balancer.getReplicas().get(0);
+		final List<EndpointBalancer.Replica> others = new ArrayList<EndpointBalancer.Replica>();
+		EndpointBalancer.Replica replica;
+		while ((replica = balancer.select()) != first) {
+			others.add(replica);
+		}
+
+		balancer.record(first, firstLatencyNanos, firstSuccess);
+		for (EndpointBalancer.Replica other : others) {
+			balancer.record(other, FAST_NANOS, true);
+		}
+	}
+
+	private static void assertOnlySelected(EndpointBalancer balancer, EndpointBalancer.Replica expected) {
+		for (int i = 0; i < 100; i++) {
+			final EndpointBalancer.Replica replica = balancer.select();
+			assertSame(expected, replica);
+			balancer.record(replica, FAST_NANOS, true);
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.gluu.oxauth.client.OpenIdConfigurationResponse;
+import org.gluu.oxauth.model.jwt.Jwt;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class IdTokenValidatorTest {
+
+	private static final String ISSUER = "https://op.example.org";
+	private static final String CLIENT_ID = "client-1";
+	private static final String CLIENT_SECRET = "client-secret-which-is-long-enough-for-hs512-signatures-0123456789";
+	private static final String KEY_ID = "key-1";
+	private static final String NONCE = "nonce-1";
+
+	private static KeyPair keyPair;
+	private static KeyPair otherKeyPair;
+
+	private IdTokenValidator validator;
+
+	@BeforeClass
+	public static void generateKeys() throws Exception {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		keyPair = generator.generateKeyPair();
+		otherKeyPair = generator.generateKeyPair();
+	}
+
+	@Before
+	public void setUp() {
+		final OpenIdConfigurationResponse openIdConfiguration = mock(OpenIdConfigurationResponse.class);
+		when(openIdConfiguration.getIssuer()).thenReturn(ISSUER);
+
+		final OpenIdMetadataCache metadataCache = mock(OpenIdMetadataCache.class);
+		when(metadataCache.getOpenIdConfiguration()).thenReturn(openIdConfiguration);
+		when(metadataCache.getPublicKey(KEY_ID)).thenReturn(keyPair.getPublic());
+
+		validator = new IdTokenValidator(metadataCache, CLIENT_ID, CLIENT_SECRET, 60000);
+	}
+
+	@Test
+	public void acceptsValidRsaToken() throws Exception {
+		assertNotNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims()), NONCE));
+	}
+
+	@Test
+	public void rejectsTokenSignedWithOtherKey() throws Exception {
+		assertNull(validator.validate(signRsa(KEY_ID, otherKeyPair.getPrivate(), claims()), NONCE));
+	}
+
+	@Test
+	public void rejectsTamperedPayload() throws Exception {
+		final String token = signRsa(KEY_ID, keyPair.getPrivate(), claims());
+		final String[] parts = token.split("\\.");
+		final String tampered = parts[0] + "." + encode(claims().put("sub", "admin")) + "." + parts[2];
+
+		assertNull(validator.validate(tampered, NONCE));
+	}
+
+	@Test
+	public void rejectsUnknownKeyId() throws Exception {
+		assertNull(validator.validate(signRsa("unknown", keyPair.getPrivate(), claims()), NONCE));
+	}
+
+	@Test
+	public void rejectsUnsignedToken() throws Exception {
+		final String token = encode(new JSONObject().put("alg", "none")) + "." + encode(claims()) + ".";
+
+		assertNull(validator.validate(token, NONCE));
+	}
+
+	@Test
+	public void acceptsTokenSignedWithClientSecret() throws Exception {
+		assertNotNull(validator.validate(signHmac("HS256", "HmacSHA256", CLIENT_SECRET, claims()), NONCE));
+		assertNotNull(validator.validate(signHmac("HS512", "HmacSHA512", CLIENT_SECRET, claims()), NONCE));
+	}
+
+	@Test
+	public void rejectsTokenSignedWithOtherSecret() throws Exception {
+		assertNull(validator.validate(signHmac("HS256", "HmacSHA256", "other-secret", claims()), NONCE));
+	}
+
+	@Test
+	public void rejectsHmacTokenWithoutClientSecret() throws Exception {
+		final IdTokenValidator publicClientValidator = new IdTokenValidator(mock(OpenIdMetadataCache.class), CLIENT_ID, null, 60000);
+
+		assertNull(publicClientValidator.validate(signHmac("HS256", "HmacSHA256", "", claims()), NONCE));
+	}
+
+	@Test
+	public void rejectsOtherIssuer() throws Exception {
+		assertNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims().put("iss", "https://evil.example.org")), NONCE));
+	}
+
+	@Test
+	public void rejectsOtherAudience() throws Exception {
+		assertNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims().put("aud", "client-2")), NONCE));
+	}
+
+	@Test
+	public void checksAuthorizedPartyOfSeveralAudiences() throws Exception {
+		final JSONObject claims = claims().put("aud", Arrays.asList(CLIENT_ID, "client-2"));
+		assertNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims), NONCE));
+		assertNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims.put("azp", "client-2")), NONCE));
+		assertNotNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims.put("azp", CLIENT_ID)), NONCE));
+	}
+
+	@Test
+	public void rejectsExpiredToken() throws Exception {
+		final long now = System.currentTimeMillis() / 1000;
+		final JSONObject claims = claims().put("iat", now - 600).put("exp", now - 300);
+
+		assertNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims), NONCE));
+	}
+
+	@Test
+	public void acceptsExpirationWithinClockSkew() throws Exception {
+		final long now = System.currentTimeMillis() / 1000;
+		final JSONObject claims = claims().put("iat", now - 600).put("exp", now - 30);
+
+		assertNotNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims), NONCE));
+	}
+
+	@Test
+	public void rejectsTokenIssuedInFuture() throws Exception {
+		final long now = System.currentTimeMillis() / 1000;
+		assertNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims().put("iat", now + 600)), NONCE));
+
+		final JSONObject claims = claims();
+		claims.remove("iat");
+		assertNull(validator.validate(signRsa(KEY_ID, keyPair.getPrivate(), claims), NONCE));
+	}
+
+	@Test
+	public void rejectsOtherNonce() throws Exception {
+		final String token = signRsa(KEY_ID, keyPair.getPrivate(), claims());
+
+		assertNull(validator.validate(token, "nonce-2"));
+		assertNull(validator.validate(token, null));
+	}
+
+	@Test
+	public void acceptsLogoutTokenOnce() throws Exception {
+		final JSONObject claims = logoutClaims();
+		final String token = signRsa(KEY_ID, keyPair.getPrivate(), claims);
+		final ReplayGuard replayGuard = new InMemoryReplayGuard();
+
+		assertTrue(validator.isValidLogoutToken(token, Jwt.parse(token), 300000, replayGuard));
+		assertFalse(validator.isValidLogoutToken(token, Jwt.parse(token), 300000, replayGuard));
+	}
+
+	@Test
+	public void rejectsLogoutTokenWithNonce() throws Exception {
+		final String token = signRsa(KEY_ID, keyPair.getPrivate(), logoutClaims().put("nonce", NONCE));
+
+		assertFalse(validator.isValidLogoutToken(token, Jwt.parse(token), 300000, new InMemoryReplayGuard()));
+	}
+
+	private JSONObject claims() {
+		final long now = System.currentTimeMillis() / 1000;
+
+		return new JSONObject().put("iss", ISSUER).put("aud", CLIENT_ID).put("sub", "user-1").put("nonce", NONCE).put("iat", now)
+				.put("exp", now + 300);
+	}
+
+	private JSONObject logoutClaims() {
+		final long now = System.currentTimeMillis() / 1000;
+		final JSONObject events = new JSONObject().put("http://schemas.openid.net/event/backchannel-logout", new JSONObject());
+
+		return new JSONObject().put("iss", ISSUER).put("aud", CLIENT_ID).put("sub", "user-1").put("sid", "sid-1").put("iat", now)
+				.put("jti", UUID.randomUUID().toString()).put("events", events);
+	}
+
+	private String signRsa(String keyId, PrivateKey privateKey, JSONObject claims) throws Exception {
+		final String signingInput = encode(new JSONObject().put("alg", "RS256").put("kid", keyId)) + "." + encode(claims);
+
+		final Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(privateKey);
+		signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+
+		return signingInput + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(signature.sign());
+	}
+
+	private String signHmac(String algorithm, String jcaAlgorithm, String secret, JSONObject claims) throws Exception {
+		final String signingInput = encode(new JSONObject().put("alg", algorithm)) + "." + encode(claims);
+
+		final Mac mac = Mac.getInstance(jcaAlgorithm);
+		mac.init(new SecretKeySpec(secret.isEmpty() ? new byte[1] : secret.getBytes(StandardCharsets.UTF_8), jcaAlgorithm));
+
+		return signingInput + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(signingInput.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private String encode(JSONObject json) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,249 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.gluu.context.WebContext;
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.gluu.idp.externalauth.openid.conf.IdpAppConfiguration;
+import org.gluu.idp.externalauth.openid.conf.IdpConfiguration;
+import org.gluu.oxauth.client.TokenResponse;
+import org.gluu.oxauth.client.UserInfoResponse;
+import org.gluu.oxauth.client.auth.principal.OpenIdCredentials;
+import org.gluu.oxauth.client.auth.user.UserProfile;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class IdpAuthClientCoalescingTest {
+
+	private static final String CLIENT_ID = "client-1";
+	private static final String CLIENT_SECRET = "client-secret-which-is-long-enough-for-hs256-signatures";
+	private static final String CODE = "code-1";
+	private static final String STATE = "state-1";
+	private static final String NONCE = "nonce-1";
+	private static final String ACCESS_TOKEN = "access-token-1";
+
+	private static final int CALLBACKS = 8;
+
+	private final LongAdder coalescedCallbacks = IdpMetrics.instance().counter("openid.callback.coalesced");
+	private final LongAdder coalescedUserInfos = IdpMetrics.instance().counter("openid.userInfo.coalesced");
+
+	private HttpServer openIdProvider;
+	private String issuer;
+	private StubNetworkClient client;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws IOException {
+		// Discovery is served locally, token and user info requests are answered by the client stub
+		openIdProvider = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		issuer = "http://" + openIdProvider.getAddress().getHostString() + ":" + openIdProvider.getAddress().getPort();
+		openIdProvider.createContext("/.well-known/openid-configuration", exchange -> writeJson(exchange, new JSONObject()
+				.put("issuer", issuer).put("token_endpoint", issuer + "/token").put("userinfo_endpoint", issuer + "/userinfo")
+				.put("jwks_uri", issuer + "/jwks")));
+		openIdProvider.createContext("/jwks", exchange -> writeJson(exchange, new JSONObject().put("keys", new JSONArray())));
+		openIdProvider.start();
+
+		final IdpAppConfiguration appConfiguration = new IdpAppConfiguration();
+		appConfiguration.setOpenIdProviderUrl(issuer);
+		appConfiguration.setOpenIdClientId(CLIENT_ID);
+		appConfiguration.setOpenIdClientPassword(CLIENT_SECRET);
+		appConfiguration.setOpenIdRedirectUrl("https://idp.example.org/idp/Authn/oxAuth");
+
+		// No oxidp.properties, so every tuning property has its default
+		final IdpConfiguration configuration = mock(IdpConfiguration.class, CALLS_REAL_METHODS);
+		doReturn(null).when(configuration).getLdapConfiguration();
+		doReturn(appConfiguration).when(configuration).getAppConfiguration();
+		doAnswer(returnsFirstArg()).when(configuration).decrypt(anyString());
+
+		client = new StubNetworkClient(configuration);
+		client.preloadMetadata();
+		executor = Executors.newFixedThreadPool(CALLBACKS);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		client.destroy();
+		openIdProvider.stop(0);
+	}
+
+	@Test
+	public void duplicatedCallbacksShareTokenRequestAndPopulateEverySession() throws Exception {
+		client.expectedCoalescedCallbacks = coalescedCallbacks.sum() + CALLBACKS - 1;
+		client.expectedCoalescedUserInfos = coalescedUserInfos.sum() + CALLBACKS - 1;
+
+		final List<Map<String, Object>> sessions = new ArrayList<Map<String, Object>>();
+		final List<Future<UserProfile>> results = new ArrayList<Future<UserProfile>>();
+		final CountDownLatch start = new CountDownLatch(1);
+		for (int i = 0; i < CALLBACKS; i++) {
+			final Map<String, Object> session = new ConcurrentHashMap<String, Object>();
+			final WebContext context = newContext(session);
+			client.setAttribute(context, "#nonce_parameter", NONCE);
+			sessions.add(session);
+
+			results.add(executor.submit(new Callable<UserProfile>() {
+
+				@Override
+				public UserProfile call() throws Exception {
+					start.await();
+					return client.getUserProfile(new OpenIdCredentials(CODE), context, null);
+				}
+			}));
+		}
+		start.countDown();
+
+		for (final Future<UserProfile> result : results) {
+			final UserProfile userProfile = result.get(30, TimeUnit.SECONDS);
+			assertNotNull(userProfile);
+			assertEquals("user-1", userProfile.getId());
+		}
+
+		assertEquals(1, client.tokenRequests.get());
+		assertEquals(1, client.userInfoRequests.get());
+		for (final Map<String, Object> session : sessions) {
+			assertTrue("Logout hint is not stored in session " + session.keySet(), session.containsValue(client.idToken));
+		}
+	}
+
+	private WebContext newContext(final Map<String, Object> session) {
+		final WebContext context = mock(WebContext.class);
+		when(context.getRequestParameter("code")).thenReturn(CODE);
+		when(context.getRequestParameter("state")).thenReturn(STATE);
+		when(context.getSessionAttribute(anyString())).thenAnswer(invocation -> session.get(invocation.getArguments()[0]));
+		doAnswer(invocation -> {
+			final String name = (String) invocation.getArguments()[0];
+			final Object value = invocation.getArguments()[1];
+			if (value == null) {
+				session.remove(name);
+			} else {
+				session.put(name, value);
+			}
+			return null;
+		}).when(context).setSessionAttribute(anyString(), any());
+
+		return context;
+	}
+
+	private String newIdToken() throws Exception {
+		final long now = System.currentTimeMillis() / 1000;
+		final JSONObject claims = new JSONObject().put("iss", issuer).put("aud", CLIENT_ID).put("sub", "user-1").put("nonce", NONCE)
+				.put("iat", now).put("exp", now + 300);
+		final String signingInput = encode(new JSONObject().put("alg", "HS256")) + "." + encode(claims);
+
+		final Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(CLIENT_SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+
+		return signingInput + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(signingInput.getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	private static String encode(JSONObject json) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeJson(HttpExchange exchange, JSONObject json) throws IOException {
+		final byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Client whose token and user info requests are answered locally. They wait until all duplicates joined them
+	 */
+	private final class StubNetworkClient extends IdpAuthClient {
+
+		private final AtomicInteger tokenRequests = new AtomicInteger();
+		private final AtomicInteger userInfoRequests = new AtomicInteger();
+		private final String idToken;
+
+		private volatile long expectedCoalescedCallbacks;
+		private volatile long expectedCoalescedUserInfos;
+
+		StubNetworkClient(IdpConfiguration configuration) {
+			super(configuration);
+			try {
+				this.idToken = newIdToken();
+			} catch (Exception ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		@Override
+		TokenResponse execTokenRequest(String tokenEndpoint, String code, String redirectUri, String clientId, String clientSecret) {
+			tokenRequests.incrementAndGet();
+			awaitCount(coalescedCallbacks, expectedCoalescedCallbacks);
+
+			final TokenResponse tokenResponse = mock(TokenResponse.class);
+			when(tokenResponse.getStatus()).thenReturn(200);
+			when(tokenResponse.getIdToken()).thenReturn(idToken);
+			when(tokenResponse.getAccessToken()).thenReturn(ACCESS_TOKEN);
+
+			return tokenResponse;
+		}
+
+		@Override
+		UserInfoResponse execUserInfoRequest(String userInfoEndpoint, String accessToken) {
+			userInfoRequests.incrementAndGet();
+			awaitCount(coalescedUserInfos, expectedCoalescedUserInfos);
+
+			final Map<String, List<String>> claims = new HashMap<String, List<String>>();
+			claims.put("mail", Collections.singletonList("user1@example.org"));
+
+			final UserInfoResponse userInfoResponse = mock(UserInfoResponse.class);
+			when(userInfoResponse.getStatus()).thenReturn(200);
+			when(userInfoResponse.getClaims()).thenReturn(claims);
+
+			return userInfoResponse;
+		}
+
+		private void awaitCount(LongAdder counter, long expected) {
+			final long deadline = System.currentTimeMillis() + 10000;
+			while ((counter.sum() < expected) && (System.currentTimeMillis() < deadline)) {
+				Thread.yield();
+			}
+		}
+	}
+
+}
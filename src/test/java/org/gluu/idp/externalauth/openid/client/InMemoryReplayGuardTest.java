@@ -0,0 +1,84 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.junit.Test;
+
+public class InMemoryReplayGuardTest {
+
+	@Test
+	public void acceptsValueOnce() {
+		final InMemoryReplayGuard replayGuard = new InMemoryReplayGuard();
+		final long expirationTime = System.currentTimeMillis() + 60000;
+
+		assertTrue(replayGuard.markUsed("state-1", expirationTime));
+		assertFalse(replayGuard.markUsed("state-1", expirationTime));
+		assertTrue(replayGuard.markUsed("state-2", expirationTime));
+	}
+
+	@Test
+	public void acceptsValueAgainAfterExpiration() {
+		final InMemoryReplayGuard replayGuard = new InMemoryReplayGuard();
+
+		assertTrue(replayGuard.markUsed("state-1", System.currentTimeMillis() - 1));
+		assertTrue(replayGuard.markUsed("state-1", System.currentTimeMillis() + 60000));
+		assertFalse(replayGuard.markUsed("state-1", System.currentTimeMillis() + 60000));
+	}
+
+	@Test
+	public void acceptsConcurrentReplayOnce() throws Exception {
+		final InMemoryReplayGuard replayGuard = new InMemoryReplayGuard();
+		final long expirationTime = System.currentTimeMillis() + 60000;
+
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+			for (int i = 0; i < 32; i++) {
+				tasks.add(() -> replayGuard.markUsed("state-1", expirationTime));
+			}
+
+			int accepted = 0;
+			for (Future<Boolean> result : executor.invokeAll(tasks)) {
+				if (result.get()) {
+					accepted++;
+				}
+			}
+			assertEquals(1, accepted);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void acceptsValuesWithoutRecordingWhenFull() {
+		final InMemoryReplayGuard replayGuard = new InMemoryReplayGuard("test.replayGuard.full", 1);
+		final LongAdder overflows = IdpMetrics.instance().counter("test.replayGuard.full.overflow");
+		final long overflowsBefore = overflows.sum();
+		final long expirationTime = System.currentTimeMillis() + 60000;
+
+		assertTrue(replayGuard.markUsed("state-1", expirationTime));
+		assertTrue(replayGuard.markUsed("state-2", expirationTime));
+		assertTrue(replayGuard.markUsed("state-2", expirationTime));
+		assertEquals(1, replayGuard.size());
+		assertEquals(overflowsBefore + 2, overflows.sum());
+
+		// Recorded value is still rejected
+		assertFalse(replayGuard.markUsed("state-1", expirationTime));
+
+		replayGuard.setMaxEntries(2);
+		assertTrue(replayGuard.markUsed("state-2", expirationTime));
+		assertFalse(replayGuard.markUsed("state-2", expirationTime));
+	}
+
+}
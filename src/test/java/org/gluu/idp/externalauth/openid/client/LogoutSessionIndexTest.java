@@ -0,0 +1,112 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+
+import org.junit.Test;
+
+public class LogoutSessionIndexTest {
+
+	private static final String ATTRIBUTE = "logout_session";
+
+	@Test
+	public void findsSessionBySidAndSubject() {
+		final LogoutSessionIndex index = new LogoutSessionIndex(100);
+		final HttpSession session = mock(HttpSession.class);
+		final LogoutSessionIndex.Binding binding = bind(index, session, "client-1", "sid-1", "user-1", "idp-session-1");
+
+		assertEquals(Collections.singleton(binding), index.getBindings("client-1", "sid-1", null));
+		assertEquals(Collections.singleton(binding), index.getBindings("client-1", null, "user-1"));
+		assertSame(session, binding.getSession());
+		assertEquals("idp-session-1", binding.getIdpSessionId());
+		assertEquals(1, index.size());
+
+		assertTrue(index.getBindings("client-2", "sid-1", "user-1").isEmpty());
+		assertTrue(index.getBindings("client-1", "sid-2", "user-1").isEmpty());
+		assertTrue(index.getBindings("client-1", null, null).isEmpty());
+	}
+
+	@Test
+	public void findsAllSessionsOfSubjectWithoutSid() {
+		final LogoutSessionIndex index = new LogoutSessionIndex(100);
+		final LogoutSessionIndex.Binding first = bind(index, mock(HttpSession.class), null, "sid-1", "user-1", null);
+		final LogoutSessionIndex.Binding second = bind(index, mock(HttpSession.class), null, "sid-2", "user-1", null);
+
+		assertEquals(2, index.getBindings(null, null, "user-1").size());
+		assertTrue(index.getBindings(null, null, "user-1").contains(first));
+		assertTrue(index.getBindings(null, null, "user-1").contains(second));
+		assertEquals(Collections.singleton(second), index.getBindings(null, "sid-2", "user-1"));
+	}
+
+	@Test
+	public void removesSessionWhenBindingIsUnbound() {
+		final LogoutSessionIndex index = new LogoutSessionIndex(100);
+		final HttpSession session = mock(HttpSession.class);
+		final LogoutSessionIndex.Binding binding = bind(index, session, "client-1", "sid-1", "user-1", null);
+
+		binding.valueUnbound(new HttpSessionBindingEvent(session, ATTRIBUTE, binding));
+		binding.valueUnbound(new HttpSessionBindingEvent(session, ATTRIBUTE, binding));
+
+		assertTrue(index.getBindings("client-1", "sid-1", null).isEmpty());
+		assertTrue(index.getBindings("client-1", null, "user-1").isEmpty());
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void skipsSessionsOverLimit() {
+		final LogoutSessionIndex index = new LogoutSessionIndex(1);
+		bind(index, mock(HttpSession.class), null, "sid-1", "user-1", null);
+		final HttpSession session = mock(HttpSession.class);
+		final LogoutSessionIndex.Binding overflow = bind(index, session, null, "sid-2", "user-2", null);
+
+		assertEquals(1, index.size());
+		assertTrue(index.getBindings(null, "sid-2", null).isEmpty());
+		assertNull(overflow.getSession());
+
+		// Binding which wasn't indexed doesn't change the size
+		overflow.valueUnbound(new HttpSessionBindingEvent(session, ATTRIBUTE, overflow));
+		assertEquals(1, index.size());
+
+		index.setMaxSessions(2);
+		bind(index, mock(HttpSession.class), null, "sid-3", "user-3", null);
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void recordsIdpSessionCreatedAfterLogin() {
+		final LogoutSessionIndex index = new LogoutSessionIndex(100);
+		final HttpSession session = mock(HttpSession.class);
+		final LogoutSessionIndex.Binding binding = bind(index, session, null, "sid-1", "user-1", "stale-idp-session");
+		when(session.getAttribute(LogoutSessionIndex.PENDING_BINDING_ATTRIBUTE)).thenReturn(ATTRIBUTE);
+		when(session.getAttribute(ATTRIBUTE)).thenReturn(binding);
+
+		assertTrue(LogoutSessionIndex.recordIdpSession(session, "idp-session-1"));
+		assertEquals("idp-session-1", binding.getIdpSessionId());
+		verify(session).removeAttribute(LogoutSessionIndex.PENDING_BINDING_ATTRIBUTE);
+	}
+
+	@Test
+	public void ignoresIdpSessionWithoutPendingBinding() {
+		assertFalse(LogoutSessionIndex.recordIdpSession(mock(HttpSession.class), "idp-session-1"));
+	}
+
+	private static LogoutSessionIndex.Binding bind(LogoutSessionIndex index, HttpSession session, String clientName, String sid, String subject,
+			String idpSessionId) {
+		final LogoutSessionIndex.Binding binding = index.bind(clientName, sid, subject, idpSessionId);
+		binding.valueBound(new HttpSessionBindingEvent(session, ATTRIBUTE, binding));
+
+		return binding;
+	}
+
+}
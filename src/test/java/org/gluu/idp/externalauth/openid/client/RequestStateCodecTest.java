@@ -0,0 +1,143 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RequestStateCodecTest {
+
+	private static final String SECRET = "state-secret";
+	private static final long LIFETIME = TimeUnit.MINUTES.toMillis(30);
+
+	@Test
+	public void decodesUnsignedState() {
+		final RequestStateCodec codec = new RequestStateCodec();
+		final Map<String, String> claims = codec.decode(codec.encode(claims()));
+
+		assertFalse(codec.isSigned());
+		assertEquals("e1s1", claims.get("conversation"));
+		assertNotNull(claims.get(RequestStateCodec.CLAIM_STATE_ID));
+	}
+
+	@Test
+	public void decodesSignedState() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, LIFETIME);
+		final Map<String, String> claims = codec.decode(codec.encode(claims()));
+
+		assertTrue(codec.isSigned());
+		assertEquals("e1s1", claims.get("conversation"));
+		assertEquals("nonce-1", claims.get(RequestStateCodec.CLAIM_NONCE));
+		assertNotNull(claims.get(RequestStateCodec.CLAIM_EXPIRATION));
+	}
+
+	@Test
+	public void decodesEncryptedState() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, true, LIFETIME);
+		final String state = codec.encode(claims());
+
+		final String payload = new String(Base64.getUrlDecoder().decode(state.split("\\.")[1]), StandardCharsets.ISO_8859_1);
+		assertFalse(payload.contains("e1s1"));
+		assertEquals("e1s1", codec.decode(state).get("conversation"));
+	}
+
+	@Test
+	public void generatesUniqueStateIds() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, LIFETIME);
+
+		assertNotEquals(codec.decode(codec.encode(claims())).get(RequestStateCodec.CLAIM_STATE_ID),
+				codec.decode(codec.encode(claims())).get(RequestStateCodec.CLAIM_STATE_ID));
+	}
+
+	@Test
+	public void rejectsTamperedPayload() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, LIFETIME);
+		final String[] parts = codec.encode(claims()).split("\\.");
+		final String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8).replace("e1s1", "e1s2");
+		final String tampered = parts[0] + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(payload.getBytes(StandardCharsets.UTF_8))
+				+ "." + parts[2];
+
+		assertNull(codec.decode(tampered));
+	}
+
+	@Test
+	public void rejectsTamperedEncryptedPayload() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, true, LIFETIME);
+		final String[] parts = codec.encode(claims()).split("\\.");
+		final byte[] payload = Base64.getUrlDecoder().decode(parts[1]);
+		payload[payload.length - 1] ^= 1;
+		final String tampered = parts[0] + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(payload) + "." + parts[2];
+
+		assertNull(codec.decode(tampered));
+	}
+
+	@Test
+	public void rejectsUnsignedStateInSignedMode() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, LIFETIME);
+
+		assertNull(codec.decode(new RequestStateCodec().encode(claims())));
+	}
+
+	@Test
+	public void rejectsStateSignedWithOtherSecret() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, LIFETIME);
+
+		assertNull(codec.decode(new RequestStateCodec("other-secret", false, LIFETIME).encode(claims())));
+	}
+
+	@Test
+	public void rejectsExpiredState() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, -TimeUnit.MINUTES.toMillis(1));
+
+		assertNull(codec.decode(codec.encode(claims())));
+	}
+
+	@Test
+	public void rejectsMalformedState() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, LIFETIME);
+
+		assertNull(codec.decode(null));
+		assertNull(codec.decode(""));
+		assertNull(codec.decode("abc"));
+		assertNull(codec.decode("a.b.c"));
+	}
+
+	@Test
+	public void bindsStateToBrowser() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, LIFETIME);
+		final Map<String, String> claims = claims();
+		claims.put(RequestStateCodec.CLAIM_BROWSER_BINDING, codec.getBrowserBinding("cookie-1"));
+		final Map<String, String> decoded = codec.decode(codec.encode(claims));
+
+		assertTrue(codec.isBoundTo(decoded, "cookie-1"));
+		assertFalse(codec.isBoundTo(decoded, "cookie-2"));
+		assertFalse(codec.isBoundTo(decoded, null));
+		assertFalse(codec.isBoundTo(codec.decode(codec.encode(claims())), "cookie-1"));
+	}
+
+	@Test
+	public void bindingDependsOnSecret() {
+		final RequestStateCodec codec = new RequestStateCodec(SECRET, false, LIFETIME);
+
+		assertNotEquals(codec.getBrowserBinding("cookie-1"), new RequestStateCodec("other-secret", false, LIFETIME).getBrowserBinding("cookie-1"));
+	}
+
+	private Map<String, String> claims() {
+		final Map<String, String> claims = new HashMap<String, String>();
+		claims.put("conversation", "e1s1");
+		claims.put(RequestStateCodec.CLAIM_NONCE, "nonce-1");
+
+		return claims;
+	}
+
+}
@@ -0,0 +1,131 @@
+package org.gluu.idp.externalauth.openid.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gluu.idp.externalauth.metrics.IdpMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	private static final int CALLERS = 8;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(CALLERS);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void coalescesConcurrentCalls() throws Exception {
+		final SingleFlight<String> singleFlight = new SingleFlight<String>("test.singleFlight.concurrent", 100, 10000);
+		final LongAdder coalesced = IdpMetrics.instance().counter("test.singleFlight.concurrent.coalesced");
+		final long expectedCoalesced = coalesced.sum() + CALLERS - 1;
+		final AtomicInteger calls = new AtomicInteger();
+
+		final List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < CALLERS; i++) {
+			results.add(executor.submit(() -> singleFlight.execute("key-1", () -> {
+				calls.incrementAndGet();
+				awaitCount(coalesced, expectedCoalesced);
+				return "result-1";
+			})));
+		}
+
+		for (Future<String> result : results) {
+			assertEquals("result-1", result.get(30, TimeUnit.SECONDS));
+		}
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void executesSequentialCallsAndDistinctKeysSeparately() {
+		final SingleFlight<String> singleFlight = new SingleFlight<String>("test.singleFlight.sequential", 100, 10000);
+		final AtomicInteger calls = new AtomicInteger();
+
+		assertEquals("1", singleFlight.execute("key-1", () -> String.valueOf(calls.incrementAndGet())));
+		assertEquals("2", singleFlight.execute("key-1", () -> String.valueOf(calls.incrementAndGet())));
+		assertEquals("3", singleFlight.execute("key-2", () -> String.valueOf(calls.incrementAndGet())));
+	}
+
+	@Test
+	public void returnsNullToWaitersOfFailedCall() throws Exception {
+		final SingleFlight<String> singleFlight = new SingleFlight<String>("test.singleFlight.failure", 100, 10000);
+		final LongAdder coalesced = IdpMetrics.instance().counter("test.singleFlight.failure.coalesced");
+		final long expectedCoalesced = coalesced.sum() + 1;
+		final CountDownLatch started = new CountDownLatch(1);
+
+		final Future<String> first = executor.submit(() -> singleFlight.execute("key-1", () -> {
+			started.countDown();
+			awaitCount(coalesced, expectedCoalesced);
+			throw new IllegalStateException("token endpoint failed");
+		}));
+		started.await(10, TimeUnit.SECONDS);
+		final Future<String> waiter = executor.submit(() -> singleFlight.execute("key-1", () -> "not-executed"));
+
+		assertNull(waiter.get(30, TimeUnit.SECONDS));
+		try {
+			first.get(30, TimeUnit.SECONDS);
+			fail("Caller which executed the call has to get its exception");
+		} catch (ExecutionException ex) {
+			assertEquals(IllegalStateException.class, ex.getCause().getClass());
+		}
+	}
+
+	@Test
+	public void returnsNullToWaiterAfterTimeout() throws Exception {
+		final SingleFlight<String> singleFlight = new SingleFlight<String>("test.singleFlight.timeout", 100, 50);
+		final LongAdder timeouts = IdpMetrics.instance().counter("test.singleFlight.timeout.coalescing.timeout");
+		final long expectedTimeouts = timeouts.sum() + 1;
+		final CountDownLatch started = new CountDownLatch(1);
+
+		final Future<String> first = executor.submit(() -> singleFlight.execute("key-1", () -> {
+			started.countDown();
+			awaitCount(timeouts, expectedTimeouts);
+			return "result-1";
+		}));
+		started.await(10, TimeUnit.SECONDS);
+
+		assertNull(singleFlight.execute("key-1", () -> "not-executed"));
+		assertEquals(expectedTimeouts, timeouts.sum());
+		assertEquals("result-1", first.get(30, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void executesWithoutCoalescingWhenFull() {
+		final SingleFlight<String> singleFlight = new SingleFlight<String>("test.singleFlight.full", 0, 10000);
+		final LongAdder overflows = IdpMetrics.instance().counter("test.singleFlight.full.coalescing.overflow");
+		final long overflowsBefore = overflows.sum();
+
+		assertEquals("result-1", singleFlight.execute("key-1", () -> "result-1"));
+		assertEquals(overflowsBefore + 1, overflows.sum());
+	}
+
+	private static void awaitCount(LongAdder counter, long expected) {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while ((counter.sum() < expected) && (System.currentTimeMillis() < deadline)) {
+			Thread.yield();
+		}
+	}
+
+}